@@ -0,0 +1,235 @@
+import java.sql.Connection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * DatabaseWriter whose rows are written by a dedicated thread, the only one writing to the connection (SQLite has a
+ * single writer anyway). addSimilarity, addPrediction and addPrediction2 only put the row in a bounded queue, so the
+ * threads making predictions don't stop for the batches and commits; when the queue is full they wait for the writer
+ * (backpressure) instead of piling up rows in memory. flush() waits until the rows added before it are committed.
+ * Similarities in the queue are still found by getPendingSimilarity, so ItemBased doesn't calculate them again.
+ * The depth of the queue and the share of the time the writer thread is busy are registered as gauges
+ * ("writer.queueDepth", "writer.utilisation" in percent), the time spent waiting for room in the queue as the
+ * "writer.backpressure" histogram
+ */
+public class AsyncDatabaseWriter extends DatabaseWriter {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 4 * DEFAULT_BATCH_SIZE;
+
+	private static final int SIMILARITY = 0;
+	private static final int PREDICTION = 1;
+	private static final int PREDICTION2 = 2;
+	private static final int FLUSH = 3;
+	private static final int STOP = 4;
+
+	public static final LatencyHistogram BACKPRESSURE = Metrics.histogram("writer.backpressure");
+
+	/**
+	 * A row to write, or a flush or stop request (with 'done' counted down once handled, and 'error' set if it failed)
+	 */
+	private static class Row {
+
+		final int kind;
+		final int a;
+		final int b;
+		final float value;
+		final CountDownLatch done;
+		volatile RuntimeException error;
+
+		Row(int kind, int a, int b, float value, CountDownLatch done) {
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+			this.value = value;
+			this.done = done;
+		}
+	}
+
+	private final ArrayBlockingQueue<Row> queue;
+	private final long commitInterval;
+	//similarities in the queue, which the parent's pending rows don't have yet
+	private final ConcurrentHashMap<Long,Float> queuedSimilarities = new ConcurrentHashMap<Long,Float>();
+	private final Thread thread;
+	private final LongAdder busyNanos = new LongAdder();
+	private final long startTime = System.nanoTime();
+	private volatile boolean closed;
+
+
+	public AsyncDatabaseWriter(Connection con) {
+		this(con, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_INTERVAL, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param con
+	 * @param batchSize The number of pending rows that triggers a commit
+	 * @param commitInterval The time (in milliseconds) after which pending rows are committed
+	 * @param queueCapacity The number of rows that can wait for the writer thread
+	 */
+	public AsyncDatabaseWriter(Connection con, int batchSize, long commitInterval, int queueCapacity) {
+		super(con, batchSize, commitInterval);
+		this.commitInterval = commitInterval;
+		queue = new ArrayBlockingQueue<Row>(queueCapacity);
+		thread = new Thread(this::writeRows, "database-writer");
+		thread.setDaemon(true);
+		thread.start();
+		Metrics.gauge("writer.queueDepth", queue::size);
+		Metrics.gauge("writer.utilisation", () -> Math.round(100 * getUtilisation()));
+	}
+
+	/**
+	 * The writer thread: takes the rows from the queue and hands them to the parent, which batches and commits them
+	 */
+	private void writeRows() {
+		while (true) {
+			Row row;
+			try {
+				row = queue.poll(commitInterval, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				if (row == null) {
+					//nothing new for a while: don't keep what is pending waiting for the next row
+					if (getPendingRows() > 0) super.flush();
+				} else if (row.kind == SIMILARITY) {
+					try {
+						super.addSimilarity(row.a, row.b, row.value);
+					} finally {
+						//pending in the parent from now on, even if the flush this triggered failed
+						queuedSimilarities.remove(SimilarityCache.key(row.a, row.b));
+					}
+				} else if (row.kind == PREDICTION) {
+					super.addPrediction(row.a, row.b, row.value);
+				} else if (row.kind == PREDICTION2) {
+					super.addPrediction2(row.a, row.b, row.value);
+				} else {
+					super.flush();
+				}
+			} catch (RuntimeException e) {
+				//a failed write keeps its rows pending for the next flush; whoever waits for this one is told
+				if (row != null && row.done != null) row.error = e;
+				else e.printStackTrace();
+			} finally {
+				busyNanos.add(System.nanoTime() - start);
+				if (row != null && row.done != null) row.done.countDown();
+			}
+			if (row != null && row.kind == STOP) return;
+		}
+	}
+
+	/**
+	 * Puts a row in the queue, waiting for room if it is full
+	 * @param row
+	 * @throws IllegalStateException If the writer is closed, or the thread is interrupted while waiting (the row is not added)
+	 */
+	private void enqueue(Row row) {
+		if (closed) throw new IllegalStateException("the writer is closed");
+		if (queue.offer(row)) return;
+		long start = System.nanoTime();
+		try {
+			queue.put(row);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for room in the writer's queue", e);
+		}
+		BACKPRESSURE.recordSince(start);
+	}
+
+	@Override
+	public void addSimilarity(int smallestIndex, int greaterIndex, float similarity) {
+		long key = SimilarityCache.key(smallestIndex, greaterIndex);
+		queuedSimilarities.put(key, similarity);
+		try {
+			enqueue(new Row(SIMILARITY, smallestIndex, greaterIndex, similarity, null));
+		} catch (IllegalStateException e) {
+			//never reaches the writer thread, which is what removes it
+			queuedSimilarities.remove(key, similarity);
+			throw e;
+		}
+	}
+
+	@Override
+	public void addPrediction(int user, int item, float prediction) {
+		enqueue(new Row(PREDICTION, user, item, prediction, null));
+	}
+
+	@Override
+	public void addPrediction2(int user, int item, float prediction) {
+		enqueue(new Row(PREDICTION2, user, item, prediction, null));
+	}
+
+	@Override
+	public float getPendingSimilarity(int smallestIndex, int greaterIndex) {
+		Float similarity = queuedSimilarities.get(SimilarityCache.key(smallestIndex, greaterIndex));
+		return similarity != null ? similarity : super.getPendingSimilarity(smallestIndex, greaterIndex);
+	}
+
+	/**
+	 * @return The number of rows waiting for the writer thread (getPendingRows() has the ones it batched already)
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The share of the time (0 to 1) the writer thread has spent writing since it was started
+	 */
+	public double getUtilisation() {
+		long elapsed = System.nanoTime() - startTime;
+		return elapsed > 0 ? (double) busyNanos.sum() / elapsed : 0;
+	}
+
+	/**
+	 * Sends every row added so far to the database and commits, waiting until it is done
+	 */
+	@Override
+	public void flush() {
+		//the parent flushes by itself from the writer thread, and close() flushes once the thread is stopped
+		if (Thread.currentThread() == thread || closed || !thread.isAlive()) {
+			super.flush();
+			return;
+		}
+		await(FLUSH);
+	}
+
+	/**
+	 * Writes every row added so far, stops the writer thread and closes the prepared statements
+	 * @throws IllegalStateException If the rows could not be written
+	 */
+	@Override
+	public void close() {
+		try {
+			if (!closed && thread.isAlive()) await(STOP);
+		} finally {
+			closed = true;
+			Metrics.removeGauge("writer.queueDepth");
+			Metrics.removeGauge("writer.utilisation");
+			//tries the rows of a failed flush once more
+			super.close();
+		}
+	}
+
+	/**
+	 * Puts a request in the queue and waits until the writer thread has handled it (so every row before it is written)
+	 * @param kind FLUSH or STOP
+	 * @throws IllegalStateException If the thread is interrupted while waiting, or the rows could not be written
+	 */
+	private void await(int kind) {
+		CountDownLatch done = new CountDownLatch(1);
+		Row request = new Row(kind, 0, 0, 0, done);
+		enqueue(request);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the writer thread", e);
+		}
+		if (request.error != null) throw new IllegalStateException(request.error.getMessage(), request.error);
+	}
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Makes a batch of predictions grouped by user: the pending (user, item) pairs are sorted by user, and all the items
+ * of a user are predicted one after the other from the same UserProfile, so the user is looked up (index, ratings,
+ * average rating) once instead of once per item. Every worker thread keeps one indexed profile, so with a
+ * neighbourhood model the ratings of the user are looked up in an array instead of with a binary search.
+ * The users are handed out to the workers one at a time, so a heavy user doesn't hold up a whole chunk of light ones.
+ * The prediction formula is pluggable (see ProfilePredictor), e.g. ItemBased::calculatePrediction for "predictions"
+ * and ItemBased::calculatePredictionConsideringNegativeSims for "predictions2"
+ */
+public class BatchPredictor {
+
+	private final RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+	private final ProfilePredictor predictor;
+	private final int threads;
+
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param predictor The prediction formula
+	 * @param threads The number of worker threads
+	 */
+	public BatchPredictor(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, ProfilePredictor predictor, int threads) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		this.predictor = predictor;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param ib
+	 * @param considerNegativeSims
+	 * @return The formula of getPredictionConsideringNegativeSims if considerNegativeSims, of getPrediction otherwise
+	 */
+	public static ProfilePredictor getFormula(ItemBased ib, boolean considerNegativeSims) {
+		return considerNegativeSims ? ib::calculatePredictionConsideringNegativeSims : ib::calculatePrediction;
+	}
+
+	/**
+	 * Makes the predictions of a batch
+	 * @param preds The predictions to make (index 0: user id, index 1: item id), as returned by SimpleDB.getPredictionsToMake(2)
+	 * @param latencies Where the time of every prediction is recorded, or null
+	 * @return The predictions, in the order of 'preds'
+	 * @throws IllegalStateException If a worker failed (some predictions would be missing)
+	 */
+	public float[] predict(final List<int[]> preds, final LatencyHistogram latencies) {
+		final float[] predictions = new float[preds.size()];
+
+		//sort the positions by user (user id in the high bits, position in the low bits)
+		final long[] order = new long[preds.size()];
+		for (int i = 0; i < order.length; i++) order[i] = ((long) preds.get(i)[0] << 32) | i;
+		Arrays.sort(order);
+
+		//the first position (in 'order') of every user, and the end of the last user
+		final int[] groups = new int[order.length + 1];
+		int numGroups = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (i == 0 || (int) (order[i] >> 32) != (int) (order[i - 1] >> 32)) groups[numGroups++] = i;
+		}
+		groups[numGroups] = order.length;
+		final int users = numGroups;
+
+		final AtomicInteger nextGroup = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(pool.submit(() -> {
+				UserProfile profile = new UserProfile(allRatings, avgRatings, true);
+				int group;
+				//shutdownNow() (after a worker failed) stops the others at the end of their user
+				while (!Thread.currentThread().isInterrupted() && (group = nextGroup.getAndIncrement()) < users) {
+					profile.load((int) (order[groups[group]] >> 32));
+					for (int g = groups[group]; g < groups[group + 1]; g++) {
+						long start = System.nanoTime();
+						int i = (int) order[g];
+						int item = preds.get(i)[1];
+						predictions[i] = predictor.predict(profile, item);
+						if (latencies != null) latencies.recordSince(start);
+						if (Metrics.sampled()) {
+							System.out.println("user " + profile.user + " has a predicted rating of " + predictions[i] + " for item " + item);
+						}
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+
+		try {
+			for (Future<?> worker : workers) worker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while making the predictions", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("a worker could not make its predictions", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return predictions;
+	}
+
+	/**
+	 * Makes the missing predictions of "predictions2" (or of "predictions" if the second argument is "positive") grouped
+	 * by user and saves them, writing the metrics of the run to the snapshot file (.json or .prom) if given
+	 * Usage: BatchPredictor [threads] [positive] [sample] [snapshot]
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		boolean considerNegativeSims = !(args.length > 1 && args[1].equals("positive"));
+		if (args.length > 2) Metrics.setSampleInterval(Integer.parseInt(args[2]));
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		ArrayList<int[]> preds = considerNegativeSims ? s1.getPredictionsToMake2() : s1.getPredictionsToMake();
+		System.out.println("Number of predictions to be found = " + preds.size() + ", threads = " + threads);
+
+		ItemBased ib = new ItemBased(s1.c);
+		LatencyHistogram progress = considerNegativeSims ? Metrics.PREDICTION_NEGATIVE_SIMS : Metrics.PREDICTION;
+		long startCount = progress.getCount();
+		long startTime = System.nanoTime();
+		Metrics.startReporter(10, progress, preds.size());
+		float[] predictions;
+		try {
+			predictions = new BatchPredictor(allRatings, avgRatings, getFormula(ib, considerNegativeSims), threads).predict(preds, progress);
+		} finally {
+			Metrics.stopReporter();
+		}
+		for (int i = 0; i < preds.size(); i++) {
+			if (considerNegativeSims) ib.writer.addPrediction2(preds.get(i)[0], preds.get(i)[1], predictions[i]);
+			else ib.writer.addPrediction(preds.get(i)[0], preds.get(i)[1], predictions[i]);
+		}
+		ib.writer.close();
+		System.out.println(Metrics.report(progress, startCount, preds.size(), startTime));
+		System.out.println(ib.similarityCache);
+		if (args.length > 3) Metrics.writeSnapshot(new File(args[3]));
+		System.out.println("PROGRAM FINISHED!!!");
+	}
+}
@@ -0,0 +1,280 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Micro-benchmarks of the hot paths (loading the ratings, looking up and calculating similarities, making predictions)
+ * on a temporary SQLite fixture filled by SyntheticRatings, so changes can be measured between versions.
+ * Every benchmark runs some warmup iterations, then some measured iterations of many operations each; the time and the
+ * bytes allocated by the thread (the "gc.alloc.rate.norm" of JMH's GC profiler) are reported per operation.
+ * The results are printed and written as JSON, in the format of JMH's JSON output (so the same tools can compare them)
+ */
+public class Benchmark {
+
+	//results are accumulated here so the JIT can't remove the calls
+	static volatile double sink;
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final HashMap<String,String> params;
+	private final StringBuilder json = new StringBuilder();
+	private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+	/**
+	 * @param warmupIterations
+	 * @param measurementIterations
+	 * @param params The parameters of the fixture, copied in every result
+	 */
+	public Benchmark(int warmupIterations, int measurementIterations, HashMap<String,String> params) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.params = params;
+	}
+
+	/**
+	 * A benchmark: every iteration performs a fixed number of operations
+	 */
+	static abstract class Case {
+
+		final String name;
+		final int operations;
+
+		Case(String name, int operations) {
+			this.name = name;
+			this.operations = operations;
+		}
+
+		//before every iteration, not measured
+		void setup() {
+		}
+
+		abstract void iteration();
+	}
+
+	/**
+	 * Runs a benchmark, prints its results and adds them to the JSON output
+	 * @param benchmark
+	 */
+	public void run(Case benchmark) {
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < warmupIterations; i++) {
+			benchmark.setup();
+			benchmark.iteration();
+		}
+		double[] times = new double[measurementIterations];       //microseconds per operation
+		double[] allocations = new double[measurementIterations]; //bytes per operation
+		double[] allocationRates = new double[measurementIterations]; //MB per second
+		for (int i = 0; i < measurementIterations; i++) {
+			benchmark.setup();
+			long allocated = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			benchmark.iteration();
+			long elapsed = System.nanoTime() - start;
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+			times[i] = elapsed / 1000.0 / benchmark.operations;
+			allocations[i] = (double) allocated / benchmark.operations;
+			allocationRates[i] = allocated / 1048576.0 / (elapsed / 1e9);
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%-40s %12.3f +- %9.3f us/op %14.1f B/op", benchmark.name, mean(times), error(times), mean(allocations)));
+
+		json.append(json.length() == 0 ? "[\n" : ",\n");
+		json.append("\t{\n");
+		json.append("\t\t\"benchmark\" : \"").append(getClass().getName()).append('.').append(benchmark.name).append("\",\n");
+		json.append("\t\t\"mode\" : \"avgt\",\n");
+		json.append("\t\t\"threads\" : 1,\n");
+		json.append("\t\t\"jdkVersion\" : \"").append(System.getProperty("java.version")).append("\",\n");
+		json.append("\t\t\"vmName\" : \"").append(System.getProperty("java.vm.name")).append("\",\n");
+		json.append("\t\t\"warmupIterations\" : ").append(warmupIterations).append(",\n");
+		json.append("\t\t\"measurementIterations\" : ").append(measurementIterations).append(",\n");
+		json.append("\t\t\"params\" : {");
+		boolean first = true;
+		for (String key : params.keySet()) {
+			json.append(first ? "" : ", ").append('"').append(key).append("\" : \"").append(params.get(key)).append('"');
+			first = false;
+		}
+		json.append("},\n");
+		json.append("\t\t\"primaryMetric\" : ");
+		appendMetric(times, "us/op");
+		json.append(",\n\t\t\"secondaryMetrics\" : {\n\t\t\t\"gc.alloc.rate.norm\" : ");
+		appendMetric(allocations, "B/op");
+		json.append(",\n\t\t\t\"gc.alloc.rate\" : ");
+		appendMetric(allocationRates, "MB/sec");
+		json.append("\n\t\t}\n\t}");
+	}
+
+	private void appendMetric(double[] values, String unit) {
+		json.append(String.format(Locale.ROOT, "{\"score\" : %.6f, \"scoreError\" : %.6f, \"scoreUnit\" : \"%s\", \"rawData\" : [[", mean(values), error(values), unit));
+		for (int i = 0; i < values.length; i++) {
+			json.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.6f", values[i]));
+		}
+		json.append("]]}");
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) sum += value;
+		return sum / values.length;
+	}
+
+	/**
+	 * @param values
+	 * @return The half-width of the 99.9% confidence interval of the mean (normal approximation)
+	 */
+	private static double error(double[] values) {
+		if (values.length < 2) return Double.NaN;
+		double mean = mean(values);
+		double squares = 0;
+		for (double value : values) squares += (value - mean) * (value - mean);
+		return 3.29 * Math.sqrt(squares / (values.length - 1)) / Math.sqrt(values.length);
+	}
+
+	/**
+	 * @return The results of the benchmarks run so far, as a JSON array
+	 */
+	public String toJson() {
+		return json.length() == 0 ? "[]\n" : json + "\n]\n";
+	}
+
+	/**
+	 * @param allRatings
+	 * @param fraction
+	 * @param heaviest Whether to take the users with the most ratings instead of the fewest
+	 * @return The ids of the given fraction (at least one) of the users with the fewest (or most) ratings
+	 */
+	private static int[] usersByActivity(RatingMatrix allRatings, double fraction, boolean heaviest) {
+		Integer[] order = new Integer[allRatings.getNumUsers()];
+		for (int u = 0; u < order.length; u++) order[u] = u;
+		Arrays.sort(order, (a, b) -> Integer.compare(allRatings.getNumRatingsForUser(a), allRatings.getNumRatingsForUser(b)));
+		int[] users = new int[Math.max(1, (int) (order.length * fraction))];
+		for (int i = 0; i < users.length; i++) {
+			users[i] = allRatings.userIds[order[heaviest ? order.length - 1 - i : i]];
+		}
+		return users;
+	}
+
+	/**
+	 * Usage: Benchmark [output.json] [users] [items] [density] [exponent] [warmup iterations] [measurement iterations]
+	 */
+	public static void main(String[] args) throws IOException {
+		String output = args.length > 0 ? args[0] : "benchmark.json";
+		int numUsers = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int numItems = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		double density = args.length > 3 ? Double.parseDouble(args[3]) : 0.02;
+		double exponent = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+		int warmup = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+		int iterations = args.length > 6 ? Integer.parseInt(args[6]) : 5;
+
+		SyntheticRatings synthetic = new SyntheticRatings(numUsers, numItems, density, exponent, 42);
+		final SimpleDB db = new SimpleDB(synthetic.writeTemporaryDatabase());
+		final RatingMatrix allRatings = db.loadRatings();
+		final HashMap<Integer,Float> avgRatings = db.getAvgUserRatings();
+		System.out.println(synthetic.size() + " ratings, " + allRatings.getNumUsers() + " users, " + allRatings.getNumItems() + " items");
+
+		HashMap<String,String> params = new HashMap<String,String>();
+		params.put("users", String.valueOf(numUsers));
+		params.put("items", String.valueOf(numItems));
+		params.put("density", String.valueOf(density));
+		params.put("exponent", String.valueOf(exponent));
+		params.put("ratings", String.valueOf(synthetic.size()));
+		Benchmark benchmark = new Benchmark(warmup, iterations, params);
+
+		//random pairs of items, and random items to predict for light and heavy users
+		Random random = new Random(1);
+		final int[][] pairs = new int[2000][2];
+		for (int[] pair : pairs) {
+			pair[0] = allRatings.itemIds[random.nextInt(allRatings.getNumItems())];
+			pair[1] = allRatings.itemIds[random.nextInt(allRatings.getNumItems())];
+		}
+		final int[][] lightPredictions = new int[2000][2];
+		final int[][] heavyPredictions = new int[200][2];
+		int[] lightUsers = usersByActivity(allRatings, 0.25, false);
+		int[] heavyUsers = usersByActivity(allRatings, 0.01, true);
+		for (int[] prediction : lightPredictions) {
+			prediction[0] = lightUsers[random.nextInt(lightUsers.length)];
+			prediction[1] = allRatings.itemIds[random.nextInt(allRatings.getNumItems())];
+		}
+		for (int[] prediction : heavyPredictions) {
+			prediction[0] = heavyUsers[random.nextInt(heavyUsers.length)];
+			prediction[1] = allRatings.itemIds[random.nextInt(allRatings.getNumItems())];
+		}
+
+		benchmark.run(new Case("loadRatings", 1) {
+			void iteration() {
+				sink += db.loadRatings().getNumRatings();
+			}
+		});
+
+		benchmark.run(new Case("similarityKernel", pairs.length) {
+			final float[] userAverages = allRatings.getUserAverages(avgRatings);
+			void iteration() {
+				for (int[] pair : pairs) {
+					sink += SimilarityKernel.adjustedCosine(allRatings, allRatings.getItemIndex(pair[0]), allRatings.getItemIndex(pair[1]), userAverages);
+				}
+			}
+		});
+
+		//a new recommender every iteration: every pair misses the cache and the database, and is calculated
+		benchmark.run(new Case("similarityCold", pairs.length) {
+			ItemBased ib;
+			void setup() {
+				ib = new ItemBased(db.c);
+				//never flushed, so the database stays empty
+				ib.writer = new DatabaseWriter(db.c, Integer.MAX_VALUE, Long.MAX_VALUE);
+				//built outside the timed region, so the first pair only measures the miss and the kernel
+				ib.getStatistics(allRatings, avgRatings);
+			}
+			void iteration() {
+				for (int[] pair : pairs) sink += ib.getSimilarity(pair[0], pair[1], allRatings, avgRatings);
+			}
+		});
+
+		//the same recommender every iteration: every pair is in the cache after the first one
+		final ItemBased warm = new ItemBased(db.c);
+		warm.writer = new DatabaseWriter(db.c, Integer.MAX_VALUE, Long.MAX_VALUE);
+		benchmark.run(new Case("similarityWarm", pairs.length) {
+			void iteration() {
+				for (int[] pair : pairs) sink += warm.getSimilarity(pair[0], pair[1], allRatings, avgRatings);
+			}
+		});
+
+		//predictions with a warm cache (filled by the warmup iterations), so they measure the prediction itself
+		benchmark.run(new Case("predictionLightUser", lightPredictions.length) {
+			void iteration() {
+				for (int[] prediction : lightPredictions) sink += warm.calculatePrediction(prediction[0], prediction[1], allRatings, avgRatings);
+			}
+		});
+		benchmark.run(new Case("predictionHeavyUser", heavyPredictions.length) {
+			void iteration() {
+				for (int[] prediction : heavyPredictions) sink += warm.calculatePrediction(prediction[0], prediction[1], allRatings, avgRatings);
+			}
+		});
+		benchmark.run(new Case("predictionConsideringNegativeSimsLightUser", lightPredictions.length) {
+			void iteration() {
+				for (int[] prediction : lightPredictions) sink += warm.calculatePredictionConsideringNegativeSims(prediction[0], prediction[1], allRatings, avgRatings);
+			}
+		});
+		benchmark.run(new Case("predictionConsideringNegativeSimsHeavyUser", heavyPredictions.length) {
+			void iteration() {
+				for (int[] prediction : heavyPredictions) sink += warm.calculatePredictionConsideringNegativeSims(prediction[0], prediction[1], allRatings, avgRatings);
+			}
+		});
+
+		PrintWriter out = new PrintWriter(new FileWriter(output));
+		out.print(benchmark.toJson());
+		out.close();
+		System.out.println("Results written to " + output);
+		try {
+			db.c.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
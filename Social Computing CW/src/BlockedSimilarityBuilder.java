@@ -0,0 +1,499 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Out-of-core version of SimilarityModelBuilder, for rating sets that don't fit in the heap together with their
+ * similarities. The build goes through three steps, all of them sequential on disk:
+ *   prepare()     streams "alldata" sorted by item into two column files in the work directory (the user index and the
+ *                 rating of every rating, item after item), keeping only the ids, averages and file positions in memory
+ *   buildTiles()  splits the items in blocks small enough for the memory budget and, for every pair of blocks
+ *                 (A, B) with A <= B, loads both blocks from the column files and writes the similarities between their
+ *                 items to a sorted run file (see SimilarityRunFile), one tile at a time
+ *   merge()       merges the tiles of every block of rows into one sorted run with every non-zero similarity
+ * The similarities are the same as SimilarityModelBuilder's, as the tiles use the same kernel on the same columns.
+ * Only the ids, average ratings and positions (a few bytes per user and item) do not depend on the budget; every
+ * finished tile is on disk, so a build that was interrupted skips them when it is started again. The split of the items
+ * in blocks is saved next to the tiles ("blocks.properties"): a build started with another budget, number of threads
+ * or set of ratings splits the items differently, so it deletes the tiles of the old split instead of reusing them
+ */
+public class BlockedSimilarityBuilder {
+
+	//heap taken by a rating of a loaded tile: the CSC and CSR copies (5 + 5 bytes), twice for the previous tile's garbage
+	private static final int TILE_BYTES_PER_RATING = 20;
+
+	private final Connection c;
+	private final long memoryBudget;
+	private final int parallelism;
+	private final File directory;
+
+	//set by prepare()
+	private int[] userIds;
+	private float[] userAverages;
+	private int[] itemIds;
+	private long[] itemStarts;    //position of the first rating of every item in the column files, and the total
+	private int[] blockStarts;    //first item index of every block, and the number of items
+
+	//how the tiles are computed
+	private ForkJoinPool pool;
+
+
+	/**
+	 * @param c The database with the "alldata" and "avguserratings" tables
+	 * @param memoryBudget The number of bytes of heap the build may use
+	 * @param parallelism The number of threads computing a tile
+	 * @param directory Where the column files and the tiles are written
+	 */
+	public BlockedSimilarityBuilder(Connection c, long memoryBudget, int parallelism, File directory) {
+		this.c = c;
+		this.memoryBudget = memoryBudget;
+		this.parallelism = parallelism;
+		this.directory = directory;
+	}
+
+	public int getNumItems() {
+		return itemIds.length;
+	}
+
+	public int getNumBlocks() {
+		return blockStarts.length - 1;
+	}
+
+	/**
+	 * Writes the column files and splits the items in blocks
+	 * @throws IOException
+	 * @throws SQLException
+	 * @throws IllegalArgumentException If the budget doesn't even leave room for the ids and averages
+	 */
+	public void prepare() throws IOException, SQLException {
+		directory.mkdirs();
+		Statement s = c.createStatement();
+
+		//every user, sorted, so the user index is the position of the id as in RatingMatrix
+		int[] users = new int[1 << 16];
+		int numUsers = 0;
+		ResultSet rs = s.executeQuery("select distinct userid from alldata order by userid");
+		while (rs.next()) {
+			if (numUsers == users.length) users = Arrays.copyOf(users, numUsers * 2);
+			users[numUsers++] = rs.getInt(1);
+		}
+		rs.close();
+		userIds = Arrays.copyOf(users, numUsers);
+		users = null;
+
+		userAverages = new float[numUsers];
+		boolean[] hasAverage = new boolean[numUsers];
+		rs = s.executeQuery("select userid, rating from avguserratings");
+		while (rs.next()) {
+			int u = Arrays.binarySearch(userIds, rs.getInt(1));
+			if (u < 0) continue;
+			userAverages[u] = rs.getFloat(2);
+			hasAverage[u] = true;
+		}
+		rs.close();
+
+		//the columns, item after item; a user missing from "avguserratings" gets the average of their ratings, as in RatingMatrix
+		float[] sums = new float[numUsers];
+		int[] counts = new int[numUsers];
+		int[] items = new int[1 << 12];
+		long[] starts = new long[1 << 12];
+		int numItems = 0;
+		long numRatings = 0;
+		try (ColumnWriter userColumn = new ColumnWriter(new File(directory, "users.col"));
+				ColumnWriter ratingColumn = new ColumnWriter(new File(directory, "ratings.col"))) {
+			rs = s.executeQuery("select profileid, userid, rating from alldata order by profileid, userid");
+			boolean pending = false;
+			int pendingItem = 0;
+			int pendingUser = 0;
+			int pendingRating = 0;
+			while (true) {
+				boolean more = rs.next();
+				int item = more ? rs.getInt(1) : 0;
+				int user = more ? Arrays.binarySearch(userIds, rs.getInt(2)) : 0;
+				int rating = more ? rs.getInt(3) : 0;
+				if (more && pending && item == pendingItem && user == pendingUser) {
+					//duplicated (user, item) pair: the last rating read wins, as in RatingMatrix.Builder
+					pendingRating = rating;
+					continue;
+				}
+				if (pending) {
+					if (numItems == 0 || items[numItems - 1] != pendingItem) {
+						if (numItems == items.length) {
+							items = Arrays.copyOf(items, numItems * 2);
+							starts = Arrays.copyOf(starts, numItems * 2);
+						}
+						items[numItems] = pendingItem;
+						starts[numItems] = numRatings;
+						numItems++;
+					}
+					userColumn.putInt(pendingUser);
+					ratingColumn.put((byte) pendingRating);
+					sums[pendingUser] += pendingRating;
+					counts[pendingUser]++;
+					numRatings++;
+				}
+				if (!more) break;
+				pending = true;
+				pendingItem = item;
+				pendingUser = user;
+				pendingRating = rating;
+			}
+			rs.close();
+		}
+		s.close();
+		for (int u = 0; u < numUsers; u++) {
+			if (!hasAverage[u]) userAverages[u] = sums[u] / counts[u];
+		}
+		itemIds = Arrays.copyOf(items, numItems);
+		itemStarts = Arrays.copyOf(starts, numItems + 1);
+		itemStarts[numItems] = numRatings;
+
+		splitInBlocks();
+		checkTiles();
+		System.out.println(String.format("%d ratings of %d users and %d items in %d blocks", numRatings, numUsers, numItems, getNumBlocks()));
+	}
+
+	/**
+	 * Groups consecutive items in blocks such that a tile (two blocks) and the rows being computed fit in the budget
+	 */
+	private void splitInBlocks() {
+		int numUsers = userIds.length;
+		int numItems = itemIds.length;
+		//ids, averages and positions, plus the user offsets of the CSR copy of every tile
+		long fixed = 8L * numUsers + 12L * numItems + 8L * numUsers;
+		long tileBudget = memoryBudget - fixed;
+		if (tileBudget <= 0) throw new IllegalArgumentException("a budget of " + memoryBudget + " bytes leaves no room for the tiles (" + fixed + " bytes for the users and items)");
+		//half of the rest for the ratings of the two blocks, half for the rows being computed (an int and a float per column, twice)
+		long maxBlockRatings = Math.max(1, tileBudget / 2 / (2L * TILE_BYTES_PER_RATING));
+		long maxBlockItems = Math.max(1, tileBudget / 2 / ((long) parallelism * SimilarityRows.ROWS_PER_THREAD * 16));
+
+		List<Integer> starts = new ArrayList<Integer>();
+		int start = 0;
+		for (int i = 0; i < numItems; i++) {
+			long ratings = itemStarts[i + 1] - itemStarts[start];
+			if (i > start && (ratings > maxBlockRatings || i - start + 1 > maxBlockItems)) {
+				starts.add(start);
+				start = i;
+			}
+			if (itemStarts[i + 1] - itemStarts[i] > maxBlockRatings) {
+				System.out.println("Warning: item " + itemIds[i] + " alone has more ratings than a block should (" + maxBlockRatings + ")");
+			}
+		}
+		if (numItems > 0) starts.add(start);
+		blockStarts = new int[starts.size() + 1];
+		for (int b = 0; b < starts.size(); b++) blockStarts[b] = starts.get(b);
+		blockStarts[starts.size()] = numItems;
+	}
+
+	/**
+	 * Compares the split in blocks with the one the tiles in the directory were computed with, deleting these tiles if
+	 * the splits differ (a tile is only named after its blocks, so it would cover other items), then saves the split
+	 * @throws IOException
+	 */
+	private void checkTiles() throws IOException {
+		StringBuilder blocks = new StringBuilder();
+		for (int b = 0; b < getNumBlocks(); b++) {
+			int first = blockStarts[b];
+			int end = blockStarts[b + 1];
+			if (b > 0) blocks.append(',');
+			blocks.append(itemIds[first]).append('-').append(itemIds[end - 1]).append(':').append(itemStarts[end] - itemStarts[first]);
+		}
+		Properties split = new Properties();
+		split.setProperty("users", Integer.toString(userIds.length));
+		split.setProperty("items", Integer.toString(itemIds.length));
+		split.setProperty("ratings", Long.toString(itemStarts[itemIds.length]));
+		split.setProperty("blocks", blocks.toString());
+
+		File file = new File(directory, "blocks.properties");
+		Properties saved = new Properties();
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				saved.load(in);
+			}
+		}
+		if (split.equals(saved)) return;
+		File[] tiles = directory.listFiles((dir, name) -> name.startsWith("tile-"));
+		if (tiles != null && tiles.length > 0) {
+			System.out.println("The " + tiles.length + " tiles in " + directory + " were computed with another split of the items: computing them again");
+			for (File tile : tiles) {
+				if (!tile.delete()) throw new IOException("could not delete " + tile);
+			}
+		}
+		//a split that is only partly written doesn't match any other, so it only costs the tiles computed with it
+		try (OutputStream out = new FileOutputStream(file)) {
+			split.store(out, null);
+		}
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return The run file of the tile of blocks a and b
+	 */
+	File getTileFile(int a, int b) {
+		return new File(directory, "tile-" + a + "-" + b + ".run");
+	}
+
+	/**
+	 * Computes every tile that isn't on disk yet
+	 * @throws IOException
+	 */
+	public void buildTiles() throws IOException {
+		int numBlocks = getNumBlocks();
+		long start = System.nanoTime();
+		pool = new ForkJoinPool(parallelism);
+		try (FileChannel userColumn = FileChannel.open(new File(directory, "users.col").toPath(), StandardOpenOption.READ);
+				FileChannel ratingColumn = FileChannel.open(new File(directory, "ratings.col").toPath(), StandardOpenOption.READ)) {
+			for (int a = 0; a < numBlocks; a++) {
+				Block blockA = null;
+				long pairs = 0;
+				for (int b = a; b < numBlocks; b++) {
+					File tile = getTileFile(a, b);
+					if (SimilarityRunFile.isComplete(tile)) continue;
+					if (blockA == null) blockA = new Block(a, userColumn, ratingColumn);
+					pairs += computeTile(blockA, a == b ? null : new Block(b, userColumn, ratingColumn), tile);
+				}
+				System.out.println(String.format("block %d/%d done, %d non-zero similarities, %.0fs elapsed", a + 1, numBlocks, pairs, (System.nanoTime() - start) / 1e9));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The columns of the items of a block, read from the column files
+	 */
+	private class Block {
+
+		final int firstItem;    //item index of the first item of the block
+		final int numItems;
+		final int[] offsets;    //relative to the first rating of the block
+		final int[] users;
+		final byte[] ratings;
+
+		Block(int block, FileChannel userColumn, FileChannel ratingColumn) throws IOException {
+			firstItem = blockStarts[block];
+			numItems = blockStarts[block + 1] - firstItem;
+			long first = itemStarts[firstItem];
+			int count = (int) (itemStarts[firstItem + numItems] - first);
+			offsets = new int[numItems + 1];
+			for (int i = 0; i <= numItems; i++) offsets[i] = (int) (itemStarts[firstItem + i] - first);
+			users = new RatingSnapshot.Input(userColumn, first * 4).getInts(count);
+			ratings = new RatingSnapshot.Input(ratingColumn, first).getBytes(count);
+		}
+	}
+
+	/**
+	 * Writes the similarities between the items of block A and the items of block B (or between the items of A)
+	 * @param blockA
+	 * @param blockB null for the tile of A with itself
+	 * @param file
+	 * @return The number of non-zero similarities
+	 * @throws IOException
+	 */
+	private long computeTile(Block blockA, Block blockB, File file) throws IOException {
+		//one matrix with both blocks, which keeps the global user indices and averages
+		int numA = blockA.numItems;
+		int numB = blockB == null ? 0 : blockB.numItems;
+		int[] tileItems = new int[numA + numB];
+		System.arraycopy(itemIds, blockA.firstItem, tileItems, 0, numA);
+		if (blockB != null) System.arraycopy(itemIds, blockB.firstItem, tileItems, numA, numB);
+		int sizeA = blockA.users.length;
+		int sizeB = blockB == null ? 0 : blockB.users.length;
+		int[] offsets = new int[numA + numB + 1];
+		System.arraycopy(blockA.offsets, 0, offsets, 0, numA + 1);
+		for (int i = 1; i <= numB; i++) offsets[numA + i] = sizeA + blockB.offsets[i];
+		int[] users = Arrays.copyOf(blockA.users, sizeA + sizeB);
+		byte[] ratings = Arrays.copyOf(blockA.ratings, sizeA + sizeB);
+		if (blockB != null) {
+			System.arraycopy(blockB.users, 0, users, sizeA, sizeB);
+			System.arraycopy(blockB.ratings, 0, ratings, sizeA, sizeB);
+		}
+		RatingMatrix tile = new RatingMatrix(tileItems, userIds, offsets, users, ratings);
+
+		//the rows of A, with the following items of A or with every item of B
+		File temporary = new File(file.getPath() + ".tmp");
+		long pairs;
+		try (SimilarityRunFile.Writer out = new SimilarityRunFile.Writer(temporary)) {
+			pairs = SimilarityRows.write(pool, tile, userAverages, 0, numA, blockB == null ? -1 : numA, tile.getNumItems(), out, null);
+			out.finish();
+		}
+		if (!temporary.renameTo(file)) throw new IOException("could not rename " + temporary + " to " + file);
+		return pairs;
+	}
+
+	/**
+	 * Merges the tiles into one sorted run with every non-zero similarity. The tiles of a block of rows are merged
+	 * together (their rows interleave); the blocks follow each other. The run is written next to the output and only
+	 * renamed once complete, so a failed merge never leaves an output that looks complete
+	 * @param output
+	 * @param deleteTiles Whether to delete the tiles once merged
+	 * @return The number of similarities
+	 * @throws IOException If a tile is missing or incomplete
+	 */
+	public long merge(File output, boolean deleteTiles) throws IOException {
+		int numBlocks = getNumBlocks();
+		int bufferSize = (int) Math.max(4096, Math.min(1 << 20, memoryBudget / 4 / Math.max(1, numBlocks)));
+		long merged = 0;
+		File temporary = new File(output.getPath() + ".tmp");
+		try (SimilarityRunFile.Writer out = new SimilarityRunFile.Writer(temporary, bufferSize)) {
+			for (int a = 0; a < numBlocks; a++) {
+				List<File> runs = new ArrayList<File>();
+				for (int b = a; b < numBlocks; b++) runs.add(getTileFile(a, b));
+				merged += SimilarityRunFile.merge(runs, out, bufferSize);
+			}
+			out.finish();
+		}
+		if (!temporary.renameTo(output)) throw new IOException("could not rename " + temporary + " to " + output);
+		if (deleteTiles) {
+			for (int a = 0; a < numBlocks; a++) {
+				for (int b = a; b < numBlocks; b++) getTileFile(a, b).delete();
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Runs the three steps
+	 * @param output The final run
+	 * @return The number of non-zero similarities
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public long build(File output) throws IOException, SQLException {
+		prepare();
+		buildTiles();
+		return merge(output, true);
+	}
+
+	/**
+	 * Inserts the similarities of a run in the "similarities" table (replacing its contents, so saving again doesn't
+	 * duplicate the rows), committing every DatabaseWriter.DEFAULT_BATCH_SIZE rows,
+	 * then records that the table is complete (see SimilarityModel.setComplete)
+	 * @param run
+	 * @param c
+	 * @return The number of rows inserted
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public static long saveToDatabase(File run, Connection c) throws IOException, SQLException {
+		long rows = 0;
+		SimilarityModel.setComplete(c, false);
+		try (Statement s = c.createStatement()) {
+			s.execute("DELETE FROM similarities");
+		}
+		try (SimilarityRunFile.Reader in = new SimilarityRunFile.Reader(run);
+				PreparedStatement ps = c.prepareStatement("INSERT INTO similarities (item1, item2, similarity) VALUES (?, ?, ?)")) {
+			while (in.next()) {
+				ps.setInt(1, in.item1);
+				ps.setInt(2, in.item2);
+				ps.setFloat(3, in.similarity);
+				ps.addBatch();
+				if (++rows % DatabaseWriter.DEFAULT_BATCH_SIZE == 0) {
+					ps.executeBatch();
+					c.commit();
+				}
+			}
+			ps.executeBatch();
+			c.commit();
+		}
+		SimilarityModel.setComplete(c, true);
+		return rows;
+	}
+
+	/**
+	 * @return The sum of the peak usage of the heap memory pools since the JVM started
+	 */
+	public static long getPeakHeapUsage() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	/**
+	 * Appends ints and bytes to a file through a direct buffer (little endian, as RatingSnapshot.Input reads them)
+	 */
+	private static class ColumnWriter implements AutoCloseable {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+		ColumnWriter(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void putInt(int value) throws IOException {
+			if (buffer.remaining() < 4) drain();
+			buffer.putInt(value);
+		}
+
+		void put(byte value) throws IOException {
+			if (!buffer.hasRemaining()) drain();
+			buffer.put(value);
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Builds every similarity within the memory budget, leaving the sorted run in the directory (and inserting it in
+	 * the "similarities" table with "save"). Run the JVM with -Xmx a little above the budget
+	 * Usage: BlockedSimilarityBuilder [budget in MB] [threads] [directory] [save]
+	 */
+	public static void main(String[] args) {
+		long budget = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		File directory = new File(args.length > 2 ? args[2] : "similarity-build");
+		boolean save = args.length > 3 && args[3].equals("save");
+
+		SimpleDB s1 = new SimpleDB();
+		long start = System.nanoTime();
+		try {
+			BlockedSimilarityBuilder builder = new BlockedSimilarityBuilder(s1.c, budget, threads, directory);
+			File output = new File(directory, "similarities.run");
+			long pairs = builder.build(output);
+			System.out.println(String.format("%d non-zero similarities in %s, %.1fs, peak heap %.1fMB (budget %dMB)",
+					pairs, output, (System.nanoTime() - start) / 1e9, getPeakHeapUsage() / 1e6, budget >> 20));
+			if (save) System.out.println(saveToDatabase(output, s1.c) + " similarities saved");
+			s1.c.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		System.out.println("FINISHED PROGRAM!!!");
+	}
+}
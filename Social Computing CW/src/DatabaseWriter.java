@@ -0,0 +1,240 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Write-behind writer for the "similarities", "predictions" and "predictions2" tables.
+ * The prepared statements are created once and kept open; rows are kept in memory and only sent to the database in
+ * JDBC batches (and committed) when enough rows are pending or enough time has passed since the last commit.
+ * Call flush() to force the pending rows out and close() when finished, otherwise the pending rows are lost. A write
+ * that fails is rolled back and reported with an IllegalStateException; its rows stay pending for the next flush.
+ * All the methods are synchronized, so several threads can share a writer. As the connection can only be used by one
+ * thread at a time, anyone else using it (e.g. to read) must also synchronize on the writer
+ */
+public class DatabaseWriter {
+
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	public static final long DEFAULT_COMMIT_INTERVAL = 5000;
+
+	private final Connection c;
+	private final int batchSize;
+	private final long commitInterval;
+
+	private PreparedStatement insertSimilarity;
+	private PreparedStatement updatePrediction;
+	private PreparedStatement updatePrediction2;
+
+	//rows not committed yet, kept until they are: the similarities can still be found by getSimilarity, and the rows of a
+	//failed flush are sent again by the next one
+	private final HashMap<Long,Float> pendingSimilarities = new HashMap<Long,Float>();
+	private final PendingPredictions pendingPredictions = new PendingPredictions();
+	private final PendingPredictions pendingPredictions2 = new PendingPredictions();
+
+	private long lastCommit = System.currentTimeMillis();
+	private long rowsWritten;
+	private long commits;
+
+
+	/**
+	 * Predictions waiting to be sent to the database, in the order they were added
+	 */
+	private static class PendingPredictions {
+
+		int[] users = new int[16];
+		int[] items = new int[16];
+		float[] predictions = new float[16];
+		int size;
+
+		void add(int user, int item, float prediction) {
+			if (size == users.length) {
+				users = Arrays.copyOf(users, size * 2);
+				items = Arrays.copyOf(items, size * 2);
+				predictions = Arrays.copyOf(predictions, size * 2);
+			}
+			users[size] = user;
+			items[size] = item;
+			predictions[size] = prediction;
+			size++;
+		}
+
+		void execute(PreparedStatement ps) throws SQLException {
+			for (int i = 0; i < size; i++) {
+				ps.setFloat(1, predictions[i]);
+				ps.setInt(2, users[i]);
+				ps.setInt(3, items[i]);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+
+
+	public DatabaseWriter(Connection con) {
+		this(con, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * @param con
+	 * @param batchSize The number of pending rows that triggers a commit
+	 * @param commitInterval The time (in milliseconds) after which pending rows are committed
+	 */
+	public DatabaseWriter(Connection con, int batchSize, long commitInterval) {
+		c = con;
+		this.batchSize = batchSize;
+		this.commitInterval = commitInterval;
+	}
+
+	/**
+	 * Adds a similarity to be inserted in the "similarities" table. The items must already be ordered (smallestIndex, greaterIndex)
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @param similarity
+	 * @throws IllegalStateException If the pending rows had to be written and that failed (the similarity stays pending)
+	 */
+	public synchronized void addSimilarity(int smallestIndex, int greaterIndex, float similarity) {
+		pendingSimilarities.put(SimilarityCache.key(smallestIndex, greaterIndex), similarity);
+		flushIfNeeded();
+	}
+
+	/**
+	 * Adds a prediction to be updated in the "predictions" table
+	 * @param user
+	 * @param item
+	 * @param prediction
+	 * @throws IllegalStateException If the pending rows had to be written and that failed (the prediction stays pending)
+	 */
+	public synchronized void addPrediction(int user, int item, float prediction) {
+		pendingPredictions.add(user, item, prediction);
+		flushIfNeeded();
+	}
+
+	/**
+	 * Adds a prediction to be updated in the "predictions2" table
+	 * @param user
+	 * @param item
+	 * @param prediction
+	 * @throws IllegalStateException If the pending rows had to be written and that failed (the prediction stays pending)
+	 */
+	public synchronized void addPrediction2(int user, int item, float prediction) {
+		pendingPredictions2.add(user, item, prediction);
+		flushIfNeeded();
+	}
+
+	/**
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @return The similarity waiting to be inserted for this pair, or NaN if there is none
+	 */
+	public synchronized float getPendingSimilarity(int smallestIndex, int greaterIndex) {
+		Float similarity = pendingSimilarities.get(SimilarityCache.key(smallestIndex, greaterIndex));
+		return similarity == null ? Float.NaN : similarity;
+	}
+
+	public synchronized int getPendingRows() {
+		return pendingSimilarities.size() + pendingPredictions.size + pendingPredictions2.size;
+	}
+
+	private void flushIfNeeded() {
+		if (getPendingRows() >= batchSize || System.currentTimeMillis() - lastCommit >= commitInterval) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends every pending row to the database and commits. If that fails the transaction is rolled back and the rows
+	 * stay pending, so the next flush sends them again
+	 * @throws IllegalStateException If the rows could not be written
+	 */
+	public synchronized void flush() {
+		int rows = getPendingRows();
+		lastCommit = System.currentTimeMillis();
+		if (rows == 0) return;
+		long start = System.nanoTime();
+		try {
+			//the updates first, as sending them twice is harmless: with journal_mode=off a rollback can't undo what was sent
+			if (pendingPredictions.size > 0) {
+				if (updatePrediction == null) {
+					updatePrediction = c.prepareStatement("UPDATE predictions SET prediction = ? WHERE userid = ? AND profileid = ?");
+				}
+				pendingPredictions.execute(updatePrediction);
+			}
+			if (pendingPredictions2.size > 0) {
+				if (updatePrediction2 == null) {
+					updatePrediction2 = c.prepareStatement("UPDATE predictions2 SET prediction = ? WHERE userid = ? AND profileid = ?");
+				}
+				pendingPredictions2.execute(updatePrediction2);
+			}
+			if (!pendingSimilarities.isEmpty()) {
+				if (insertSimilarity == null) {
+					insertSimilarity = c.prepareStatement("INSERT INTO similarities (item1, item2, similarity) VALUES (?, ?, ?)");
+				}
+				for (Map.Entry<Long,Float> similarity : pendingSimilarities.entrySet()) {
+					insertSimilarity.setInt(1, (int) (similarity.getKey() >> 32));
+					insertSimilarity.setInt(2, (int) (long) similarity.getKey());
+					insertSimilarity.setFloat(3, similarity.getValue());
+					insertSimilarity.addBatch();
+				}
+				insertSimilarity.executeBatch();
+			}
+			c.commit();
+		} catch (SQLException e) {
+			rollback(e);
+			throw new IllegalStateException("could not write " + rows + " rows, they are still pending", e);
+		}
+		commits++;
+		Metrics.COMMIT.recordSince(start);
+		Metrics.ROWS_WRITTEN.add(rows);
+		pendingSimilarities.clear();
+		pendingPredictions.size = 0;
+		pendingPredictions2.size = 0;
+		rowsWritten += rows;
+	}
+
+	/**
+	 * Undoes what a failed flush sent, and the batches it didn't send
+	 * @param cause The failure, to which a failure to roll back is added
+	 */
+	private void rollback(SQLException cause) {
+		try {
+			if (insertSimilarity != null) insertSimilarity.clearBatch();
+			if (updatePrediction != null) updatePrediction.clearBatch();
+			if (updatePrediction2 != null) updatePrediction2.clearBatch();
+			c.rollback();
+		} catch (SQLException e) {
+			cause.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Flushes the pending rows and closes the prepared statements
+	 * @throws IllegalStateException If the pending rows could not be written (the statements are closed anyway)
+	 */
+	public synchronized void close() {
+		try {
+			flush();
+		} finally {
+			try {
+				if (insertSimilarity != null) insertSimilarity.close();
+				if (updatePrediction != null) updatePrediction.close();
+				if (updatePrediction2 != null) updatePrediction2.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			insertSimilarity = null;
+			updatePrediction = null;
+			updatePrediction2 = null;
+		}
+	}
+
+	public synchronized long getRowsWritten() {
+		return rowsWritten;
+	}
+
+	public synchronized long getCommits() {
+		return commits;
+	}
+}
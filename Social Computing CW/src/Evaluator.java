@@ -0,0 +1,412 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+
+/**
+ * Evaluates predictors against held-out ratings on a pool of worker threads: MAE, RMSE and coverage (the ratio of
+ * held-out ratings that could be predicted at all) are reduced with lock-free adders as the predictions are made, so
+ * the held-out ratings never need to be materialized in a map.
+ * The held-out ratings are either the "testdata2" pairs, read from the database in chunks while the workers predict the
+ * previous ones, or the folds of a k-fold split of the ratings. A rating belongs to the fold given by a hash of its
+ * (user, item) pair, so the folds are the same on every run and nothing has to be copied in the database: the training
+ * matrix of a fold is the rating matrix without the ratings of that fold
+ */
+public class Evaluator {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+	private final int threads;
+	private final int chunkSize;
+
+
+	public Evaluator(int threads) {
+		this(threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param threads The number of worker threads
+	 * @param chunkSize The number of held-out ratings a worker predicts at a time
+	 */
+	public Evaluator(int threads, int chunkSize) {
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * The errors of the predictions of a set of held-out ratings
+	 */
+	public static class Result {
+
+		public final long total;      //held-out ratings
+		public final long covered;    //held-out ratings that could be predicted
+		public final double mae;
+		public final double rmse;
+
+		public Result(long total, long covered, double mae, double rmse) {
+			this.total = total;
+			this.covered = covered;
+			this.mae = mae;
+			this.rmse = rmse;
+		}
+
+		public double getCoverage() {
+			return total == 0 ? 0 : (double) covered / total;
+		}
+
+		/**
+		 * @param results The results of every fold
+		 * @return The results of all the folds together
+		 */
+		public static Result combine(Result[] results) {
+			long total = 0;
+			long covered = 0;
+			double absoluteErrors = 0;
+			double squaredErrors = 0;
+			for (Result result : results) {
+				total += result.total;
+				covered += result.covered;
+				absoluteErrors += result.mae * result.covered;
+				squaredErrors += result.rmse * result.rmse * result.covered;
+			}
+			return new Result(total, covered, covered == 0 ? Double.NaN : absoluteErrors / covered, covered == 0 ? Double.NaN : Math.sqrt(squaredErrors / covered));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("MAE = %.6f, RMSE = %.6f, coverage = %.4f (%d/%d)", mae, rmse, getCoverage(), covered, total);
+		}
+	}
+
+	/**
+	 * Lock-free accumulator of the errors, shared by all the workers
+	 */
+	private static class Errors {
+
+		final DoubleAdder absoluteErrors = new DoubleAdder();
+		final DoubleAdder squaredErrors = new DoubleAdder();
+		final LongAdder total = new LongAdder();
+		final LongAdder covered = new LongAdder();
+
+		void add(float prediction, int realRating) {
+			total.increment();
+			if (Float.isNaN(prediction) || Float.isInfinite(prediction)) return;
+			double error = prediction - realRating;
+			absoluteErrors.add(Math.abs(error));
+			squaredErrors.add(error * error);
+			covered.increment();
+		}
+
+		Result result() {
+			long n = covered.sum();
+			return new Result(total.sum(), n, n == 0 ? Double.NaN : absoluteErrors.sum() / n, n == 0 ? Double.NaN : Math.sqrt(squaredErrors.sum() / n));
+		}
+	}
+
+	/**
+	 * Evaluates the predictions of the "testdata2" pairs against their real rating in the rating matrix (pairs without a
+	 * real rating are skipped). The pairs are read in chunks, at most two chunks per worker ahead of the workers
+	 * @param c
+	 * @param connectionLock Held while reading from the connection, as the predictor might use it too (for an ItemBased, its writer)
+	 * @param predictor The predictor to evaluate, or null to evaluate the predictions stored in "testdata2"
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @return The errors of the predictions
+	 * @throws IllegalStateException If a chunk could not be evaluated (the errors of the others would be a partial result)
+	 */
+	public Result evaluateTestSet(Connection c, Object connectionLock, final RatingPredictor predictor, final RatingMatrix allRatings) {
+		final Errors errors = new Errors();
+		final Semaphore chunksAhead = new Semaphore(2 * threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> chunks = new ArrayList<>();
+
+		try {
+			Statement s;
+			ResultSet rs;
+			synchronized (connectionLock) {
+				s = c.createStatement();
+				rs = s.executeQuery("select * from testdata2");
+			}
+			boolean more = true;
+			while (more) {
+				final int[] users = new int[chunkSize];
+				final int[] items = new int[chunkSize];
+				final float[] stored = new float[chunkSize];
+				int n = 0;
+				synchronized (connectionLock) {
+					while (n < chunkSize && (more = rs.next())) {
+						users[n] = rs.getInt(1);
+						items[n] = rs.getInt(2);
+						stored[n] = rs.getFloat(3);
+						n++;
+					}
+				}
+				if (n == 0) break;
+
+				final int size = n;
+				chunksAhead.acquire();
+				chunks.add(pool.submit(() -> {
+					try {
+						for (int i = 0; i < size; i++) {
+							int itemIndex = allRatings.getItemIndex(items[i]);
+							int userIndex = allRatings.getUserIndex(users[i]);
+							int realRating = itemIndex < 0 || userIndex < 0 ? 0 : allRatings.getRating(itemIndex, userIndex);
+							if (realRating == 0) continue;
+							errors.add(predictor == null ? stored[i] : predictor.predict(users[i], items[i]), realRating);
+						}
+					} finally {
+						chunksAhead.release();
+					}
+				}));
+			}
+			synchronized (connectionLock) {
+				rs.close();
+				s.close();
+			}
+			for (Future<?> chunk : chunks) chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while evaluating the test set", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("a chunk of the test set could not be evaluated", e.getCause());
+		} catch (SQLException e) {
+			throw new IllegalStateException("could not read the test set", e);
+		} finally {
+			pool.shutdownNow();
+		}
+		return errors.result();
+	}
+
+	/**
+	 * @param user
+	 * @param item
+	 * @param folds
+	 * @return The fold (from 0 to folds - 1) of the rating of 'item' by 'user'
+	 */
+	public static int getFold(int user, int item, int folds) {
+		long h = SimilarityCache.key(user, item) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 31;
+		return (int) ((h >>> 1) % folds);
+	}
+
+	/**
+	 * @param allRatings
+	 * @param folds
+	 * @param fold
+	 * @return The matrix of the ratings that are not in the fold 'fold'
+	 */
+	public static RatingMatrix getTrainingMatrix(RatingMatrix allRatings, int folds, int fold) {
+		RatingMatrix.Builder builder = new RatingMatrix.Builder(allRatings.getNumRatings());
+		for (int i = 0; i < allRatings.getNumItems(); i++) {
+			int item = allRatings.itemIds[i];
+			for (int pos = allRatings.itemOffsets[i]; pos < allRatings.itemOffsets[i + 1]; pos++) {
+				int user = allRatings.userIds[allRatings.itemUsers[pos]];
+				if (getFold(user, item, folds) != fold) builder.add(user, item, allRatings.itemRatings[pos]);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param allRatings
+	 * @param heldOut The (user, item) pairs to leave out (index 0: user id, index 1: item id), e.g. SimpleDB.getTestPairs()
+	 * @return The matrix of the ratings that are not in 'heldOut'
+	 */
+	public static RatingMatrix getTrainingMatrix(RatingMatrix allRatings, List<int[]> heldOut) {
+		HashSet<Long> pairs = new HashSet<Long>();
+		for (int[] pair : heldOut) pairs.add(SimilarityCache.key(pair[0], pair[1]));
+		RatingMatrix.Builder builder = new RatingMatrix.Builder(allRatings.getNumRatings());
+		for (int i = 0; i < allRatings.getNumItems(); i++) {
+			int item = allRatings.itemIds[i];
+			for (int pos = allRatings.itemOffsets[i]; pos < allRatings.itemOffsets[i + 1]; pos++) {
+				int user = allRatings.userIds[allRatings.itemUsers[pos]];
+				if (!pairs.contains(SimilarityCache.key(user, item))) builder.add(user, item, allRatings.itemRatings[pos]);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param allRatings
+	 * @return The average rating of every user of the matrix, as SimpleDB.getAvgUserRatings would return them
+	 */
+	public static HashMap<Integer,Float> getAverageRatings(RatingMatrix allRatings) {
+		HashMap<Integer,Float> avgRatings = new HashMap<Integer,Float>();
+		for (int u = 0; u < allRatings.getNumUsers(); u++) {
+			float sum = 0;
+			for (int pos = allRatings.userOffsets[u]; pos < allRatings.userOffsets[u + 1]; pos++) sum += allRatings.userRatings[pos];
+			avgRatings.put(allRatings.userIds[u], sum / allRatings.getNumRatingsForUser(u));
+		}
+		return avgRatings;
+	}
+
+	/**
+	 * Evaluates a predictor built from the ratings that are not in the fold 'fold' against the ratings of that fold
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param folds
+	 * @param fold
+	 * @param factory Builds the predictor from a training matrix and the average user ratings in it
+	 * @return The errors of the predictions
+	 * @throws IllegalStateException If a chunk could not be evaluated
+	 */
+	public Result evaluateFold(final RatingMatrix allRatings, final int folds, final int fold, BiFunction<RatingMatrix, HashMap<Integer,Float>, RatingPredictor> factory) {
+		RatingMatrix training = getTrainingMatrix(allRatings, folds, fold);
+		final RatingPredictor predictor = factory.apply(training, getAverageRatings(training));
+		final Errors errors = new Errors();
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final int numItems = allRatings.getNumItems();
+		//chunks of items, of about 'chunkSize' ratings on average
+		final int itemsPerChunk = Math.max(1, (int) ((long) chunkSize * numItems / Math.max(1, allRatings.getNumRatings())));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(pool.submit(() -> {
+				int start;
+				while ((start = nextChunk.getAndAdd(itemsPerChunk)) < numItems) {
+					int end = Math.min(start + itemsPerChunk, numItems);
+					for (int i = start; i < end; i++) {
+						int item = allRatings.itemIds[i];
+						for (int pos = allRatings.itemOffsets[i]; pos < allRatings.itemOffsets[i + 1]; pos++) {
+							int user = allRatings.userIds[allRatings.itemUsers[pos]];
+							if (getFold(user, item, folds) == fold) errors.add(predictor.predict(user, item), allRatings.itemRatings[pos]);
+						}
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+
+		try {
+			for (Future<?> worker : workers) worker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while evaluating fold " + fold, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("fold " + fold + " could not be evaluated", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return errors.result();
+	}
+
+	/**
+	 * k-fold cross-validation: evaluates every fold in turn
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param folds
+	 * @param factory Builds the predictor from a training matrix and the average user ratings in it
+	 * @return The errors of every fold
+	 */
+	public Result[] crossValidate(RatingMatrix allRatings, int folds, BiFunction<RatingMatrix, HashMap<Integer,Float>, RatingPredictor> factory) {
+		Result[] results = new Result[folds];
+		for (int fold = 0; fold < folds; fold++) {
+			results[fold] = evaluateFold(allRatings, folds, fold, factory);
+		}
+		return results;
+	}
+
+	/**
+	 * Similarities calculated on demand from a training matrix and cached, so an ItemBased evaluated on a fold never
+	 * uses (or fills) the "similarities" table, which was calculated from every rating
+	 */
+	static class TrainingSimilarities implements SimilarityStore {
+
+		private final RatingMatrix training;
+		private final float[] userAverages;
+		private final SimilarityCache cache = new SimilarityCache();
+
+		TrainingSimilarities(RatingMatrix training, HashMap<Integer,Float> avgRatings) {
+			this.training = training;
+			userAverages = training.getUserAverages(avgRatings);
+		}
+
+		@Override
+		public float getSimilarity(int smallestIndex, int greaterIndex) {
+			float similarity = cache.get(smallestIndex, greaterIndex);
+			if (!Float.isNaN(similarity)) return similarity;
+			int itemIndex1 = training.getItemIndex(smallestIndex);
+			int itemIndex2 = training.getItemIndex(greaterIndex);
+			similarity = itemIndex1 < 0 || itemIndex2 < 0 ? 0.0f : SimilarityKernel.adjustedCosine(training, itemIndex1, itemIndex2, userAverages);
+			cache.put(smallestIndex, greaterIndex, similarity);
+			return similarity;
+		}
+	}
+
+	/**
+	 * Builds the predictor of a variant of the item-based recommender:
+	 * "positive" (getPrediction) or "negative" (getPredictionConsideringNegativeSims), optionally followed by
+	 * ":k" to only consider the top k neighbours of every item and ":k:minSimilarity" to also prune the neighbours below a similarity
+	 * @param variant
+	 * @param ib The recommender to use, or null to create one computing the similarities from 'allRatings' only
+	 * @param allRatings
+	 * @param avgRatings
+	 * @return The predictor
+	 */
+	static RatingPredictor createPredictor(String variant, ItemBased ib, final RatingMatrix allRatings, final HashMap<Integer,Float> avgRatings) {
+		String[] parts = variant.split(":");
+		if (ib == null) {
+			ib = new ItemBased(null);
+			ib.similarityStore = new TrainingSimilarities(allRatings, avgRatings);
+		}
+		if (parts.length > 1) {
+			float minSimilarity = parts.length > 2 ? Float.parseFloat(parts[2]) : 0.0f;
+			ib.neighbourhoodModel = NeighbourhoodModel.build(allRatings, allRatings.getUserAverages(avgRatings), Integer.parseInt(parts[1]), 1, minSimilarity, parts[0].equals("negative"));
+		}
+		final ItemBased recommender = ib;
+		if (parts[0].equals("negative")) return (user, item) -> recommender.calculatePredictionConsideringNegativeSims(user, item, allRatings, avgRatings);
+		return (user, item) -> recommender.calculatePrediction(user, item, allRatings, avgRatings);
+	}
+
+	/**
+	 * Compares variants of the item-based recommender with k-fold cross-validation, or on the "testdata2" pairs if the
+	 * number of folds is 0, trained on the ratings without those pairs ("stored" evaluates the predictions stored in
+	 * "testdata2", as getMeanAbsoluteError did)
+	 * Usage: Evaluator [threads] [folds] [variant...] with variants like positive, negative, negative:50, negative:50:0.1
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int folds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String[] variants = args.length > 2 ? new String[args.length - 2] : new String[] {"positive", "negative"};
+		for (int i = 2; i < args.length; i++) variants[i - 2] = args[i];
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		Evaluator evaluator = new Evaluator(threads);
+		RatingMatrix testTraining = null;
+		HashMap<Integer,Float> testAverages = null;
+
+		for (final String variant : variants) {
+			long start = System.nanoTime();
+			Result result;
+			if (folds > 0) {
+				Result[] results = evaluator.crossValidate(allRatings, folds, (training, averages) -> createPredictor(variant, null, training, averages));
+				for (int fold = 0; fold < folds; fold++) System.out.println(variant + "\tfold " + fold + "\t" + results[fold]);
+				result = Result.combine(results);
+			} else if (variant.equals("stored")) {
+				result = evaluator.evaluateTestSet(s1.c, s1, null, allRatings);
+			} else {
+				//the predictor must not see the ratings it is scored on
+				if (testTraining == null) {
+					testTraining = getTrainingMatrix(allRatings, s1.getTestPairs());
+					testAverages = getAverageRatings(testTraining);
+				}
+				result = evaluator.evaluateTestSet(s1.c, s1, createPredictor(variant, null, testTraining, testAverages), allRatings);
+			}
+			System.out.println(String.format("%s\t%s\t%.1fs", variant, result, (System.nanoTime() - start) / 1e9));
+		}
+		System.out.println("FINISHED PROGRAM!!!");
+	}
+}
@@ -0,0 +1,476 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Similarity model that can be kept up to date as new ratings arrive, instead of being rebuilt from scratch.
+ * For every pair of items rated by at least one common user it stores the sufficient statistics of the adjusted cosine
+ * similarity: the number of co-raters, the sum of the products of both deviations from the user average and the sums
+ * of the squared deviations of each item. A user contributes to the statistics of every pair of items they rated, so
+ * when their ratings change (and with them, their average rating), their old contribution is subtracted from those pairs and
+ * the new one added; no other pair is touched.
+ * The model is complete: a pair without statistics has no co-raters, i.e. a similarity of 0
+ */
+public class IncrementalSimilarityModel implements SimilarityStore {
+
+	//largest table: a power of two that fits in an array
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+
+	//open-addressing table of pairs, keyed on SimilarityCache.key(smallest item id, greatest item id); key 0 = free slot
+	private long[] keys;
+	private int[] coRaters;
+	private double[] crossProducts;
+	private double[] squares1;    //of the item with the smallest id
+	private double[] squares2;    //of the item with the greatest id
+	private int size;
+
+
+	/**
+	 * Calculates the statistics of every pair from the ratings, one user at a time
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings. This map is updated when new ratings are ingested
+	 */
+	public IncrementalSimilarityModel(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		this(allRatings, avgRatings, 1 << 16);
+
+		float[] userAverages = allRatings.getUserAverages(avgRatings);
+		for (int u = 0; u < allRatings.getNumUsers(); u++) {
+			int start = allRatings.userOffsets[u];
+			int end = allRatings.userOffsets[u + 1];
+			addContribution(Arrays.copyOfRange(allRatings.userItems, start, end), Arrays.copyOfRange(allRatings.userRatings, start, end), allRatings.itemIds, userAverages[u], 1);
+		}
+	}
+
+	/**
+	 * An empty model
+	 */
+	private IncrementalSimilarityModel(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, int capacity) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		allocate(capacity);
+	}
+
+	/**
+	 * Loads the statistics saved in the "similaritystats" table (by saveToDatabase and saveChangedPairs) instead of
+	 * calculating them from the ratings
+	 * @param c
+	 * @param allRatings The ratings the statistics were calculated from
+	 * @param avgRatings The average user ratings they were calculated with. This map is updated when new ratings are ingested
+	 * @return The model, or null if no statistics were saved
+	 * @throws SQLException
+	 * @throws IllegalStateException If there are more pairs than the table can hold
+	 */
+	public static IncrementalSimilarityModel load(Connection c, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) throws SQLException {
+		Statement s = c.createStatement();
+		ResultSet rs = s.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'similaritystats'");
+		boolean saved = rs.next() && rs.getInt(1) > 0;
+		rs.close();
+		long pairs = 0;
+		if (saved) {
+			rs = s.executeQuery("SELECT count(*) FROM similaritystats WHERE corators > 0");
+			pairs = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+		}
+		if (pairs == 0) {
+			s.close();
+			return null;
+		}
+
+		int capacity = 1 << 16;
+		while (capacity < MAX_CAPACITY && capacity * 3L / 4 < pairs) capacity <<= 1;
+		IncrementalSimilarityModel model = new IncrementalSimilarityModel(allRatings, avgRatings, capacity);
+		rs = s.executeQuery("SELECT item1, item2, corators, crossproduct, squares1, squares2 FROM similaritystats WHERE corators > 0");
+		while (rs.next()) {
+			int slot = model.addPair(SimilarityCache.key(rs.getInt(1), rs.getInt(2)));
+			model.coRaters[slot] = rs.getInt(3);
+			model.crossProducts[slot] = rs.getDouble(4);
+			model.squares1[slot] = rs.getDouble(5);
+			model.squares2[slot] = rs.getDouble(6);
+		}
+		rs.close();
+		s.close();
+		return model;
+	}
+
+	public RatingMatrix getRatings() {
+		return allRatings;
+	}
+
+	/**
+	 * @return The number of pairs with at least one co-rater
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public float getSimilarity(int smallestIndex, int greaterIndex) {
+		int slot = findSlot(SimilarityCache.key(smallestIndex, greaterIndex));
+		if (keys[slot] == 0) return 0.0f;
+		return SimilarityKernel.similarity(crossProducts[slot], squares1[slot], squares2[slot]);
+	}
+
+	/**
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @return The number of users who rated both items
+	 */
+	public int getCoRaters(int smallestIndex, int greaterIndex) {
+		int slot = findSlot(SimilarityCache.key(smallestIndex, greaterIndex));
+		return keys[slot] == 0 ? 0 : coRaters[slot];
+	}
+
+	/**
+	 * Ingests a batch of new or changed ratings: the statistics of the pairs of items rated by the affected users are
+	 * updated (taking into account the change of their average rating), the rating matrix is rebuilt with the new
+	 * ratings and the average user ratings are updated to the mean of the new ratings of each affected user
+	 * @param users
+	 * @param items
+	 * @param ratings The new ratings, from 1 to 5 (users[i] rated items[i] with ratings[i])
+	 * @return The keys (see SimilarityCache.key) of the pairs whose similarity changed
+	 */
+	public long[] ingest(int[] users, int[] items, int[] ratings) {
+		//group the changes by user
+		HashMap<Integer, HashMap<Integer,Integer>> changesByUser = new HashMap<Integer, HashMap<Integer,Integer>>();
+		for (int i = 0; i < users.length; i++) {
+			HashMap<Integer,Integer> changes = changesByUser.get(users[i]);
+			if (changes == null) {
+				changes = new HashMap<Integer,Integer>();
+				changesByUser.put(users[i], changes);
+			}
+			changes.put(items[i], ratings[i]);
+		}
+
+		//the keys are collected as they are first seen, so the pair table is never scanned
+		LongFloatMap changedPairs = new LongFloatMap();
+		long[] changed = new long[16];
+		int numChanged = 0;
+		for (Integer user : changesByUser.keySet()) {
+			HashMap<Integer,Integer> changes = changesByUser.get(user);
+
+			//the old profile of the user, by item id
+			int userIndex = allRatings.getUserIndex(user);
+			HashMap<Integer,Integer> profile = new HashMap<Integer,Integer>();
+			if (userIndex >= 0) {
+				int start = allRatings.userOffsets[userIndex];
+				int end = allRatings.userOffsets[userIndex + 1];
+				int[] oldItems = new int[end - start];
+				byte[] oldRatings = Arrays.copyOfRange(allRatings.userRatings, start, end);
+				for (int pos = start; pos < end; pos++) {
+					oldItems[pos - start] = allRatings.itemIds[allRatings.userItems[pos]];
+					profile.put(oldItems[pos - start], (int) oldRatings[pos - start]);
+				}
+				float oldAverage = allRatings.getUserAverage(avgRatings, userIndex);
+				addContribution(oldItems, oldRatings, null, oldAverage, -1);
+			}
+
+			//the new profile, with its average
+			profile.putAll(changes);
+			int[] newItems = new int[profile.size()];
+			byte[] newRatings = new byte[profile.size()];
+			int n = 0;
+			for (Integer item : profile.keySet()) newItems[n++] = item;
+			Arrays.sort(newItems);
+			float sum = 0;
+			for (int i = 0; i < newItems.length; i++) {
+				newRatings[i] = (byte) (int) profile.get(newItems[i]);
+				sum += newRatings[i];
+			}
+			float newAverage = sum / newItems.length;
+			avgRatings.put(user, newAverage);
+			addContribution(newItems, newRatings, null, newAverage, 1);
+
+			for (int i = 0; i < newItems.length; i++) {
+				for (int j = i + 1; j < newItems.length; j++) {
+					long key = SimilarityCache.key(newItems[i], newItems[j]);
+					if (changedPairs.containsKey(key)) continue;
+					changedPairs.put(key, 0);
+					if (numChanged == changed.length) changed = Arrays.copyOf(changed, 2 * numChanged);
+					changed[numChanged++] = key;
+				}
+			}
+		}
+
+		allRatings = allRatings.withRatings(users, items, ratings);
+		return Arrays.copyOf(changed, numChanged);
+	}
+
+	/**
+	 * Adds (sign = 1) or subtracts (sign = -1) the contribution of one user to every pair of items they rated
+	 * @param items The items rated by the user, sorted (as item indices if 'itemIds' is given, as item ids otherwise)
+	 * @param ratings The ratings of the user for these items
+	 * @param itemIds To convert item indices to ids, or null
+	 * @param average The average rating of the user
+	 * @param sign
+	 */
+	private void addContribution(int[] items, byte[] ratings, int[] itemIds, float average, int sign) {
+		for (int i = 0; i < items.length; i++) {
+			double deviation1 = ratings[i] - average;
+			int item1 = itemIds == null ? items[i] : itemIds[items[i]];
+			for (int j = i + 1; j < items.length; j++) {
+				double deviation2 = ratings[j] - average;
+				int item2 = itemIds == null ? items[j] : itemIds[items[j]];
+				long key = SimilarityCache.key(item1, item2);
+				int slot = findSlot(key);
+				if (keys[slot] == 0) {
+					if (sign < 0) continue; //nothing to subtract from
+					slot = addPair(key);
+				}
+				coRaters[slot] += sign;
+				if (coRaters[slot] == 0) {
+					//reset the sums exactly, so rounding errors don't accumulate on pairs that lost every co-rater
+					crossProducts[slot] = 0;
+					squares1[slot] = 0;
+					squares2[slot] = 0;
+				} else {
+					crossProducts[slot] += sign * deviation1 * deviation2;
+					squares1[slot] += sign * deviation1 * deviation1;
+					squares2[slot] += sign * deviation2 * deviation2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a pair that is not in the table yet, without statistics, growing the table if needed
+	 * @param key
+	 * @return The slot of the pair
+	 */
+	private int addPair(long key) {
+		int slot = findSlot(key);
+		keys[slot] = key;
+		//in long, as 3 / 4 of the largest table overflows an int
+		if (++size > keys.length * 3L / 4) {
+			resize();
+			slot = findSlot(key);
+		}
+		return slot;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		coRaters = new int[capacity];
+		crossProducts = new double[capacity];
+		squares1 = new double[capacity];
+		squares2 = new double[capacity];
+	}
+
+	private int findSlot(long key) {
+		int mask = keys.length - 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Doubles the table
+	 * @throws IllegalStateException If it is already as large as it can be
+	 */
+	private void resize() {
+		if (keys.length >= MAX_CAPACITY) throw new IllegalStateException("more than " + (keys.length * 3L / 4) + " pairs with co-raters: the table can't grow any more");
+		long[] oldKeys = keys;
+		int[] oldCoRaters = coRaters;
+		double[] oldCrossProducts = crossProducts;
+		double[] oldSquares1 = squares1;
+		double[] oldSquares2 = squares2;
+		allocate(oldKeys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == 0) continue;
+			int slot = findSlot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			coRaters[slot] = oldCoRaters[i];
+			crossProducts[slot] = oldCrossProducts[i];
+			squares1[slot] = oldSquares1[i];
+			squares2[slot] = oldSquares2[i];
+		}
+	}
+
+	/**
+	 * Saves the statistics of every pair in the "similaritystats" table (replacing its contents) and the similarities in the
+	 * "similarities" table, and commits. The pairs without co-raters have no row, so the table is recorded as complete
+	 * (see SimilarityModel.setComplete); saveChangedPairs keeps it complete
+	 * @param c
+	 */
+	public void saveToDatabase(Connection c) {
+		try {
+			SimilarityModel.setComplete(c, false);
+			Statement s = c.createStatement();
+			s.execute("CREATE TABLE IF NOT EXISTS similaritystats (item1 INTEGER, item2 INTEGER, corators INTEGER, crossproduct REAL, squares1 REAL, squares2 REAL, PRIMARY KEY (item1, item2))");
+			s.execute("DELETE FROM similaritystats");
+			s.execute("DELETE FROM similarities");
+			s.close();
+			ArrayList<Long> all = new ArrayList<Long>(size);
+			for (long key : keys) {
+				if (key != 0) all.add(key);
+			}
+			long[] pairs = new long[all.size()];
+			for (int i = 0; i < pairs.length; i++) pairs[i] = all.get(i);
+			savePairs(c, pairs, false);
+			SimilarityModel.setComplete(c, true);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Saves the statistics and the similarities of the given pairs (e.g. the ones returned by ingest()), replacing their previous values, and commits
+	 * @param c
+	 * @param pairs The keys of the pairs (see SimilarityCache.key)
+	 */
+	public void saveChangedPairs(Connection c, long[] pairs) {
+		try {
+			savePairs(c, pairs, true);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void savePairs(Connection c, long[] pairs, boolean replace) throws SQLException {
+		PreparedStatement deleteSimilarity = c.prepareStatement("DELETE FROM similarities WHERE item1 = ? AND item2 = ?");
+		PreparedStatement insertSimilarity = c.prepareStatement("INSERT INTO similarities (item1, item2, similarity) VALUES (?, ?, ?)");
+		PreparedStatement insertStats = c.prepareStatement("INSERT OR REPLACE INTO similaritystats (item1, item2, corators, crossproduct, squares1, squares2) VALUES (?, ?, ?, ?, ?, ?)");
+		for (int i = 0; i < pairs.length; i++) {
+			int item1 = (int) (pairs[i] >>> 32);
+			int item2 = (int) pairs[i];
+			int slot = findSlot(pairs[i]);
+			if (replace) {
+				deleteSimilarity.setInt(1, item1);
+				deleteSimilarity.setInt(2, item2);
+				deleteSimilarity.addBatch();
+			}
+			insertSimilarity.setInt(1, item1);
+			insertSimilarity.setInt(2, item2);
+			insertSimilarity.setFloat(3, getSimilarity(item1, item2));
+			insertSimilarity.addBatch();
+			insertStats.setInt(1, item1);
+			insertStats.setInt(2, item2);
+			insertStats.setInt(3, keys[slot] == 0 ? 0 : coRaters[slot]);
+			insertStats.setDouble(4, keys[slot] == 0 ? 0 : crossProducts[slot]);
+			insertStats.setDouble(5, keys[slot] == 0 ? 0 : squares1[slot]);
+			insertStats.setDouble(6, keys[slot] == 0 ? 0 : squares2[slot]);
+			insertStats.addBatch();
+			if (i % DatabaseWriter.DEFAULT_BATCH_SIZE == DatabaseWriter.DEFAULT_BATCH_SIZE - 1 || i == pairs.length - 1) {
+				if (replace) deleteSimilarity.executeBatch();
+				insertSimilarity.executeBatch();
+				insertStats.executeBatch();
+			}
+		}
+		deleteSimilarity.close();
+		insertSimilarity.close();
+		insertStats.close();
+		c.commit();
+	}
+
+	/**
+	 * Daily job: loads the statistics saved in "similaritystats" and ingests the new or changed ratings of the
+	 * "ratingdeltas" table (userid, profileid, rating) into "alldata", "avguserratings", "similarities" and
+	 * "similaritystats", then empties "ratingdeltas". Only the pairs of the users in "ratingdeltas" are recalculated.
+	 * With "build" (or the first time, when there are no statistics yet), calculates the statistics of every pair from
+	 * scratch and saves them first
+	 * Usage: IncrementalSimilarityModel [build]
+	 */
+	public static void main(String[] args) {
+		boolean build = args.length > 0 && args[0].equals("build");
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+
+		try {
+			IncrementalSimilarityModel model = build ? null : load(s1.c, allRatings, avgRatings);
+			if (model != null) {
+				System.out.println("Pairs with co-raters loaded from similaritystats = " + model.size());
+			} else {
+				if (!build) System.out.println("No statistics in similaritystats yet: calculating them from every rating");
+				model = new IncrementalSimilarityModel(allRatings, avgRatings);
+				System.out.println("Pairs with co-raters = " + model.size());
+				model.saveToDatabase(s1.c);
+				if (build) {
+					System.out.println("FINISHED PROGRAM!!!");
+					return;
+				}
+			}
+
+			ArrayList<int[]> deltas = new ArrayList<int[]>();
+			Statement s = s1.c.createStatement();
+			ResultSet rs = s.executeQuery("select userid, profileid, rating from ratingdeltas order by rowid");
+			//only the last delta of a (user, item) pair counts, so the pair is inserted once in alldata
+			HashMap<Long,Integer> positions = new HashMap<Long,Integer>();
+			while (rs.next()) {
+				int[] delta = new int[] {rs.getInt(1), rs.getInt(2), rs.getInt(3)};
+				long pair = ((long) delta[0] << 32) | (delta[1] & 0xffffffffL);
+				Integer position = positions.get(pair);
+				if (position != null) {
+					deltas.set(position, delta);
+				} else {
+					positions.put(pair, deltas.size());
+					deltas.add(delta);
+				}
+			}
+			rs.close();
+			System.out.println("Ratings to ingest = " + deltas.size());
+
+			int[] users = new int[deltas.size()];
+			int[] items = new int[deltas.size()];
+			int[] ratings = new int[deltas.size()];
+			for (int i = 0; i < deltas.size(); i++) {
+				users[i] = deltas.get(i)[0];
+				items[i] = deltas.get(i)[1];
+				ratings[i] = deltas.get(i)[2];
+			}
+			long[] changed = model.ingest(users, items, ratings);
+			System.out.println("Pairs changed = " + changed.length);
+
+			//apply the new ratings and averages to the tables
+			PreparedStatement deleteRating = s1.c.prepareStatement("DELETE FROM alldata WHERE userid = ? AND profileid = ?");
+			PreparedStatement insertRating = s1.c.prepareStatement("INSERT INTO alldata (userid, profileid, rating) VALUES (?, ?, ?)");
+			HashMap<Integer,Boolean> affectedUsers = new HashMap<Integer,Boolean>();
+			for (int i = 0; i < users.length; i++) {
+				deleteRating.setInt(1, users[i]);
+				deleteRating.setInt(2, items[i]);
+				deleteRating.addBatch();
+				insertRating.setInt(1, users[i]);
+				insertRating.setInt(2, items[i]);
+				insertRating.setInt(3, ratings[i]);
+				insertRating.addBatch();
+				affectedUsers.put(users[i], true);
+			}
+			deleteRating.executeBatch();
+			insertRating.executeBatch();
+			deleteRating.close();
+			insertRating.close();
+
+			PreparedStatement deleteAverage = s1.c.prepareStatement("DELETE FROM avguserratings WHERE userid = ?");
+			PreparedStatement insertAverage = s1.c.prepareStatement("INSERT INTO avguserratings (userid, rating) VALUES (?, ?)");
+			for (Integer user : affectedUsers.keySet()) {
+				deleteAverage.setInt(1, user);
+				deleteAverage.addBatch();
+				insertAverage.setInt(1, user);
+				insertAverage.setFloat(2, avgRatings.get(user));
+				insertAverage.addBatch();
+			}
+			deleteAverage.executeBatch();
+			insertAverage.executeBatch();
+			deleteAverage.close();
+			insertAverage.close();
+
+			s.execute("DELETE FROM ratingdeltas");
+			s.close();
+
+			//commits everything
+			model.saveChangedPairs(s1.c, changed);
+			System.out.println("FINISHED PROGRAM!!!");
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
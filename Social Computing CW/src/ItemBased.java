@@ -1,363 +1,479 @@
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.HashMap;
-
-
-/**
- * 
- * @author Rafael and Alexis
- * Item-based collaborative filtering recommender system
- */
-public class ItemBased {
-	
-	//The following 2 hashmaps stores the users who have both rated item1 and item2, alongside the actual ratings
-	//We make sure the keys are always the same
-	public HashMap<Integer,Integer> item1Ratings;
-	public HashMap<Integer,Integer> item2Ratings;
-	
-	public Connection c;
-
-	
-	public ItemBased(Connection con) {
-		c = con;
-		item1Ratings = new HashMap<Integer,Integer>();
-		item2Ratings = new HashMap<Integer,Integer>();
-		
-	}
-	
-	/**
-	 * If the similarity between item1 and item2 has already been calculated, retrieve it from the database. Otherwise, calculate its value and save it in the database before returning it
-	 * @param item1
-	 * @param item2
-	 * @param allRatings The entire data structure containing all the ratings
-	 * @param avgRatings The average user ratings
-	 * @return The similarity between item1 and item2
-	 */
-	public float getSimilarity(int item1, int item2, HashMap<Integer, HashMap<Integer,Integer>> allRatings, HashMap<Integer,Float> avgRatings) {
-		
-		//similarity between an item and itself is always 1
-		if (item1 == item2) return 1.0f;
-		
-		//sort the index to avoid duplicate values in the database ( similarity(i,j) == similarity(j,i) )
-		int smallestIndex = item1 < item2 ? item1 : item2;
-		int greaterIndex = item1 < item2 ? item2 : item1;
-		
-		float similarity = 0.0f;
-		boolean found = false;
-		
-		
-		//try to retrieve similarity from database
-		String query = "SELECT * FROM similarities WHERE item1 = ? AND item2 = ?";
-		try {
-			PreparedStatement ps1 = c.prepareStatement(query);
-			ps1.setInt(1, smallestIndex);
-			ps1.setInt(2, greaterIndex);
-			ResultSet rs = ps1.executeQuery();
-			while (rs.next()) {
-				similarity = rs.getFloat(3);
-				found = true;
-			}
-			
-			if (found) {
-				//if we found the similarity in the database, we can return it
-				ps1.close();
-				rs.close();
-				return similarity;
-			}
-		} 
-		
-		catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		
-		//if we didn't return anything, we didn't find the similarity
-		
-		//get users who have both rated item1 and item2
-		getRelevantUsersWithRatings(smallestIndex, greaterIndex, allRatings);
-		
-		float numerator = 0;
-		double denominator1 = 0;
-		double denominator2 = 0;
-		
-		for (Integer user : item1Ratings.keySet()) { //equal to the keys of the second hash map
-			int item1Rating = item1Ratings.get(user);
-			int item2Rating = item2Ratings.get(user);
-			
-			float avgRating = avgRatings.get(user);
-			
-			numerator += (item1Rating - avgRating) * (item2Rating - avgRating);
-			denominator1 += Math.pow(item1Rating - avgRating, 2);
-			denominator2 += Math.pow(item2Rating - avgRating, 2);
-		}
-		
-		denominator1 =  Math.sqrt(denominator1);
-		denominator2 = Math.sqrt(denominator2);
-		similarity = 0.0f;
-		if (denominator1 * denominator2 != 0) { //if (denominator != 0)
-			similarity = (float) (numerator / (denominator1 * denominator2)) ;
-		}
-		//i.e., if denominator == 0, then similarity = 0 as previously defined
-			
-		//now that we calculated the similarity, save it in the database before returning
-		String insertQuery = "INSERT INTO similarities (item1, item2, similarity) VALUES (?, ?, ?)";
-		try {
-			PreparedStatement ps2 = c.prepareStatement(insertQuery);
-			ps2.setInt(1, smallestIndex);
-			ps2.setInt(2, greaterIndex);
-			ps2.setFloat(3, similarity);
-			ps2.executeUpdate();
-			ps2.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
-		
-		return similarity;
-	}
-	
-	/**
-	 * Returns the predicted rating for a given item by a given user and saves it in the database (table "predictions"). This method does not consider negative similarities during the calculations
-	 * @param user
-	 * @param item
-	 * @param allRatings The entire data structure containing all the ratings
-	 * @param avgRatings The average user ratings
-	 * @return The predicted rating for 'item' by 'user'
-	 */
-	public float getPrediction(int user, int item, HashMap<Integer, HashMap<Integer,Integer>> allRatings, HashMap<Integer,Float> avgRatings) {
-		
-		float numerator = 0;
-		float denominator = 0;
-	
-		for (Integer it : allRatings.keySet()) { //for every item
-			HashMap<Integer,Integer> usersAndRatingsForIt = allRatings.get(it); //every user who have rated "it" and the actual rating
-			
-			if (usersAndRatingsForIt.containsKey(user)) { //if user have rated the item
-				float similarity = getSimilarity(it, item, allRatings, avgRatings);
-				
-				//we exclude negative similarities in this method
-				if (similarity >= 0) {
-					int rating = usersAndRatingsForIt.get(user);
-					numerator += similarity * rating;
-					denominator += similarity;
-				}
-			}
-		}
-	
-		float prediction = Float.NaN;
-		
-		prediction = numerator / denominator;
-		
-		//prediction might still be NaN at this point
-		
-		if (Float.isNaN(prediction) && avgRatings.containsKey(user)) {
-			prediction = avgRatings.get(user);
-		}
-		
-		else if (Float.isNaN(prediction) && !avgRatings.containsKey(user)) {
-			//assign item average rating as the predicted rating
-			float num = 0;
-			int n = 0;
-			HashMap<Integer, Integer> usersAndRatings = allRatings.get(item);
-			for (Integer u : usersAndRatings.keySet()) {
-				int r = usersAndRatings.get(u);
-				num += r;
-				n++;
-			}
-			
-			prediction = num/n;
-			
-		}
-		
-		//rating ranges from 1 to 5
-		else if (prediction > 5) prediction = 5;
-		else if (prediction < 1) prediction = 1;
-		
-		//save it in the database before returning
-		String updateQuery = "UPDATE predictions SET prediction = ? WHERE userid = ? AND profileid = ?";
-		try {
-			PreparedStatement ps = c.prepareStatement(updateQuery);
-			ps.setFloat(1, prediction);
-			ps.setInt(2, user);
-			ps.setInt(3, item);
-			ps.executeUpdate();
-//			c.commit();
-			ps.close();
-			
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
-		
-		return prediction;
-	}
-	
-	/**
-	 * Returns the predicted rating for a given item by a given user and saves it in the database (table "predictions2"). This method considers negative similarities during the calculations
-	 * @param user
-	 * @param item
-	 * @param allRatings The entire data structure containing all the ratings
-	 * @param avgRatings The average user ratings
-	 * @return The predicted rating for 'item' by 'user'
-	 */
-	public float getPredictionConsideringNegativeSims(int user, int item, HashMap<Integer, HashMap<Integer,Integer>> allRatings, HashMap<Integer,Float> avgRatings) {
-		
-		float prediction = Float.NaN;
-		
-		//if the user does not have an average rating, it means he didn't rate any item. In this case, we assign the item average rating as the predicted rating
-		if (!avgRatings.containsKey(user)) {
-			float num = 0;
-			int n = 0;
-			HashMap<Integer, Integer> usersAndRatings = allRatings.get(item);
-			for (Integer u : usersAndRatings.keySet()) {
-				int r = usersAndRatings.get(u);
-				num += r;
-				n++;
-			}
-			
-			prediction = num/n;
-		}
-		
-		else {
-		
-			float numerator = 0;
-			float denominator = 0;
-			
-			//in order to consider the negative similarities without decreasing the overall accuracy we use the baseline predictor
-			float baselinePredictor = getBaselinePredictor(user, item, allRatings, avgRatings);
-		
-			for (Integer it : allRatings.keySet()) { //for every item
-				HashMap<Integer,Integer> usersAndRatingsForIt = allRatings.get(it); //every user who have rated "it" and the actual rating
-				
-				if (usersAndRatingsForIt.containsKey(user)) { //if user have rated the item
-					float similarity = getSimilarity(it, item, allRatings, avgRatings);
-					int rating = usersAndRatingsForIt.get(user);
-					
-					
-					numerator += similarity * (rating - baselinePredictor);
-					denominator += Math.abs(similarity);
-					
-				}
-			}
-		
-			
-			
-			prediction = (numerator / denominator) + baselinePredictor;
-			
-			//prediction might still be NaN at this point
-			if (Float.isNaN(prediction)) {
-				prediction = avgRatings.get(user);
-				//note that we already made sure the user has an average rating
-			}
-			
-			//rating ranges from 1 to 5
-			else if (prediction > 5) prediction = 5;
-			else if (prediction < 1) prediction = 1;
-		}
-		
-		//save it in the database before returning
-		String updateQuery = "UPDATE predictions2 SET prediction = ? WHERE userid = ? AND profileid = ?";
-		try {
-			PreparedStatement ps = c.prepareStatement(updateQuery);
-			ps.setFloat(1, prediction);
-			ps.setInt(2, user);
-			ps.setInt(3, item);
-			ps.executeUpdate();
-//			c.commit();
-			ps.close();
-			
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
-		
-		return prediction;
-	}
-	
-	/**
-	 * Calculates the mean absolute error for a set of predictions for which we know the actual true value. Note that all the entries in the "predictions" hash map must also be in the "allRatings" hash map (obviously, the rating - and only the rating - may differ)
-	 * @param predictions The set of predictions
-	 * @param allRatings The entire data structure containing all the ratings
-	 * @return The mean absolute error (MAE)
-	 */
-	public float getMeanAbsoluteError(HashMap<Integer, HashMap<Integer,Float>> predictions, HashMap<Integer, HashMap<Integer,Integer>> allRatings) {
-		
-		int n = 0;
-		float numerator = 0;
-		
-		for (Integer item : predictions.keySet()) {
-			HashMap<Integer,Float> usersAndPreds = predictions.get(item);
-			for (Integer user : usersAndPreds.keySet()) {
-				float pred = usersAndPreds.get(user); //the predicted rating for 'item' by 'user'
-				
-				int realRating = allRatings.get(item).get(user);
-				
-				numerator += Math.abs(pred - realRating);
-				n++;
-			}
-		}
-		
-		float mae = numerator / n;
-		return mae;
-	}
-	
-	/**
-	 * Finds all the users who have rated both item1 and item2 and save their ratings for these 2 items in "item1Ratings" and "item2Ratings" hash maps (class attributes) 
-	 * @param item1
-	 * @param item2
-	 * @param allRatings The entire data structure containing all the ratings
-	 */
-	private void getRelevantUsersWithRatings(int item1, int item2, HashMap<Integer, HashMap<Integer,Integer>> allRatings) {
-		
-		item1Ratings.clear();
-		item2Ratings.clear();
-		
-		HashMap<Integer,Integer> i1Ratings = allRatings.get(item1);
-		HashMap<Integer,Integer> i2Ratings = allRatings.get(item2);
-		for (Integer user : i1Ratings.keySet()) {
-			if (i2Ratings.containsKey(user)) {
-				item1Ratings.put(user, i1Ratings.get(user));
-				item2Ratings.put(user, i2Ratings.get(user));
-			}
-		}
-	}
-	
-	/**
-	 * Calculates the baseline predictor to be used in the process of predicting ratings considering negative similarities
-	 * @param user
-	 * @param item
-	 * @param allRatings The entire data structure containing all the ratings
-	 * @param avgRatings The average user ratings
-	 * @return The baseline predictor for this specific pair of item and user
-	 */
-	private float getBaselinePredictor(int user, int item, HashMap<Integer, HashMap<Integer,Integer>> allRatings, HashMap<Integer,Float> avgRatings) {
-		int numItemsRated = 0;
-		float userBaselinePredictor = 0;
-		
-		for (Integer it : allRatings.keySet()) { //for every item
-			HashMap<Integer,Integer> usersAndRatingsForIt = allRatings.get(it); //every user who have rated "it" and the actual rating
-			
-			if (usersAndRatingsForIt.containsKey(user)) { //if user have rated the item
-				numItemsRated++;
-				int rating = usersAndRatingsForIt.get(user);
-				userBaselinePredictor += (rating - avgRatings.get(user));
-			}
-		}
-		
-		userBaselinePredictor = userBaselinePredictor / numItemsRated;
-		
-		float itemBaselinePredictor = 0;
-		
-		HashMap<Integer,Integer> usersThatRatedIt = allRatings.get(item); //every user who have rated "item" and the actual rating
-		int numUsersRated = usersThatRatedIt.size();
-		for (Integer u : usersThatRatedIt.keySet()) {
-			int rating = usersThatRatedIt.get(u);
-			itemBaselinePredictor += rating - userBaselinePredictor - avgRatings.get(user);
-		}
-		
-		itemBaselinePredictor = itemBaselinePredictor / numUsersRated;	
-		
-		float baselinePredictor = itemBaselinePredictor + userBaselinePredictor + avgRatings.get(user);
-		return baselinePredictor;
-	}
-}
-
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 
+ * @author Rafael and Alexis
+ * Item-based collaborative filtering recommender system
+ * The methods can be called from several threads at the same time: the similarity calculation has no state, the cache is
+ * thread-safe and every use of the connection is synchronized on the writer
+ */
+public class ItemBased {
+	
+	public Connection c;
+	
+	//similarities looked up or calculated recently, so we don't query the database again for them
+	public SimilarityCache similarityCache;
+	
+	//if set, similarities are taken from this store first (e.g. a complete SimilarityModel, so they are never calculated lazily, or the LongFloatMap returned by SimpleDB.getSimilarities)
+	public SimilarityStore similarityStore;
+	
+	//if set, predictions only consider the k most similar items of this model (see NeighbourhoodModel)
+	public NeighbourhoodModel neighbourhoodModel;
+	
+	//batches the inserts and updates; flush() or close() it before using the results in the database
+	public DatabaseWriter writer;
+	
+	private PreparedStatement selectSimilarity;
+	
+	//whether the "similarities" table holds a complete model (see SimilarityModel.setComplete), checked on the first lookup
+	private Boolean completeSimilarities;
+	
+	//pairs being looked up or calculated by some thread, with the future result
+	private final ConcurrentHashMap<Long,CompletableFuture<Float>> similaritiesInProgress = new ConcurrentHashMap<Long,CompletableFuture<Float>>();
+	
+	//statistics (average user ratings by index, user and item means...) of the last "allRatings" and "avgRatings" we were given
+	private volatile RatingStatistics statistics;
+	private final Object statisticsLock = new Object();
+
+	
+	public ItemBased(Connection con) {
+		this(con, SimilarityCache.DEFAULT_MAX_SIZE);
+	}
+	
+	/**
+	 * @param con
+	 * @param similarityCacheSize The maximum number of similarities kept in memory
+	 */
+	public ItemBased(Connection con, int similarityCacheSize) {
+		c = con;
+		similarityCache = new SimilarityCache(similarityCacheSize);
+		writer = new DatabaseWriter(con);
+		
+	}
+	
+	/**
+	 * If a similarity store has been set and knows the similarity between item1 and item2, retrieve it from the store.
+	 * If the similarity between item1 and item2 has already been calculated, retrieve it from the cache or from the database. Otherwise, calculate its value and save it in the cache and in the database before returning it
+	 * @param item1
+	 * @param item2
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The similarity between item1 and item2
+	 */
+	public float getSimilarity(int item1, int item2, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		
+		//similarity between an item and itself is always 1
+		if (item1 == item2) return 1.0f;
+		
+		//sort the index to avoid duplicate values in the database ( similarity(i,j) == similarity(j,i) )
+		int smallestIndex = item1 < item2 ? item1 : item2;
+		int greaterIndex = item1 < item2 ? item2 : item1;
+		
+		//the similarities precomputed or loaded beforehand
+		SimilarityStore store = similarityStore;
+		if (store != null) {
+			float similarity = store.getSimilarity(smallestIndex, greaterIndex);
+			if (!Float.isNaN(similarity)) {
+				Metrics.SIMILARITY_STORE_HITS.increment();
+				return similarity;
+			}
+		}
+		
+		//try to retrieve similarity from the cache
+		float similarity = similarityCache.get(smallestIndex, greaterIndex);
+		if (!Float.isNaN(similarity)) {
+			Metrics.SIMILARITY_CACHE_HITS.increment();
+			return similarity;
+		}
+		
+		//only one thread looks up (or calculates) a given pair at a time; the others wait for its result
+		long key = SimilarityCache.key(smallestIndex, greaterIndex);
+		CompletableFuture<Float> claim = new CompletableFuture<Float>();
+		CompletableFuture<Float> other = similaritiesInProgress.putIfAbsent(key, claim);
+		if (other != null) return other.join();
+		
+		try {
+			similarity = loadOrCalculateSimilarity(smallestIndex, greaterIndex, allRatings, avgRatings);
+			claim.complete(similarity);
+			return similarity;
+		} catch (RuntimeException e) {
+			claim.completeExceptionally(e);
+			throw e;
+		} finally {
+			similaritiesInProgress.remove(key);
+		}
+	}
+	
+	/**
+	 * Retrieves the similarity from the writer (if it is waiting to be inserted) or from the database. If it is not found, it is 0 when the database holds a complete model (which only has the non-zero similarities);
+	 * otherwise, calculate its value and save it in the cache and in the database before returning it
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The similarity between the two items
+	 */
+	private float loadOrCalculateSimilarity(int smallestIndex, int greaterIndex, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		
+		//it might have been calculated but not written to the database yet
+		float similarity = writer.getPendingSimilarity(smallestIndex, greaterIndex);
+		if (!Float.isNaN(similarity)) {
+			Metrics.SIMILARITY_CACHE_HITS.increment();
+			return similarity;
+		}
+		
+		similarity = 0.0f;
+		boolean found = false;
+		long start = System.nanoTime();
+		
+		
+		//try to retrieve similarity from database (the connection is shared, so we hold the writer's lock while using it)
+		synchronized (writer) {
+			try {
+				if (selectSimilarity == null) {
+					selectSimilarity = c.prepareStatement("SELECT * FROM similarities WHERE item1 = ? AND item2 = ?");
+					completeSimilarities = SimilarityModel.isComplete(c);
+				}
+				selectSimilarity.setInt(1, smallestIndex);
+				selectSimilarity.setInt(2, greaterIndex);
+				ResultSet rs = selectSimilarity.executeQuery();
+				while (rs.next()) {
+					similarity = rs.getFloat(3);
+					found = true;
+				}
+				rs.close();
+			} 
+			
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (found || Boolean.TRUE.equals(completeSimilarities)) {
+			//if we found the similarity in the database, we can return it (a complete model has no row for a similarity of 0)
+			Metrics.SIMILARITY_DB_HIT.recordSince(start);
+			similarityCache.put(smallestIndex, greaterIndex, similarity);
+			return similarity;
+		}
+		Metrics.SIMILARITY_DB_MISS.recordSince(start);
+		
+		
+		//if we didn't return anything, we didn't find the similarity
+		start = System.nanoTime();
+		similarity = calculateSimilarity(smallestIndex, greaterIndex, allRatings, avgRatings);
+		Metrics.SIMILARITY_COMPUTED.recordSince(start);
+			
+		//now that we calculated the similarity, save it in the cache and in the database before returning
+		//(it goes to the writer before we release the claim, so nobody else can miss it and calculate it again)
+		similarityCache.put(smallestIndex, greaterIndex, similarity);
+		start = System.nanoTime();
+		writer.addSimilarity(smallestIndex, greaterIndex, similarity);
+		Metrics.SIMILARITY_INSERTED.recordSince(start);
+		
+		return similarity;
+	}
+	
+	/**
+	 * Calculates the (adjusted cosine) similarity between item1 and item2, without looking it up or saving it anywhere
+	 * @param item1
+	 * @param item2
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The similarity between item1 and item2
+	 */
+	public float calculateSimilarity(int item1, int item2, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		
+		int itemIndex1 = allRatings.getItemIndex(item1);
+		int itemIndex2 = allRatings.getItemIndex(item2);
+		if (itemIndex1 < 0 || itemIndex2 < 0) return 0.0f; //nobody rated one of the items, so there are no co-raters
+		
+		return SimilarityKernel.adjustedCosine(allRatings, itemIndex1, itemIndex2, getStatistics(allRatings, avgRatings).userAverages);
+	}
+	
+	/**
+	 * The statistics are calculated once (in a single pass over the ratings) and reused while we are given the same data.
+	 * The first threads to need them wait for one of them to calculate them, instead of all doing it
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The statistics of the ratings
+	 */
+	public RatingStatistics getStatistics(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		RatingStatistics stats = statistics;
+		if (stats == null || !stats.isFor(allRatings, avgRatings)) {
+			synchronized (statisticsLock) {
+				stats = statistics;
+				if (stats == null || !stats.isFor(allRatings, avgRatings)) {
+					stats = new RatingStatistics(allRatings, avgRatings);
+					statistics = stats;
+				}
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * @param item
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The mean rating of the item, or the mean of all the ratings if nobody rated it (e.g. it is not in a training matrix)
+	 */
+	private float getItemMean(int item, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		RatingStatistics stats = getStatistics(allRatings, avgRatings);
+		int itemIndex = allRatings.getItemIndex(item);
+		return itemIndex < 0 ? stats.globalMean : stats.itemMeans[itemIndex];
+	}
+	
+	/**
+	 * Returns the predicted rating for a given item by a given user and saves it in the database (table "predictions", through the writer). This method does not consider negative similarities during the calculations
+	 * @param user
+	 * @param item
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The predicted rating for 'item' by 'user'
+	 */
+	public float getPrediction(int user, int item, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		
+		long start = System.nanoTime();
+		float prediction = calculatePrediction(user, item, allRatings, avgRatings);
+		
+		//save it in the database before returning
+		writer.addPrediction(user, item, prediction);
+		Metrics.PREDICTION.recordSince(start);
+		
+		return prediction;
+	}
+	
+	/**
+	 * Calculates the predicted rating for a given item by a given user, without saving it. This method does not consider negative similarities during the calculations
+	 * If a neighbourhood model has been set, only the neighbours of 'item' in the model are considered; otherwise, every item rated by the user is
+	 * @param user
+	 * @param item
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The predicted rating for 'item' by 'user'
+	 */
+	public float calculatePrediction(int user, int item, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		return calculatePrediction(new UserProfile(allRatings, avgRatings, false).load(user), item);
+	}
+	
+	/**
+	 * Calculates the predicted rating for a given item by the user of a profile, without saving it. This method does not consider negative similarities during the calculations
+	 * @param profile The profile of the user, which can be shared by all the predictions for that user
+	 * @param item
+	 * @return The predicted rating for 'item' by the user
+	 */
+	public float calculatePrediction(UserProfile profile, int item) {
+		
+		RatingMatrix allRatings = profile.allRatings;
+		HashMap<Integer,Float> avgRatings = profile.avgRatings;
+		float numerator = 0;
+		float denominator = 0;
+		int userIndex = profile.userIndex;
+		int start = profile.start;
+		int end = profile.end;
+		
+		NeighbourhoodModel neighbourhood = neighbourhoodModel;
+		if (neighbourhood != null) {
+			int itemIndex = allRatings.getItemIndex(item);
+			int from = itemIndex < 0 ? 0 : neighbourhood.offsets[itemIndex];
+			int to = itemIndex < 0 ? 0 : neighbourhood.offsets[itemIndex + 1];
+			for (int n = from; n < to && userIndex >= 0; n++) { //for every neighbour of the item
+				int rating = profile.getRating(neighbourhood.neighbours[n]); //0 if the user hasn't rated it
+				float similarity = neighbourhood.similarities[n];
+				
+				//we exclude negative similarities in this method
+				if (rating != 0 && similarity >= 0) {
+					numerator += similarity * rating;
+					denominator += similarity;
+				}
+			}
+		}
+		
+		else {
+			for (int pos = start; pos < end; pos++) { //for every item rated by the user
+				int it = allRatings.userItems[pos];
+				float similarity = getSimilarity(allRatings.itemIds[it], item, allRatings, avgRatings);
+				
+				//we exclude negative similarities in this method
+				if (similarity >= 0) {
+					int rating = allRatings.userRatings[pos];
+					numerator += similarity * rating;
+					denominator += similarity;
+				}
+			}
+		}
+	
+		float prediction = Float.NaN;
+		
+		prediction = numerator / denominator;
+		
+		//prediction might still be NaN at this point
+		
+		if (Float.isNaN(prediction) && profile.hasAverage) {
+			prediction = profile.average;
+		}
+		
+		else if (Float.isNaN(prediction) && !profile.hasAverage) {
+			//assign item average rating as the predicted rating
+			prediction = getItemMean(item, allRatings, avgRatings);
+			
+		}
+		
+		//rating ranges from 1 to 5
+		else if (prediction > 5) prediction = 5;
+		else if (prediction < 1) prediction = 1;
+		
+		return prediction;
+	}
+	
+	/**
+	 * Returns the predicted rating for a given item by a given user and saves it in the database (table "predictions2", through the writer). This method considers negative similarities during the calculations
+	 * @param user
+	 * @param item
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The predicted rating for 'item' by 'user'
+	 */
+	public float getPredictionConsideringNegativeSims(int user, int item, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		
+		long start = System.nanoTime();
+		float prediction = calculatePredictionConsideringNegativeSims(user, item, allRatings, avgRatings);
+		
+		//save it in the database before returning
+		writer.addPrediction2(user, item, prediction);
+		Metrics.PREDICTION_NEGATIVE_SIMS.recordSince(start);
+		
+		return prediction;
+	}
+	
+	/**
+	 * Calculates the predicted rating for a given item by a given user, without saving it. This method considers negative similarities during the calculations
+	 * If a neighbourhood model has been set, only the neighbours of 'item' in the model are considered; otherwise, every item rated by the user is
+	 * @param user
+	 * @param item
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @return The predicted rating for 'item' by 'user'
+	 */
+	public float calculatePredictionConsideringNegativeSims(int user, int item, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		return calculatePredictionConsideringNegativeSims(new UserProfile(allRatings, avgRatings, false).load(user), item);
+	}
+	
+	/**
+	 * Calculates the predicted rating for a given item by the user of a profile, without saving it. This method considers negative similarities during the calculations
+	 * @param profile The profile of the user, which can be shared by all the predictions for that user
+	 * @param item
+	 * @return The predicted rating for 'item' by the user
+	 */
+	public float calculatePredictionConsideringNegativeSims(UserProfile profile, int item) {
+		
+		RatingMatrix allRatings = profile.allRatings;
+		HashMap<Integer,Float> avgRatings = profile.avgRatings;
+		float prediction = Float.NaN;
+		
+		//if the user does not have an average rating, it means he didn't rate any item. In this case, we assign the item average rating as the predicted rating
+		if (!profile.hasAverage) {
+			prediction = getItemMean(item, allRatings, avgRatings);
+		}
+		
+		else {
+		
+			float numerator = 0;
+			float denominator = 0;
+			
+			//in order to consider the negative similarities without decreasing the overall accuracy we use the baseline predictor
+			float baselinePredictor = getBaselinePredictor(profile, item);
+		
+			int userIndex = profile.userIndex;
+			int start = profile.start;
+			int end = profile.end;
+			
+			NeighbourhoodModel neighbourhood = neighbourhoodModel;
+			if (neighbourhood != null) {
+				int itemIndex = allRatings.getItemIndex(item);
+				int from = itemIndex < 0 ? 0 : neighbourhood.offsets[itemIndex];
+				int to = itemIndex < 0 ? 0 : neighbourhood.offsets[itemIndex + 1];
+				for (int n = from; n < to && userIndex >= 0; n++) { //for every neighbour of the item
+					int rating = profile.getRating(neighbourhood.neighbours[n]); //0 if the user hasn't rated it
+					if (rating != 0) {
+						float similarity = neighbourhood.similarities[n];
+						numerator += similarity * (rating - baselinePredictor);
+						denominator += Math.abs(similarity);
+					}
+				}
+			}
+			
+			else {
+				for (int pos = start; pos < end; pos++) { //for every item rated by the user
+					int it = allRatings.userItems[pos];
+					float similarity = getSimilarity(allRatings.itemIds[it], item, allRatings, avgRatings);
+					int rating = allRatings.userRatings[pos];
+					
+					
+					numerator += similarity * (rating - baselinePredictor);
+					denominator += Math.abs(similarity);
+				}
+			}
+			
+			
+			prediction = (numerator / denominator) + baselinePredictor;
+			
+			//prediction might still be NaN at this point
+			if (Float.isNaN(prediction)) {
+				prediction = profile.average;
+				//note that we already made sure the user has an average rating
+			}
+			
+			//rating ranges from 1 to 5
+			else if (prediction > 5) prediction = 5;
+			else if (prediction < 1) prediction = 1;
+		}
+		
+		return prediction;
+	}
+	
+	/**
+	 * Calculates the mean absolute error for a set of predictions for which we know the actual true value. Note that all the entries in the "predictions" hash map must also be in the "allRatings" hash map (obviously, the rating - and only the rating - may differ)
+	 * @param predictions The set of predictions
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @return The mean absolute error (MAE)
+	 */
+	public float getMeanAbsoluteError(HashMap<Integer, HashMap<Integer,Float>> predictions, RatingMatrix allRatings) {
+		
+		int n = 0;
+		float numerator = 0;
+		
+		for (Integer item : predictions.keySet()) {
+			HashMap<Integer,Float> usersAndPreds = predictions.get(item);
+			for (Integer user : usersAndPreds.keySet()) {
+				float pred = usersAndPreds.get(user); //the predicted rating for 'item' by 'user'
+				
+				int realRating = allRatings.getRating(allRatings.getItemIndex(item), allRatings.getUserIndex(user));
+				
+				numerator += Math.abs(pred - realRating);
+				n++;
+			}
+		}
+		
+		float mae = numerator / n;
+		return mae;
+	}
+	
+	/**
+	 * Calculates the baseline predictor to be used in the process of predicting ratings considering negative similarities
+	 * @param profile The profile of the user, who must have an average rating
+	 * @param item
+	 * @return The baseline predictor for this specific pair of item and user
+	 */
+	private float getBaselinePredictor(UserProfile profile, int item) {
+		//the user and item deviations are precomputed, so this is just a couple of lookups
+		RatingStatistics stats = getStatistics(profile.allRatings, profile.avgRatings);
+		return stats.getBaselinePredictor(profile.userIndex, profile.allRatings.getItemIndex(item), profile.average);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Lock-free histogram of latencies (in nanoseconds) with log-linear buckets, like HdrHistogram: values are grouped by
+ * power of two, and every power of two is split in 32 linear sub-buckets, so any recorded value is known within about
+ * 3% whatever its magnitude, with a fixed 2K counters. Several threads can record at the same time
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	//enough buckets for any positive long
+	private static final int NUM_COUNTS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_COUNTS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * @param value
+	 * @return The counter of 'value': values below 64 have their own counter, then 32 counters per power of two
+	 */
+	static int index(long value) {
+		int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (bucket << (SUB_BUCKET_BITS - 1)) + (int) (value >>> bucket);
+	}
+
+	/**
+	 * @param index
+	 * @return The greatest value counted by the counter 'index'
+	 */
+	static long highestValue(int index) {
+		int bucket = Math.max(0, (index - SUB_BUCKET_HALF) >> (SUB_BUCKET_BITS - 1));
+		long subBucket = index - ((long) bucket << (SUB_BUCKET_BITS - 1));
+		return ((subBucket + 1) << bucket) - 1;
+	}
+
+	/**
+	 * @param nanos The latency to record (negative values are recorded as 0)
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.increment();
+		total.add(nanos);
+		long currentMax;
+		while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+		}
+	}
+
+	/**
+	 * Records the time elapsed since 'startNanos'
+	 * @param startNanos A value of System.nanoTime()
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return The sum of the recorded values, in nanoseconds
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile From 0 to 100
+	 * @return The value (in nanoseconds, within the precision of the buckets) below which 'percentile'% of the recorded values are
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < NUM_COUNTS; i++) n += counts.get(i);
+		if (n == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < NUM_COUNTS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", getCount(), getMean() / 1e3,
+				getValueAtPercentile(50) / 1e3, getValueAtPercentile(99) / 1e3, getMax() / 1e3);
+	}
+}
@@ -0,0 +1,96 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Closed-loop load generator for the RecommendationServer: every client sends a request, waits for the response and
+ * sends the next one, for a fixed duration. The users are drawn from a small sample so that concurrent requests for
+ * the same user are frequent and the server can coalesce them. Prints the throughput and the latencies seen by the
+ * clients, then the statistics of the server
+ */
+public class LoadGenerator {
+
+	/**
+	 * @param json
+	 * @param field
+	 * @return The numbers of the array 'field' of a flat JSON object
+	 */
+	private static int[] parseArray(String json, String field) {
+		Matcher matcher = Pattern.compile("\"" + field + "\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(json);
+		if (!matcher.find() || matcher.group(1).trim().isEmpty()) return new int[0];
+		String[] values = matcher.group(1).split(",");
+		int[] numbers = new int[values.length];
+		for (int i = 0; i < values.length; i++) numbers[i] = Integer.parseInt(values[i].trim());
+		return numbers;
+	}
+
+	/**
+	 * Usage: LoadGenerator [url] [clients] [seconds] [users] [recommend percentage]
+	 */
+	public static void main(String[] args) throws Exception {
+		final String url = args.length > 0 ? args[0] : "http://localhost:8080";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int numUsers = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		final int recommendPercentage = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+
+		final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+		String sample = client.send(HttpRequest.newBuilder(URI.create(url + "/sample?count=" + numUsers)).build(), HttpResponse.BodyHandlers.ofString()).body();
+		final int[] users = parseArray(sample, "users");
+		final int[] items = parseArray(sample, "items");
+		if (users.length == 0 || items.length == 0) {
+			System.out.println("The server has no users or items");
+			return;
+		}
+
+		final LatencyHistogram predictLatencies = new LatencyHistogram();
+		final LatencyHistogram recommendLatencies = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int c = 0; c < clients; c++) {
+			final Random random = new Random(c);
+			tasks.add(() -> {
+				while (System.nanoTime() < deadline) {
+					int user = users[random.nextInt(users.length)];
+					boolean recommend = random.nextInt(100) < recommendPercentage;
+					String path = recommend ? "/recommend?user=" + user + "&n=10" : "/predict?user=" + user + "&item=" + items[random.nextInt(items.length)] + "&item=" + items[random.nextInt(items.length)];
+					long start = System.nanoTime();
+					try {
+						HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(url + path)).build(), HttpResponse.BodyHandlers.ofString());
+						if (response.statusCode() != 200) errors.increment();
+					} catch (Exception e) {
+						errors.increment();
+						if (Thread.currentThread().isInterrupted()) return;
+					}
+					(recommend ? recommendLatencies : predictLatencies).recordSince(start);
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Runnable task : tasks) executor.execute(task);
+		executor.shutdown();
+		executor.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		long requests = predictLatencies.getCount() + recommendLatencies.getCount();
+		System.out.println(String.format("%d requests in %.1fs (%.0f/s) from %d clients over %d users, %d errors", requests, elapsed, requests / elapsed, clients, users.length, errors.sum()));
+		System.out.println("predict: " + predictLatencies);
+		System.out.println("recommend: " + recommendLatencies);
+		System.out.print("server: " + client.send(HttpRequest.newBuilder(URI.create(url + "/stats")).build(), HttpResponse.BodyHandlers.ofString()).body());
+	}
+}
@@ -0,0 +1,174 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Open-addressing hash map from long keys to float values, without any per-entry object.
+ * Every slot takes 12 bytes (8 for the key, 4 for the value) of a ByteBuffer, which can live on the heap or off-heap
+ * (direct buffers), so millions of similarities keyed on SimilarityCache.key(item1, item2) cost about 12 bytes each
+ * (plus the free slots) instead of a boxed map entry per pair.
+ * Collisions are resolved with linear probing; the key 0 marks a free slot, so it is kept aside.
+ * The map is not synchronized, but once filled it can be read from several threads
+ */
+public class LongFloatMap implements SimilarityStore {
+
+	private static final int SLOT_SIZE = 12;
+	//slots per buffer, so a single buffer stays under the 2GB limit of ByteBuffer
+	private static final int MAX_SLOTS_PER_BUFFER = 1 << 27;
+
+	private final boolean offHeap;
+	private final float loadFactor;
+
+	private ByteBuffer[] buffers;
+	private int slotsPerBufferShift;
+	private long capacity;
+	private long mask;
+	private long size;
+	private long resizeThreshold;
+
+	private boolean hasZeroKey;
+	private float zeroValue;
+
+
+	public LongFloatMap() {
+		this(16, false);
+	}
+
+	/**
+	 * @param expectedSize The number of entries the map should hold without resizing
+	 * @param offHeap Whether to keep the entries in direct (off-heap) buffers
+	 */
+	public LongFloatMap(long expectedSize, boolean offHeap) {
+		this(expectedSize, offHeap, 0.8f);
+	}
+
+	/**
+	 * @param expectedSize The number of entries the map should hold without resizing
+	 * @param offHeap Whether to keep the entries in direct (off-heap) buffers
+	 * @param loadFactor The maximum ratio of used slots before the map grows
+	 */
+	public LongFloatMap(long expectedSize, boolean offHeap, float loadFactor) {
+		this.offHeap = offHeap;
+		this.loadFactor = loadFactor;
+		allocate(Math.max(16, Long.highestOneBit((long) (expectedSize / loadFactor) + 1) << 1));
+	}
+
+	private void allocate(long newCapacity) {
+		int slotsPerBuffer = (int) Math.min(newCapacity, MAX_SLOTS_PER_BUFFER);
+		int numBuffers = (int) (newCapacity / slotsPerBuffer);
+		buffers = new ByteBuffer[numBuffers];
+		for (int b = 0; b < numBuffers; b++) {
+			//new buffers are zeroed, i.e. all the slots are free
+			buffers[b] = (offHeap ? ByteBuffer.allocateDirect(slotsPerBuffer * SLOT_SIZE) : ByteBuffer.allocate(slotsPerBuffer * SLOT_SIZE)).order(ByteOrder.nativeOrder());
+		}
+		slotsPerBufferShift = Integer.numberOfTrailingZeros(slotsPerBuffer);
+		capacity = newCapacity;
+		mask = newCapacity - 1;
+		resizeThreshold = (long) (newCapacity * loadFactor);
+	}
+
+	private static long hash(long key) {
+		//murmur3 finalizer, the packed pairs have most of their entropy in a few bits
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private long keyAt(long slot) {
+		return buffers[(int) (slot >>> slotsPerBufferShift)].getLong((int) (slot & ((1 << slotsPerBufferShift) - 1)) * SLOT_SIZE);
+	}
+
+	private float valueAt(long slot) {
+		return buffers[(int) (slot >>> slotsPerBufferShift)].getFloat((int) (slot & ((1 << slotsPerBufferShift) - 1)) * SLOT_SIZE + 8);
+	}
+
+	private void set(long slot, long key, float value) {
+		ByteBuffer buffer = buffers[(int) (slot >>> slotsPerBufferShift)];
+		int offset = (int) (slot & ((1 << slotsPerBufferShift) - 1)) * SLOT_SIZE;
+		buffer.putLong(offset, key);
+		buffer.putFloat(offset + 8, value);
+	}
+
+	/**
+	 * @param key
+	 * @return The slot holding 'key', or the free slot where it would go
+	 */
+	private long findSlot(long key) {
+		long slot = hash(key) & mask;
+		while (true) {
+			long k = keyAt(slot);
+			if (k == key || k == 0) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public void put(long key, float value) {
+		if (key == 0) {
+			if (!hasZeroKey) size++;
+			hasZeroKey = true;
+			zeroValue = value;
+			return;
+		}
+		long slot = findSlot(key);
+		if (keyAt(slot) == 0) {
+			size++;
+			if (size > resizeThreshold) {
+				resize();
+				slot = findSlot(key);
+			}
+		}
+		set(slot, key, value);
+	}
+
+	/**
+	 * @param key
+	 * @param defaultValue
+	 * @return The value of 'key', or 'defaultValue' if the key is not in the map
+	 */
+	public float get(long key, float defaultValue) {
+		if (key == 0) return hasZeroKey ? zeroValue : defaultValue;
+		long slot = findSlot(key);
+		return keyAt(slot) == 0 ? defaultValue : valueAt(slot);
+	}
+
+	public boolean containsKey(long key) {
+		if (key == 0) return hasZeroKey;
+		return keyAt(findSlot(key)) != 0;
+	}
+
+	public void put(int smallestIndex, int greaterIndex, float similarity) {
+		put(SimilarityCache.key(smallestIndex, greaterIndex), similarity);
+	}
+
+	@Override
+	public float getSimilarity(int smallestIndex, int greaterIndex) {
+		return get(SimilarityCache.key(smallestIndex, greaterIndex), Float.NaN);
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of bytes taken by the slots
+	 */
+	public long getMemoryUsage() {
+		return capacity * SLOT_SIZE;
+	}
+
+	private void resize() {
+		ByteBuffer[] oldBuffers = buffers;
+		int oldShift = slotsPerBufferShift;
+		long oldCapacity = capacity;
+		allocate(capacity << 1);
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			ByteBuffer buffer = oldBuffers[(int) (slot >>> oldShift)];
+			int offset = (int) (slot & ((1 << oldShift) - 1)) * SLOT_SIZE;
+			long key = buffer.getLong(offset);
+			if (key != 0) set(findSlot(key), key, buffer.getFloat(offset + 8));
+		}
+	}
+}
@@ -0,0 +1,429 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Latent factor model (biased SVD): the predicted rating of item i by user u is
+ *   globalMean + userBias[u] + itemBias[i] + userFactors[u] . itemFactors[i]
+ * clamped to [1, 5], so a prediction is a dot product of 'factors' floats instead of a similarity lookup per item
+ * rated by the user. The model is trained with stochastic gradient descent (see Trainer) and only needs a few floats
+ * per user and item, which are saved with write() in the binary layout of RatingSnapshot.
+ * Users and items that were not in the training ratings only get the global mean (and the bias of the other one)
+ */
+public class MatrixFactorization implements RatingPredictor, ProfilePredictor {
+
+	public static final int MAGIC = 0x53434d46; //"SCMF"
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	//main stops early on the ratings of one fold out of this many (see Evaluator.getFold), never on the test pairs
+	private static final int STOPPING_FOLDS = 20;
+
+	//ids of the users and items the model was trained on, the position of an id is its index
+	public final int[] userIds;
+	public final int[] itemIds;
+	public final int factors;
+	public final float globalMean;
+
+	public final float[] userBiases;
+	public final float[] itemBiases;
+	//'factors' floats per user (and item), one user after the other
+	public final float[] userFactors;
+	public final float[] itemFactors;
+
+
+	public MatrixFactorization(int[] userIds, int[] itemIds, int factors, float globalMean, float[] userBiases, float[] itemBiases, float[] userFactors, float[] itemFactors) {
+		this.userIds = userIds;
+		this.itemIds = itemIds;
+		this.factors = factors;
+		this.globalMean = globalMean;
+		this.userBiases = userBiases;
+		this.itemBiases = itemBiases;
+		this.userFactors = userFactors;
+		this.itemFactors = itemFactors;
+	}
+
+	/**
+	 * @param userIndex
+	 * @param itemIndex
+	 * @return The prediction for the users and items with these indices (-1 for unknown ones), without clamping
+	 */
+	float predictByIndex(int userIndex, int itemIndex) {
+		float prediction = globalMean;
+		if (userIndex >= 0) prediction += userBiases[userIndex];
+		if (itemIndex >= 0) prediction += itemBiases[itemIndex];
+		if (userIndex >= 0 && itemIndex >= 0) {
+			int u = userIndex * factors;
+			int i = itemIndex * factors;
+			for (int f = 0; f < factors; f++) prediction += userFactors[u + f] * itemFactors[i + f];
+		}
+		return prediction;
+	}
+
+	/**
+	 * @param user
+	 * @param item
+	 * @return The predicted rating for 'item' by 'user', between 1 and 5
+	 */
+	@Override
+	public float predict(int user, int item) {
+		float prediction = predictByIndex(Arrays.binarySearch(userIds, user), Arrays.binarySearch(itemIds, item));
+		return Math.max(1.0f, Math.min(5.0f, prediction));
+	}
+
+	/**
+	 * @param profile The profile of the user (the model might have been trained on other ratings, so only its user id is used)
+	 * @param item
+	 * @return The predicted rating for 'item' by the user, between 1 and 5
+	 */
+	@Override
+	public float predict(UserProfile profile, int item) {
+		return predict(profile.user, item);
+	}
+
+	/**
+	 * Stochastic gradient descent over the ratings of a matrix, on several threads sharing the factors without any lock
+	 * ("Hogwild"): every thread goes through its own share of the ratings in random order and updates the biases and
+	 * factors of the user and item in place. Two threads rarely update the same user or item at the same time, and
+	 * when they do, one of the updates is partly lost, which SGD tolerates
+	 */
+	public static class Trainer {
+
+		private final RatingMatrix training;
+		private final int factors;
+		private final int threads;
+
+		private float learningRate = 0.005f;
+		private float regularization = 0.02f;
+		private long seed = 42;
+
+		//user index of every rating of training.userItems
+		private final int[] ratingUsers;
+
+
+		/**
+		 * @param training The ratings to learn from
+		 * @param factors The number of latent factors
+		 * @param threads The number of threads
+		 */
+		public Trainer(RatingMatrix training, int factors, int threads) {
+			this.training = training;
+			this.factors = factors;
+			this.threads = threads;
+			ratingUsers = new int[training.getNumRatings()];
+			for (int u = 0; u < training.getNumUsers(); u++) {
+				Arrays.fill(ratingUsers, training.userOffsets[u], training.userOffsets[u + 1], u);
+			}
+		}
+
+		public Trainer setLearningRate(float learningRate) {
+			this.learningRate = learningRate;
+			return this;
+		}
+
+		public Trainer setRegularization(float regularization) {
+			this.regularization = regularization;
+			return this;
+		}
+
+		public Trainer setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Trains a model, stopping early once the MAE on the validation pairs hasn't improved for 'patience' epochs
+		 * @param maxEpochs The maximum number of passes over the ratings
+		 * @param validationUsers The users of the validation pairs (ids), or null to train for maxEpochs epochs
+		 * @param validationItems The items of the validation pairs (ids)
+		 * @param validationRatings The real ratings of the validation pairs
+		 * @param patience
+		 * @return The model of the epoch with the lowest validation MAE (of the last epoch without validation pairs)
+		 * @throws IllegalStateException If an epoch could not be completed (the model would be half-trained)
+		 */
+		public MatrixFactorization train(int maxEpochs, int[] validationUsers, int[] validationItems, int[] validationRatings, int patience) {
+			int numUsers = training.getNumUsers();
+			int numItems = training.getNumItems();
+			int numRatings = training.getNumRatings();
+			double sum = 0;
+			for (int pos = 0; pos < numRatings; pos++) sum += training.userRatings[pos];
+			float globalMean = numRatings == 0 ? 0.0f : (float) (sum / numRatings);
+
+			Random random = new Random(seed);
+			final MatrixFactorization model = new MatrixFactorization(training.userIds, training.itemIds, factors, globalMean,
+					new float[numUsers], new float[numItems], new float[numUsers * factors], new float[numItems * factors]);
+			for (int i = 0; i < model.userFactors.length; i++) model.userFactors[i] = (float) (random.nextGaussian() * 0.1);
+			for (int i = 0; i < model.itemFactors.length; i++) model.itemFactors[i] = (float) (random.nextGaussian() * 0.1);
+
+			//the order of the ratings, shuffled by each thread within its share at every epoch
+			final int[] order = new int[numRatings];
+			for (int pos = 0; pos < numRatings; pos++) order[pos] = pos;
+
+			MatrixFactorization best = null;
+			double bestMae = Double.MAX_VALUE;
+			int epochsWithoutImprovement = 0;
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				for (int epoch = 1; epoch <= maxEpochs; epoch++) {
+					long start = System.nanoTime();
+					List<Future<?>> workers = new ArrayList<>();
+					int share = (numRatings + threads - 1) / threads;
+					for (int t = 0; t < threads; t++) {
+						final int from = Math.min(numRatings, t * share);
+						final int to = Math.min(numRatings, from + share);
+						final Random threadRandom = new Random(seed + epoch * 1000003L + t);
+						workers.add(pool.submit(() -> runEpoch(model, order, from, to, threadRandom)));
+					}
+					for (Future<?> worker : workers) worker.get();
+					double seconds = (System.nanoTime() - start) / 1e9;
+
+					if (validationUsers == null) {
+						System.out.println(String.format("epoch %d: %.1fs (%.0f ratings/s)", epoch, seconds, numRatings / seconds));
+						best = model;
+						continue;
+					}
+					double mae = model.getMeanAbsoluteError(validationUsers, validationItems, validationRatings);
+					System.out.println(String.format("epoch %d: %.1fs (%.0f ratings/s), validation MAE = %.6f", epoch, seconds, numRatings / seconds, mae));
+					if (mae < bestMae) {
+						bestMae = mae;
+						best = model.copy();
+						epochsWithoutImprovement = 0;
+					} else if (++epochsWithoutImprovement >= patience) {
+						System.out.println("Stopping early, best validation MAE = " + bestMae);
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while training", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("an epoch could not be completed", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+			return best != null ? best : model;
+		}
+
+		/**
+		 * One pass of SGD over the ratings at positions 'from' to 'to' - 1 of 'order', in a random order
+		 */
+		private void runEpoch(MatrixFactorization model, int[] order, int from, int to, Random random) {
+			for (int i = to - 1; i > from; i--) {
+				int j = from + random.nextInt(i - from + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+			float[] userBiases = model.userBiases;
+			float[] itemBiases = model.itemBiases;
+			float[] userFactors = model.userFactors;
+			float[] itemFactors = model.itemFactors;
+			float lr = learningRate;
+			float reg = regularization;
+			for (int n = from; n < to; n++) {
+				int pos = order[n];
+				int user = ratingUsers[pos];
+				int item = training.userItems[pos];
+				float error = training.userRatings[pos] - model.predictByIndex(user, item);
+
+				userBiases[user] += lr * (error - reg * userBiases[user]);
+				itemBiases[item] += lr * (error - reg * itemBiases[item]);
+				int u = user * factors;
+				int v = item * factors;
+				for (int f = 0; f < factors; f++) {
+					float userFactor = userFactors[u + f];
+					float itemFactor = itemFactors[v + f];
+					userFactors[u + f] += lr * (error * itemFactor - reg * userFactor);
+					itemFactors[v + f] += lr * (error * userFactor - reg * itemFactor);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return A copy of the model with its own arrays
+	 */
+	public MatrixFactorization copy() {
+		return new MatrixFactorization(userIds, itemIds, factors, globalMean, userBiases.clone(), itemBiases.clone(), userFactors.clone(), itemFactors.clone());
+	}
+
+	/**
+	 * @param users
+	 * @param items
+	 * @param ratings The real ratings of the pairs
+	 * @return The mean absolute error of the predictions of the (users[i], items[i]) pairs
+	 */
+	public double getMeanAbsoluteError(int[] users, int[] items, int[] ratings) {
+		double sum = 0;
+		for (int i = 0; i < users.length; i++) sum += Math.abs(predict(users[i], items[i]) - ratings[i]);
+		return users.length == 0 ? 0.0 : sum / users.length;
+	}
+
+	/**
+	 * Writes the model in the binary layout of RatingSnapshot (little endian: a fixed header, then the arrays)
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			RatingSnapshot.Output out = new RatingSnapshot.Output(channel, HEADER_SIZE);
+			out.putInts(userIds);
+			out.putInts(itemIds);
+			out.putFloats(userBiases);
+			out.putFloats(itemBiases);
+			out.putFloats(userFactors);
+			out.putFloats(itemFactors);
+			out.finish();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(userIds.length);
+			header.putInt(itemIds.length);
+			header.putInt(factors);
+			header.putFloat(globalMean);
+			header.putLong(out.checksum.getValue());
+			header.putLong(out.position);
+			header.flip();
+			channel.write(header, 0);
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return The model written in the file
+	 * @throws IOException If the file is not a model, has another version, is truncated or corrupted
+	 */
+	public static MatrixFactorization read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) throw new IOException(file + " is not a matrix factorization model");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC) throw new IOException(file + " is not a matrix factorization model");
+			int version = header.getInt();
+			if (version != VERSION) throw new IOException(file + " has version " + version + ", expected " + VERSION);
+			int numUsers = header.getInt();
+			int numItems = header.getInt();
+			int factors = header.getInt();
+			float globalMean = header.getFloat();
+			long checksum = header.getLong();
+			long size = header.getLong();
+			if (channel.size() != size) throw new IOException(file + " is truncated: " + channel.size() + " bytes, expected " + size);
+			if (RatingSnapshot.checksum(channel, HEADER_SIZE, size) != checksum) {
+				throw new IOException(file + " is corrupted (checksum mismatch)");
+			}
+
+			RatingSnapshot.Input in = new RatingSnapshot.Input(channel, HEADER_SIZE);
+			int[] userIds = in.getInts(numUsers);
+			int[] itemIds = in.getInts(numItems);
+			float[] userBiases = in.getFloats(numUsers);
+			float[] itemBiases = in.getFloats(numItems);
+			float[] userFactors = in.getFloats(numUsers * factors);
+			float[] itemFactors = in.getFloats(numItems * factors);
+			return new MatrixFactorization(userIds, itemIds, factors, globalMean, userBiases, itemBiases, userFactors, itemFactors);
+		}
+	}
+
+	/**
+	 * Trains a model on "alldata" without the "testdata2" pairs, stopping early on the MAE of a slice of the training
+	 * ratings that is left out of the fitting, saves it if a file is given, then compares its MAE and prediction
+	 * throughput with the item-based recommender's on the "testdata2" pairs, which neither has seen.
+	 * With "positive" or "negative", it also fills "predictions" or "predictions2" with its predictions
+	 * Usage: MatrixFactorization [factors] [max epochs] [threads] [file] [positive|negative]
+	 */
+	public static void main(String[] args) {
+		int factors = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int maxEpochs = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+
+		//the "testdata2" pairs are held out of the training ratings
+		ArrayList<int[]> testPairs = s1.getTestPairs();
+		List<int[]> validation = new ArrayList<int[]>();
+		for (int[] pair : testPairs) {
+			int itemIndex = allRatings.getItemIndex(pair[1]);
+			int userIndex = allRatings.getUserIndex(pair[0]);
+			int rating = itemIndex < 0 || userIndex < 0 ? 0 : allRatings.getRating(itemIndex, userIndex);
+			if (rating == 0) continue;
+			validation.add(new int[] {pair[0], pair[1], rating});
+		}
+		RatingMatrix training = Evaluator.getTrainingMatrix(allRatings, validation);
+		int[] validationRatings = new int[validation.size()];
+		for (int i = 0; i < validation.size(); i++) validationRatings[i] = validation.get(i)[2];
+
+		//early stopping picks the epoch on one fold of the training ratings, so the "testdata2" MAE stays unbiased
+		List<int[]> stopping = new ArrayList<int[]>();
+		for (int u = 0; u < training.getNumUsers(); u++) {
+			for (int pos = training.userOffsets[u]; pos < training.userOffsets[u + 1]; pos++) {
+				int user = training.userIds[u];
+				int item = training.itemIds[training.userItems[pos]];
+				if (Evaluator.getFold(user, item, STOPPING_FOLDS) == 0) stopping.add(new int[] {user, item, training.userRatings[pos]});
+			}
+		}
+		RatingMatrix fitting = Evaluator.getTrainingMatrix(training, STOPPING_FOLDS, 0);
+		int[] stoppingUsers = new int[stopping.size()];
+		int[] stoppingItems = new int[stopping.size()];
+		int[] stoppingRatings = new int[stopping.size()];
+		for (int i = 0; i < stopping.size(); i++) {
+			stoppingUsers[i] = stopping.get(i)[0];
+			stoppingItems[i] = stopping.get(i)[1];
+			stoppingRatings[i] = stopping.get(i)[2];
+		}
+		System.out.println("Training on " + fitting.getNumRatings() + " ratings, " + stopping.size() + " held out for early stopping, "
+				+ validation.size() + " test pairs held out, " + factors + " factors, " + threads + " threads");
+
+		MatrixFactorization model = new Trainer(fitting, factors, threads).train(maxEpochs, stoppingUsers, stoppingItems, stoppingRatings, 2);
+		if (args.length > 3) {
+			try {
+				model.write(new File(args[3]));
+				System.out.println("Model saved in " + args[3] + " (" + new File(args[3]).length() + " bytes)");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		//MAE and throughput on the test pairs, for this model and for the item-based recommender trained without them
+		HashMap<Integer,Float> trainingAverages = Evaluator.getAverageRatings(training);
+		ItemBased ib = new ItemBased(null);
+		ib.similarityStore = new Evaluator.TrainingSimilarities(training, trainingAverages);
+		String[] names = {"matrix factorization", "item-based (negative)"};
+		ProfilePredictor[] predictors = {model, BatchPredictor.getFormula(ib, true)};
+		for (int p = 0; p < predictors.length; p++) {
+			long start = System.nanoTime();
+			float[] predictions = new BatchPredictor(training, trainingAverages, predictors[p], threads).predict(validation, null);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			double sum = 0;
+			for (int i = 0; i < predictions.length; i++) sum += Math.abs(predictions[i] - validationRatings[i]);
+			System.out.println(String.format("%s: MAE = %.6f, %.0f predictions/s", names[p], predictions.length == 0 ? 0.0 : sum / predictions.length, predictions.length / seconds));
+		}
+
+		if (args.length > 4) {
+			boolean considerNegativeSims = args[4].equals("negative");
+			ArrayList<int[]> preds = considerNegativeSims ? s1.getPredictionsToMake2() : s1.getPredictionsToMake();
+			long start = System.nanoTime();
+			float[] predictions = new BatchPredictor(allRatings, avgRatings, model, threads).predict(preds, null);
+			DatabaseWriter writer = new DatabaseWriter(s1.c);
+			for (int i = 0; i < preds.size(); i++) {
+				if (considerNegativeSims) writer.addPrediction2(preds.get(i)[0], preds.get(i)[1], predictions[i]);
+				else writer.addPrediction(preds.get(i)[0], preds.get(i)[1], predictions[i]);
+			}
+			writer.close();
+			System.out.println(String.format("%d predictions saved in %.1fs", preds.size(), (System.nanoTime() - start) / 1e9));
+		}
+		System.out.println("FINISHED PROGRAM!!!");
+	}
+}
@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Registry of the counters, gauges and latency histograms of a run, shared by the whole process. The hot paths (loading the
+ * ratings, the different outcomes of ItemBased.getSimilarity, the predictions and the commits of the DatabaseWriter)
+ * record into the histograms below; anything else can register its own by name.
+ * While a run is going on, a reporter can print a line with the progress, the throughput, the ETA and the latencies
+ * every few seconds, and the current values can be exported as JSON or in the Prometheus text format.
+ * Printing a line per prediction slows the run down, so logSampled() only prints one message in every so many
+ */
+public class Metrics {
+
+	private static final ConcurrentSkipListMap<String,LatencyHistogram> histograms = new ConcurrentSkipListMap<String,LatencyHistogram>();
+	private static final ConcurrentSkipListMap<String,LongAdder> counters = new ConcurrentSkipListMap<String,LongAdder>();
+	//values read when they are reported (e.g. the depth of a queue), not accumulated
+	private static final ConcurrentSkipListMap<String,LongSupplier> gauges = new ConcurrentSkipListMap<String,LongSupplier>();
+
+	public static final LatencyHistogram LOAD_RATINGS = histogram("loadRatings");
+	public static final LongAdder SIMILARITY_STORE_HITS = counter("similarity.storeHits");
+	public static final LongAdder SIMILARITY_CACHE_HITS = counter("similarity.cacheHits");
+	public static final LatencyHistogram SIMILARITY_DB_HIT = histogram("similarity.dbHit");      //lookups that found the similarity
+	public static final LatencyHistogram SIMILARITY_DB_MISS = histogram("similarity.dbMiss");    //lookups that didn't
+	public static final LatencyHistogram SIMILARITY_COMPUTED = histogram("similarity.computed");
+	public static final LatencyHistogram SIMILARITY_INSERTED = histogram("similarity.inserted"); //handing it to the writer
+	public static final LatencyHistogram PREDICTION = histogram("prediction");
+	public static final LatencyHistogram PREDICTION_NEGATIVE_SIMS = histogram("predictionConsideringNegativeSims");
+	public static final LatencyHistogram COMMIT = histogram("commit");
+	public static final LongAdder ROWS_WRITTEN = counter("rowsWritten");
+
+	//one message out of this number is printed by logSampled(), 0 to print none
+	private static volatile int sampleInterval = 1000;
+	private static final AtomicLong sampledMessages = new AtomicLong();
+
+	private static ScheduledExecutorService reporter;
+
+
+	/**
+	 * @param name
+	 * @return The histogram with this name, created if needed
+	 */
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new LatencyHistogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param name
+	 * @return The counter with this name, created if needed
+	 */
+	public static LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers a gauge, replacing the one with the same name if any
+	 * @param name
+	 * @param value Called every time the gauge is reported
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * @param name
+	 */
+	public static void removeGauge(String name) {
+		gauges.remove(name);
+	}
+
+	/**
+	 * @param interval 1 to print every message, 0 to print none
+	 */
+	public static void setSampleInterval(int interval) {
+		sampleInterval = interval;
+	}
+
+	/**
+	 * Prints the message if its turn has come (one in every "sample interval" messages). The message is built even when
+	 * it isn't printed, so check sampled() first when building it is expensive
+	 * @param message
+	 */
+	public static void logSampled(String message) {
+		if (sampled()) System.out.println(message);
+	}
+
+	/**
+	 * @return Whether the next message is to be printed; every call counts as a message
+	 */
+	public static boolean sampled() {
+		int interval = sampleInterval;
+		return interval > 0 && sampledMessages.getAndIncrement() % interval == 0;
+	}
+
+	/**
+	 * Starts printing a report line every 'seconds' seconds (replacing the reporter running already, if any)
+	 * @param seconds
+	 * @param progress The histogram whose count is the progress of the run (e.g. PREDICTION), or null
+	 * @param total The count at which the run is finished, for the ETA
+	 */
+	public static synchronized void startReporter(int seconds, final LatencyHistogram progress, final long total) {
+		stopReporter();
+		final long startTime = System.nanoTime();
+		final long startCount = progress == null ? 0 : progress.getCount();
+		reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.println(report(progress, startCount, total, startTime)), seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopReporter() {
+		if (reporter != null) reporter.shutdownNow();
+		reporter = null;
+	}
+
+	/**
+	 * @param progress The histogram whose count is the progress of the run, or null
+	 * @param startCount Its count when the run started
+	 * @param total The count at which the run is finished
+	 * @param startTime The System.nanoTime() when the run started, for the throughput and ETA
+	 * @return A line with the progress, throughput and ETA of the run, and the count, median and 99th percentile of every histogram used
+	 */
+	public static String report(LatencyHistogram progress, long startCount, long total, long startTime) {
+		StringBuilder line = new StringBuilder();
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		if (progress != null) {
+			long done = progress.getCount() - startCount;
+			double throughput = seconds > 0 ? done / seconds : 0;
+			long eta = throughput > 0 ? (long) ((total - done) / throughput) : -1;
+			line.append(String.format(Locale.ROOT, "%d/%d (%.1f%%), %.0f/s, %.0fs elapsed, ETA %ds |", done, total,
+					total == 0 ? 100.0 : 100.0 * done / total, throughput, seconds, eta));
+		}
+		for (Map.Entry<String,LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			if (histogram.getCount() == 0) continue;
+			line.append(String.format(Locale.ROOT, " %s n=%d p50=%.1fus p99=%.1fus", entry.getKey(), histogram.getCount(),
+					histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3));
+		}
+		for (Map.Entry<String,LongAdder> entry : counters.entrySet()) {
+			long value = entry.getValue().sum();
+			if (value != 0) line.append(' ').append(entry.getKey()).append('=').append(value);
+		}
+		for (Map.Entry<String,LongSupplier> entry : gauges.entrySet()) {
+			line.append(' ').append(entry.getKey()).append('=').append(entry.getValue().getAsLong());
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @return The current value of every counter, gauge and histogram (latencies in microseconds), as a JSON object
+	 */
+	public static String toJson() {
+		StringBuilder json = new StringBuilder("{\n\t\"timestamp\" : ").append(System.currentTimeMillis()).append(",\n\t\"counters\" : {");
+		boolean first = true;
+		for (Map.Entry<String,LongAdder> entry : counters.entrySet()) {
+			json.append(first ? "\n" : ",\n").append("\t\t\"").append(entry.getKey()).append("\" : ").append(entry.getValue().sum());
+			first = false;
+		}
+		json.append("\n\t},\n\t\"gauges\" : {");
+		first = true;
+		for (Map.Entry<String,LongSupplier> entry : gauges.entrySet()) {
+			json.append(first ? "\n" : ",\n").append("\t\t\"").append(entry.getKey()).append("\" : ").append(entry.getValue().getAsLong());
+			first = false;
+		}
+		json.append("\n\t},\n\t\"histograms\" : {");
+		first = true;
+		for (Map.Entry<String,LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram h = entry.getValue();
+			json.append(first ? "\n" : ",\n").append("\t\t\"").append(entry.getKey()).append("\" : ");
+			json.append(String.format(Locale.ROOT, "{\"count\" : %d, \"totalUs\" : %.3f, \"meanUs\" : %.3f, \"p50Us\" : %.3f, \"p90Us\" : %.3f, \"p99Us\" : %.3f, \"p999Us\" : %.3f, \"maxUs\" : %.3f}",
+					h.getCount(), h.getTotal() / 1e3, h.getMean() / 1e3, h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3,
+					h.getValueAtPercentile(99) / 1e3, h.getValueAtPercentile(99.9) / 1e3, h.getMax() / 1e3));
+			first = false;
+		}
+		return json.append("\n\t}\n}\n").toString();
+	}
+
+	/**
+	 * @return The current value of every counter, gauge and histogram (as summaries, in seconds), in the Prometheus text format
+	 */
+	public static String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String,LongAdder> entry : counters.entrySet()) {
+			String name = "itembased_" + entry.getKey().replace('.', '_') + "_total";
+			text.append("# TYPE ").append(name).append(" counter\n");
+			text.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+		}
+		for (Map.Entry<String,LongSupplier> entry : gauges.entrySet()) {
+			String name = "itembased_" + entry.getKey().replace('.', '_');
+			text.append("# TYPE ").append(name).append(" gauge\n");
+			text.append(name).append(' ').append(entry.getValue().getAsLong()).append('\n');
+		}
+		for (Map.Entry<String,LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram h = entry.getValue();
+			String name = "itembased_" + entry.getKey().replace('.', '_') + "_seconds";
+			text.append("# TYPE ").append(name).append(" summary\n");
+			for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+				text.append(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.9f\n", name, quantile, h.getValueAtPercentile(quantile * 100) / 1e9));
+			}
+			text.append(String.format(Locale.ROOT, "%s_sum %.9f\n", name, h.getTotal() / 1e9));
+			text.append(name).append("_count ").append(h.getCount()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes the current values to a file: in the Prometheus text format if its name ends with ".prom", as JSON otherwise
+	 * @param file
+	 */
+	public static void writeSnapshot(File file) {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.print(file.getName().endsWith(".prom") ? toPrometheus() : toJson());
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
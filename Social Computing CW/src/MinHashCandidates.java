@@ -0,0 +1,344 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+
+/**
+ * Approximate alternative to SimilarityModelBuilder for large catalogues: instead of calculating the similarity of
+ * every pair of items, only the candidate pairs found by locality-sensitive hashing are calculated (exactly).
+ * Every item gets a MinHash signature of its set of raters (bands x rows hash values); two items whose signatures agree
+ * on all the rows of at least one band become a candidate pair. Two items whose rater sets have a Jaccard similarity J
+ * become candidates with probability 1 - (1 - J^rows)^bands, so more bands (or fewer rows per band) find more of the
+ * pairs with few co-raters (higher recall) at the cost of more candidates.
+ * Pairs that are never candidates get a similarity of 0, like the pairs without co-raters, so the model is complete
+ * but approximate; recallReport() measures how many non-zero pairs are missed on a sample of items.
+ * A bucket has a quadratic number of pairs, so the buckets with more than maxBucketSize items (e.g. the items rated
+ * only by the same heavy user, which all get the same signature) are skipped, and counted in the report
+ */
+public class MinHashCandidates {
+
+	public static final int DEFAULT_MAX_BUCKET_SIZE = 1000;
+
+	//the largest array of candidates
+	private static final int MAX_PAIRS = Integer.MAX_VALUE - 8;
+
+	private final RatingMatrix allRatings;
+	private final int bands;
+	private final int rows;
+	private final long seed;
+	private final int maxBucketSize;
+	private final ForkJoinPool pool;
+
+	//buckets (and their pairs) skipped by the last findCandidates() for having more than maxBucketSize items
+	private final LongAdder skippedBuckets = new LongAdder();
+	private final LongAdder skippedPairs = new LongAdder();
+
+	//the signature of the item with index i is at positions i * bands * rows to (i + 1) * bands * rows
+	private int[] signatures;
+
+
+	public MinHashCandidates(RatingMatrix allRatings, int bands, int rows) {
+		this(allRatings, bands, rows, 42, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param bands The number of bands of the signatures
+	 * @param rows The number of hash values per band
+	 * @param seed Of the hash functions
+	 * @param parallelism The number of worker threads
+	 */
+	public MinHashCandidates(RatingMatrix allRatings, int bands, int rows, long seed, int parallelism) {
+		this(allRatings, bands, rows, seed, parallelism, DEFAULT_MAX_BUCKET_SIZE);
+	}
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param bands The number of bands of the signatures
+	 * @param rows The number of hash values per band
+	 * @param seed Of the hash functions
+	 * @param parallelism The number of worker threads
+	 * @param maxBucketSize The largest number of items of a bucket whose pairs become candidates
+	 */
+	public MinHashCandidates(RatingMatrix allRatings, int bands, int rows, long seed, int parallelism, int maxBucketSize) {
+		this.allRatings = allRatings;
+		this.bands = bands;
+		this.rows = rows;
+		this.seed = seed;
+		this.maxBucketSize = maxBucketSize;
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Runs body(i) for every i in [start, end), splitting the range between the workers
+	 */
+	private class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+		private final int grain;
+		private final IntConsumer body;
+
+		RangeTask(int start, int end, int grain, IntConsumer body) {
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= grain) {
+				for (int i = start; i < end; i++) body.accept(i);
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new RangeTask(start, middle, grain, body), new RangeTask(middle, end, grain, body));
+		}
+	}
+
+	private static long mix(long h) {
+		//murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Calculates the MinHash signature of every item: for each of the bands x rows hash functions, the minimum hash of the item's raters
+	 */
+	public void computeSignatures() {
+		final int numHashes = bands * rows;
+		final long[] hashSeeds = new long[numHashes];
+		Random random = new Random(seed);
+		for (int h = 0; h < numHashes; h++) hashSeeds[h] = random.nextLong();
+		signatures = new int[allRatings.getNumItems() * numHashes];
+
+		pool.invoke(new RangeTask(0, allRatings.getNumItems(), SimilarityModelBuilder.DEFAULT_BLOCK_SIZE, item -> {
+			int base = item * numHashes;
+			Arrays.fill(signatures, base, base + numHashes, Integer.MAX_VALUE);
+			for (int pos = allRatings.itemOffsets[item]; pos < allRatings.itemOffsets[item + 1]; pos++) {
+				long user = allRatings.itemUsers[pos];
+				for (int h = 0; h < numHashes; h++) {
+					int value = (int) (mix(user ^ hashSeeds[h]) >>> 33);
+					if (value < signatures[base + h]) signatures[base + h] = value;
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Finds the candidate pairs: the items are grouped by the hash of every band of their signature, and the items of a
+	 * group are paired, unless the group has more than maxBucketSize items
+	 * @return The candidate pairs, as SimilarityCache.key(smallest item index, greatest item index), sorted and without duplicates
+	 * @throws IllegalStateException If there are more candidate pairs than an array can hold
+	 */
+	public long[] findCandidates() {
+		if (signatures == null) computeSignatures();
+		final int numItems = allRatings.getNumItems();
+		final long[][] bandPairs = new long[bands][];
+		skippedBuckets.reset();
+		skippedPairs.reset();
+
+		pool.invoke(new RangeTask(0, bands, 1, band -> {
+			//(hash of the band, item index) pairs, sorted so the items of a bucket are contiguous
+			long[] buckets = new long[numItems];
+			for (int item = 0; item < numItems; item++) {
+				long h = band;
+				int base = item * bands * rows + band * rows;
+				for (int r = 0; r < rows; r++) h = mix(h * 31 + signatures[base + r]);
+				buckets[item] = (h & 0xffffffff00000000L) | item;
+			}
+			Arrays.sort(buckets);
+
+			long[] pairs = new long[16];
+			int n = 0;
+			int start = 0;
+			for (int i = 1; i <= numItems; i++) {
+				if (i < numItems && (buckets[i] >>> 32) == (buckets[start] >>> 32)) continue;
+				//items start to i - 1 share the bucket, and are sorted by index
+				int size = i - start;
+				if (size > maxBucketSize) {
+					skippedBuckets.increment();
+					skippedPairs.add((long) size * (size - 1) / 2);
+					start = i;
+					continue;
+				}
+				for (int a = start; a < i; a++) {
+					for (int b = a + 1; b < i; b++) {
+						if (n == pairs.length) pairs = Arrays.copyOf(pairs, grow(n));
+						pairs[n++] = SimilarityCache.key((int) buckets[a], (int) buckets[b]);
+					}
+				}
+				start = i;
+			}
+			bandPairs[band] = Arrays.copyOf(pairs, n);
+		}));
+
+		long total = 0;
+		for (long[] pairs : bandPairs) total += pairs.length;
+		if (total > MAX_PAIRS) throw new IllegalStateException(total + " candidate pairs in all the bands: use more rows per band or a smaller maximum bucket size");
+		long[] candidates = new long[(int) total];
+		int n = 0;
+		for (long[] pairs : bandPairs) {
+			System.arraycopy(pairs, 0, candidates, n, pairs.length);
+			n += pairs.length;
+		}
+		Arrays.parallelSort(candidates);
+		int distinct = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			if (distinct == 0 || candidates[distinct - 1] != candidates[i]) candidates[distinct++] = candidates[i];
+		}
+		return Arrays.copyOf(candidates, distinct);
+	}
+
+	/**
+	 * @param length
+	 * @return The length to grow an array of pairs to, half as long again up to MAX_PAIRS
+	 * @throws IllegalStateException If it already has MAX_PAIRS pairs
+	 */
+	private static int grow(int length) {
+		if (length >= MAX_PAIRS) throw new IllegalStateException("more than " + MAX_PAIRS + " candidate pairs in a band: use more rows per band or a smaller maximum bucket size");
+		return (int) Math.min(MAX_PAIRS, length + (long) (length >> 1));
+	}
+
+	/**
+	 * Calculates the exact similarity of every candidate pair
+	 * @param candidates As returned by findCandidates()
+	 * @param userAverages The average user ratings, by user index (see RatingMatrix.getUserAverages)
+	 * @return The model, with the non-zero similarities of the candidate pairs
+	 */
+	public SimilarityModel buildModel(final long[] candidates, final float[] userAverages) {
+		final float[] values = new float[candidates.length];
+		int chunks = (candidates.length + 1023) / 1024;
+		pool.invoke(new RangeTask(0, chunks, 1, chunk -> {
+			int end = Math.min(candidates.length, (chunk + 1) * 1024);
+			for (int c = chunk * 1024; c < end; c++) {
+				values[c] = SimilarityKernel.adjustedCosine(allRatings, (int) (candidates[c] >>> 32), (int) candidates[c], userAverages);
+			}
+		}));
+
+		//the candidates are sorted by row, then by column, which is the layout of the model
+		int numItems = allRatings.getNumItems();
+		int[] rowOffsets = new int[numItems + 1];
+		int n = 0;
+		for (int c = 0; c < candidates.length; c++) {
+			if (values[c] != 0) {
+				rowOffsets[(int) (candidates[c] >>> 32) + 1]++;
+				n++;
+			}
+		}
+		for (int i = 0; i < numItems; i++) rowOffsets[i + 1] += rowOffsets[i];
+		int[] neighbours = new int[n];
+		float[] similarities = new float[n];
+		n = 0;
+		for (int c = 0; c < candidates.length; c++) {
+			if (values[c] != 0) {
+				neighbours[n] = (int) candidates[c];
+				similarities[n] = values[c];
+				n++;
+			}
+		}
+		return new SimilarityModel(allRatings.itemIds, rowOffsets, neighbours, similarities);
+	}
+
+	/**
+	 * Compares the candidates with the exact all-pairs similarities of a random sample of items (against every other item)
+	 * @param candidates As returned by findCandidates()
+	 * @param userAverages The average user ratings, by user index (see RatingMatrix.getUserAverages)
+	 * @param sampleSize The number of items of the sample
+	 * @param minCoRaters The report also gives the recall of the pairs with at least this number of co-raters
+	 * @return The recall of the non-zero pairs, of the pairs with at least 'minCoRaters' co-raters and weighted by the absolute similarity, the ratio of pairs calculated and the oversized buckets skipped
+	 */
+	public String recallReport(final long[] candidates, final float[] userAverages, int sampleSize, final int minCoRaters) {
+		final int numItems = allRatings.getNumItems();
+		final int[] sample = new int[Math.min(sampleSize, numItems)];
+		Random random = new Random(seed);
+		for (int i = 0; i < sample.length; i++) sample[i] = random.nextInt(numItems);
+
+		//by sampled item: non-zero pairs, found; pairs with enough co-raters, found; sum of |similarity|, found
+		final double[][] counts = new double[sample.length][6];
+		final ThreadLocal<double[]> sums = ThreadLocal.withInitial(() -> new double[3]);
+		pool.invoke(new RangeTask(0, sample.length, 1, s -> {
+			int i = sample[s];
+			double[] sum = sums.get();
+			for (int j = 0; j < numItems; j++) {
+				if (j == i) continue;
+				int coRaters = SimilarityKernel.accumulate(allRatings, i, j, userAverages, sum);
+				if (coRaters == 0) continue;
+				float similarity = SimilarityKernel.similarity(sum[SimilarityKernel.NUMERATOR], sum[SimilarityKernel.DENOMINATOR1], sum[SimilarityKernel.DENOMINATOR2]);
+				if (similarity == 0) continue;
+				boolean found = Arrays.binarySearch(candidates, SimilarityCache.key(Math.min(i, j), Math.max(i, j))) >= 0;
+				counts[s][0]++;
+				if (found) counts[s][1]++;
+				if (coRaters >= minCoRaters) {
+					counts[s][2]++;
+					if (found) counts[s][3]++;
+				}
+				counts[s][4] += Math.abs(similarity);
+				if (found) counts[s][5] += Math.abs(similarity);
+			}
+		}));
+
+		double[] total = new double[6];
+		for (double[] c : counts) {
+			for (int k = 0; k < 6; k++) total[k] += c[k];
+		}
+		double allPairs = (double) numItems * (numItems - 1) / 2;
+		return String.format("bands = %d, rows = %d: %d candidate pairs (%.2f%% of all pairs); on %d sampled items, recall = %.4f (%d/%d non-zero pairs), "
+				+ "recall with at least %d co-raters = %.4f (%d/%d), weighted recall = %.4f; %d buckets of more than %d items skipped (%d pairs)",
+				bands, rows, candidates.length, 100.0 * candidates.length / allPairs, sample.length,
+				total[1] / total[0], (long) total[1], (long) total[0], minCoRaters, total[3] / total[2], (long) total[3], (long) total[2], total[5] / total[4],
+				skippedBuckets.sum(), maxBucketSize, skippedPairs.sum());
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Builds the similarity model from the candidate pairs, prints the recall on a sample and saves the model in the "similarities" table if asked to
+	 * Usage: MinHashCandidates [bands] [rows] [threads] [sample] [save] [max bucket size]
+	 */
+	public static void main(String[] args) {
+		int bands = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int sampleSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+		boolean save = args.length > 4 && args[4].equals("save");
+		int maxBucketSize = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_MAX_BUCKET_SIZE;
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		float[] userAverages = allRatings.getUserAverages(avgRatings);
+
+		MinHashCandidates lsh = new MinHashCandidates(allRatings, bands, rows, 42, threads, maxBucketSize);
+		long start = System.nanoTime();
+		long[] candidates = lsh.findCandidates();
+		System.out.println(String.format("Candidates found in %.1fs", (System.nanoTime() - start) / 1e9));
+		start = System.nanoTime();
+		SimilarityModel model = lsh.buildModel(candidates, userAverages);
+		System.out.println(String.format("Non-zero similarities = %d, calculated in %.1fs", model.size(), (System.nanoTime() - start) / 1e9));
+		System.out.println(lsh.recallReport(candidates, userAverages, sampleSize, 5));
+		lsh.shutdown();
+
+		if (save) model.saveToDatabase(s1.c);
+		System.out.println("FINISHED PROGRAM!!!");
+		try {
+			s1.c.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
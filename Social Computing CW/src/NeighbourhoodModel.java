@@ -0,0 +1,310 @@
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Top-k neighbourhood model: for every item, only the k most similar items are kept (optionally only those with a
+ * minimum number of co-raters and a minimum similarity). Predictions using this model weight at most k items, whatever
+ * the number of items the user rated, and the model takes at most k entries per item.
+ * The neighbours are either the k most similar items (for calculatePrediction, which skips negative ones), or the k
+ * items whose similarity has the greatest absolute value, negative ones included (for
+ * calculatePredictionConsideringNegativeSims, which weights them by their absolute value).
+ * The neighbours of the item with index i are found at positions offsets[i] to offsets[i+1] of "neighbours" (item
+ * indices) and "similarities", by decreasing similarity (by decreasing absolute value if byMagnitude is set)
+ */
+public class NeighbourhoodModel {
+
+	//item ids of the rating matrix the model was built from, the position of an id is its index
+	public final int[] itemIds;
+	public final int k;
+	//true if the neighbours were ranked by the absolute value of their similarity, so negative ones are kept
+	public final boolean byMagnitude;
+
+	public final int[] offsets;
+	public final int[] neighbours;
+	public final float[] similarities;
+
+
+	public NeighbourhoodModel(int[] itemIds, int k, boolean byMagnitude, int[] offsets, int[] neighbours, float[] similarities) {
+		this.itemIds = itemIds;
+		this.k = k;
+		this.byMagnitude = byMagnitude;
+		this.offsets = offsets;
+		this.neighbours = neighbours;
+		this.similarities = similarities;
+	}
+
+	/**
+	 * @param itemIndex
+	 * @return The number of neighbours kept for the item with index 'itemIndex'
+	 */
+	public int getNumNeighbours(int itemIndex) {
+		return offsets[itemIndex + 1] - offsets[itemIndex];
+	}
+
+	public int size() {
+		return neighbours.length;
+	}
+
+	/**
+	 * @param k
+	 * @return The model keeping only the first 'k' neighbours of every item, i.e. the model build() would return for k
+	 * (or this model if it keeps no more than k)
+	 */
+	public NeighbourhoodModel truncate(int k) {
+		if (k >= this.k) return this;
+		int numItems = offsets.length - 1;
+		int[] newOffsets = new int[numItems + 1];
+		for (int i = 0; i < numItems; i++) newOffsets[i + 1] = newOffsets[i] + Math.min(k, getNumNeighbours(i));
+		int[] newNeighbours = new int[newOffsets[numItems]];
+		float[] newSimilarities = new float[newOffsets[numItems]];
+		for (int i = 0; i < numItems; i++) {
+			int n = newOffsets[i + 1] - newOffsets[i];
+			System.arraycopy(neighbours, offsets[i], newNeighbours, newOffsets[i], n);
+			System.arraycopy(similarities, offsets[i], newSimilarities, newOffsets[i], n);
+		}
+		return new NeighbourhoodModel(itemIds, k, byMagnitude, newOffsets, newNeighbours, newSimilarities);
+	}
+
+	/**
+	 * Builds the model on all the cores
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param userAverages The average user ratings, by user index (see RatingMatrix.getUserAverages)
+	 * @param k The maximum number of neighbours per item
+	 * @param minCoRaters Neighbours must have at least this number of users in common with the item
+	 * @param minSimilarity Neighbours must have at least this similarity with the item (this absolute value if byMagnitude)
+	 * @param byMagnitude Whether the neighbours are ranked by the absolute value of their similarity, negative ones
+	 * included, rather than by their similarity, negative ones excluded
+	 * @return The model
+	 */
+	public static NeighbourhoodModel build(RatingMatrix allRatings, float[] userAverages, int k, int minCoRaters, float minSimilarity, boolean byMagnitude) {
+		return build(allRatings, userAverages, k, minCoRaters, minSimilarity, byMagnitude, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Builds the model. The similarity of every pair of items is computed once, and offered to the bounded heaps of both
+	 * items, which keep their best k neighbours. The heap of an item is shared by all the threads (they lock it), except
+	 * while its own row is computed: its row's pairs go to a per-thread heap first, which is then merged into it
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param userAverages The average user ratings, by user index (see RatingMatrix.getUserAverages)
+	 * @param k The maximum number of neighbours per item
+	 * @param minCoRaters Neighbours must have at least this number of users in common with the item
+	 * @param minSimilarity Neighbours must have at least this similarity with the item (this absolute value if byMagnitude)
+	 * @param byMagnitude Whether the neighbours are ranked by the absolute value of their similarity, negative ones
+	 * included, rather than by their similarity, negative ones excluded
+	 * @param parallelism The number of worker threads
+	 * @return The model
+	 */
+	public static NeighbourhoodModel build(final RatingMatrix allRatings, final float[] userAverages, final int k, final int minCoRaters, final float minSimilarity, final boolean byMagnitude, int parallelism) {
+		final int numItems = allRatings.getNumItems();
+		final int heapSize = Math.max(0, Math.min(k, numItems - 1));
+		final TopK[] heaps = new TopK[numItems];
+		for (int i = 0; i < numItems; i++) heaps[i] = new TopK(heapSize);
+		final ThreadLocal<TopK> rowHeaps = ThreadLocal.withInitial(() -> new TopK(heapSize));
+		final ThreadLocal<double[]> sums = ThreadLocal.withInitial(() -> new double[3]);
+
+		//when ranking by magnitude, the heaps hold the absolute values, and a negative neighbour j is offered as ~j
+		class RowTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			final int start;
+			final int end;
+
+			RowTask(int start, int end) {
+				this.start = start;
+				this.end = end;
+			}
+
+			@Override
+			protected void compute() {
+				if (end - start > SimilarityModelBuilder.DEFAULT_BLOCK_SIZE) {
+					int middle = (start + end) >>> 1;
+					invokeAll(new RowTask(start, middle), new RowTask(middle, end));
+					return;
+				}
+				TopK rowHeap = rowHeaps.get();
+				double[] s = sums.get();
+				for (int i = start; i < end; i++) {
+					rowHeap.clear();
+					for (int j = i + 1; j < numItems; j++) {
+						int coRaters = SimilarityKernel.accumulate(allRatings, i, j, userAverages, s);
+						if (coRaters == 0 || coRaters < minCoRaters) continue;
+						float similarity = SimilarityKernel.similarity(s[SimilarityKernel.NUMERATOR], s[SimilarityKernel.DENOMINATOR1], s[SimilarityKernel.DENOMINATOR2]);
+						if (similarity == 0) continue;
+						float value = byMagnitude ? Math.abs(similarity) : similarity;
+						if (value < minSimilarity) continue;
+						boolean negative = byMagnitude && similarity < 0;
+						rowHeap.offer(negative ? ~j : j, value);
+						TopK heap = heaps[j];
+						synchronized (heap) {
+							heap.offer(negative ? ~i : i, value);
+						}
+					}
+					TopK heap = heaps[i];
+					synchronized (heap) {
+						for (int n = 0; n < rowHeap.size(); n++) heap.offer(rowHeap.items[n], rowHeap.values[n]);
+					}
+				}
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new RowTask(0, numItems));
+		} finally {
+			pool.shutdown();
+		}
+
+		int[] offsets = new int[numItems + 1];
+		for (int i = 0; i < numItems; i++) offsets[i + 1] = offsets[i] + heaps[i].size();
+		int[] neighbours = new int[offsets[numItems]];
+		float[] similarities = new float[offsets[numItems]];
+		for (int i = 0; i < numItems; i++) {
+			heaps[i].drainDescending(neighbours, similarities, offsets[i]);
+			heaps[i] = null;
+			for (int n = offsets[i]; n < offsets[i + 1]; n++) {
+				if (neighbours[n] < 0) {
+					neighbours[n] = ~neighbours[n];
+					similarities[n] = -similarities[n];
+				}
+			}
+		}
+		return new NeighbourhoodModel(allRatings.itemIds, k, byMagnitude, offsets, neighbours, similarities);
+	}
+
+	/**
+	 * Bounded min-heap keeping the k pairs (item, similarity) with the greatest similarity offered to it
+	 */
+	static class TopK {
+
+		private int k;
+		final int[] items;
+		final float[] values;
+		private int size;
+
+		TopK(int k) {
+			this.k = k;
+			items = new int[k];
+			values = new float[k];
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		/**
+		 * Empties the heap, which will now keep the best 'k' pairs (at most the k it was created with)
+		 */
+		void clear(int k) {
+			this.k = Math.min(k, items.length);
+			size = 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void offer(int item, float value) {
+			if (size < k) {
+				//sift up
+				int child = size++;
+				while (child > 0) {
+					int parent = (child - 1) >>> 1;
+					if (values[parent] <= value) break;
+					items[child] = items[parent];
+					values[child] = values[parent];
+					child = parent;
+				}
+				items[child] = item;
+				values[child] = value;
+			} else if (k > 0 && value > values[0]) {
+				siftDown(item, value);
+			}
+		}
+
+		//replaces the root (the smallest value) and restores the heap
+		private void siftDown(int item, float value) {
+			int parent = 0;
+			while (true) {
+				int child = 2 * parent + 1;
+				if (child >= size) break;
+				if (child + 1 < size && values[child + 1] < values[child]) child++;
+				if (values[child] >= value) break;
+				items[parent] = items[child];
+				values[parent] = values[child];
+				parent = child;
+			}
+			items[parent] = item;
+			values[parent] = value;
+		}
+
+		/**
+		 * Empties the heap into the arrays, by decreasing value
+		 */
+		void drainDescending(int[] outItems, float[] outValues) {
+			drainDescending(outItems, outValues, 0);
+		}
+
+		/**
+		 * Empties the heap into the arrays from position 'offset', by decreasing value
+		 */
+		void drainDescending(int[] outItems, float[] outValues, int offset) {
+			for (int n = size - 1; n >= 0; n--) {
+				outItems[offset + n] = items[0];
+				outValues[offset + n] = values[0];
+				size--;
+				if (size > 0) siftDown(items[size], values[size]);
+			}
+		}
+	}
+
+	/**
+	 * Measures the mean absolute error of the predictions made for the "testdata2" pairs using only the top k neighbours,
+	 * for several values of k, so k can be chosen. The models are built from the ratings without those pairs
+	 * Usage: NeighbourhoodModel [minCoRaters] [minSimilarity] k1 k2 ...
+	 */
+	public static void main(String[] args) {
+		int minCoRaters = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		float minSimilarity = args.length > 1 ? Float.parseFloat(args[1]) : 0.0f;
+		int[] ks = args.length > 2 ? new int[args.length - 2] : new int[] {10, 20, 50, 100, 200};
+		for (int i = 2; i < args.length; i++) ks[i - 2] = Integer.parseInt(args[i]);
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer, HashMap<Integer,Float>> testSet = s1.loadPredictions();
+		//the models must not see the ratings they are scored on
+		RatingMatrix training = Evaluator.getTrainingMatrix(allRatings, s1.getTestPairs());
+		HashMap<Integer,Float> avgRatings = Evaluator.getAverageRatings(training);
+		float[] userAverages = training.getUserAverages(avgRatings);
+		ItemBased ib = new ItemBased(s1.c);
+
+		//the top k neighbours are the first k of the top max(k) ones, so the models are built once for the largest k
+		int maxK = 0;
+		for (int k : ks) maxK = Math.max(maxK, k);
+		NeighbourhoodModel positiveModel = build(training, userAverages, maxK, minCoRaters, minSimilarity, false);
+		NeighbourhoodModel magnitudeModel = build(training, userAverages, maxK, minCoRaters, minSimilarity, true);
+
+		System.out.println("k\tneighbours\tMAE\tneighbours (negative similarities)\tMAE (negative similarities)");
+		for (int k : ks) {
+			NeighbourhoodModel model = positiveModel.truncate(k);
+			NeighbourhoodModel model2 = magnitudeModel.truncate(k);
+
+			HashMap<Integer, HashMap<Integer,Float>> preds = new HashMap<Integer, HashMap<Integer,Float>>();
+			HashMap<Integer, HashMap<Integer,Float>> preds2 = new HashMap<Integer, HashMap<Integer,Float>>();
+			for (Integer item : testSet.keySet()) {
+				HashMap<Integer,Float> usersAndPreds = new HashMap<Integer,Float>();
+				HashMap<Integer,Float> usersAndPreds2 = new HashMap<Integer,Float>();
+				for (Integer user : testSet.get(item).keySet()) {
+					ib.neighbourhoodModel = model;
+					usersAndPreds.put(user, ib.calculatePrediction(user, item, training, avgRatings));
+					ib.neighbourhoodModel = model2;
+					usersAndPreds2.put(user, ib.calculatePredictionConsideringNegativeSims(user, item, training, avgRatings));
+				}
+				preds.put(item, usersAndPreds);
+				preds2.put(item, usersAndPreds2);
+			}
+			System.out.println(k + "\t" + model.size() + "\t" + ib.getMeanAbsoluteError(preds, allRatings) + "\t" + model2.size() + "\t" + ib.getMeanAbsoluteError(preds2, allRatings));
+		}
+	}
+}
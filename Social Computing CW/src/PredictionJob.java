@@ -0,0 +1,293 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Resumable version of PredictionRunner for long runs: instead of loading every pending prediction into a list, it
+ * pages through the rows of "predictions" (or "predictions2") that have no prediction yet, in (userid, profileid)
+ * order, 'pageSize' rows at a time. Each page is read with a keyset condition (the rows after the last one done), so
+ * reading a page costs the same at the start and at the end of the table, and only one page is in memory at a time.
+ * The predictions of a page and the key of its last row (the checkpoint, in "predictioncheckpoints") are committed
+ * together, so after a crash the job restarts right after the last committed page: a page is either written entirely
+ * with its checkpoint or not at all, and no prediction is ever written twice
+ */
+public class PredictionJob {
+
+	public static final int DEFAULT_PAGE_SIZE = 10000;
+
+	private final ItemBased ib;
+	private final RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+	private final boolean considerNegativeSims;
+	private final String table;
+	private final int threads;
+	private final int pageSize;
+
+	private volatile boolean stopped;
+
+
+	/**
+	 * @param ib Its connection is used to read the pages and write the predictions, synchronized on its writer
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param considerNegativeSims true to fill "predictions2" with calculatePredictionConsideringNegativeSims, false to fill "predictions" with calculatePrediction
+	 * @param threads The number of threads making the predictions of a page
+	 * @param pageSize The number of rows read (and committed) at a time
+	 */
+	public PredictionJob(ItemBased ib, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, boolean considerNegativeSims, int threads, int pageSize) {
+		this.ib = ib;
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		this.considerNegativeSims = considerNegativeSims;
+		this.table = considerNegativeSims ? "predictions2" : "predictions";
+		this.threads = threads;
+		this.pageSize = pageSize;
+		createTables();
+	}
+
+	/**
+	 * Creates the checkpoint table and the index the pages are read (and the predictions updated) by, if they don't exist
+	 */
+	private void createTables() {
+		synchronized (ib.writer) {
+			try {
+				Statement s = ib.c.createStatement();
+				s.execute("CREATE TABLE IF NOT EXISTS predictioncheckpoints (tablename TEXT PRIMARY KEY, userid INTEGER, profileid INTEGER)");
+				s.execute("CREATE INDEX IF NOT EXISTS " + table + "_key ON " + table + " (userid, profileid)");
+				s.close();
+				ib.c.commit();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return The key (index 0: user id, index 1: item id) of the last row done, or null if the job hasn't committed any page yet
+	 */
+	public int[] getCheckpoint() {
+		synchronized (ib.writer) {
+			try {
+				PreparedStatement ps = ib.c.prepareStatement("SELECT userid, profileid FROM predictioncheckpoints WHERE tablename = ?");
+				ps.setString(1, table);
+				ResultSet rs = ps.executeQuery();
+				int[] checkpoint = rs.next() ? new int[] {rs.getInt(1), rs.getInt(2)} : null;
+				rs.close();
+				ps.close();
+				return checkpoint;
+			} catch (SQLException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the checkpoint, so the next run starts from the first row without a prediction
+	 */
+	public void resetCheckpoint() {
+		synchronized (ib.writer) {
+			try {
+				PreparedStatement ps = ib.c.prepareStatement("DELETE FROM predictioncheckpoints WHERE tablename = ?");
+				ps.setString(1, table);
+				ps.executeUpdate();
+				ps.close();
+				ib.c.commit();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Makes run() return once the page in progress is committed
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @param after The key of the last row done
+	 * @return The number of rows after 'after' without a prediction
+	 */
+	private long countPending(int[] after) {
+		synchronized (ib.writer) {
+			try {
+				PreparedStatement ps = ib.c.prepareStatement("SELECT count(*) FROM " + table + " WHERE prediction = 0 AND (userid > ? OR (userid = ? AND profileid > ?))");
+				ps.setInt(1, after[0]);
+				ps.setInt(2, after[0]);
+				ps.setInt(3, after[1]);
+				ResultSet rs = ps.executeQuery();
+				long count = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				ps.close();
+				return count;
+			} catch (SQLException e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Makes the predictions of the rows without one, from the checkpoint on, committing them page by page
+	 * @return The number of predictions made
+	 */
+	public long run() {
+		int[] checkpoint = getCheckpoint();
+		final int[] after = checkpoint != null ? checkpoint : new int[] {Integer.MIN_VALUE, Integer.MIN_VALUE};
+		if (checkpoint != null) System.out.println("Resuming " + table + " after user " + after[0] + ", item " + after[1]);
+		LatencyHistogram progress = considerNegativeSims ? Metrics.PREDICTION_NEGATIVE_SIMS : Metrics.PREDICTION;
+		long startCount = progress.getCount();
+		long total = countPending(after);
+		long startTime = System.nanoTime();
+		Metrics.startReporter(10, progress, total);
+
+		final int[] users = new int[pageSize];
+		final int[] items = new int[pageSize];
+		final float[] predictions = new float[pageSize];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long made = 0;
+		try {
+			PreparedStatement readPage, update, saveCheckpoint;
+			synchronized (ib.writer) {
+				//SQLite before 3.15 has no row values, hence the expanded (userid, profileid) > (?, ?)
+				readPage = ib.c.prepareStatement("SELECT userid, profileid FROM " + table + " WHERE prediction = 0 AND (userid > ? OR (userid = ? AND profileid > ?)) ORDER BY userid, profileid LIMIT ?");
+				update = ib.c.prepareStatement("UPDATE " + table + " SET prediction = ? WHERE userid = ? AND profileid = ?");
+				saveCheckpoint = ib.c.prepareStatement("INSERT OR REPLACE INTO predictioncheckpoints (tablename, userid, profileid) VALUES (?, ?, ?)");
+			}
+
+			while (!stopped) {
+				int size = 0;
+				synchronized (ib.writer) {
+					readPage.setInt(1, after[0]);
+					readPage.setInt(2, after[0]);
+					readPage.setInt(3, after[1]);
+					readPage.setInt(4, pageSize);
+					ResultSet rs = readPage.executeQuery();
+					while (rs.next()) {
+						users[size] = rs.getInt(1);
+						items[size] = rs.getInt(2);
+						size++;
+					}
+					rs.close();
+				}
+				if (size == 0) break;
+
+				predictPage(pool, users, items, predictions, size);
+
+				//the predictions of the page and the checkpoint are committed together
+				synchronized (ib.writer) {
+					for (int i = 0; i < size; i++) {
+						update.setFloat(1, predictions[i]);
+						update.setInt(2, users[i]);
+						update.setInt(3, items[i]);
+						update.addBatch();
+					}
+					update.executeBatch();
+					saveCheckpoint.setString(1, table);
+					saveCheckpoint.setInt(2, users[size - 1]);
+					saveCheckpoint.setInt(3, items[size - 1]);
+					saveCheckpoint.executeUpdate();
+					ib.c.commit();
+				}
+				Metrics.ROWS_WRITTEN.add(size);
+				after[0] = users[size - 1];
+				after[1] = items[size - 1];
+				made += size;
+			}
+			synchronized (ib.writer) {
+				readPage.close();
+				update.close();
+				saveCheckpoint.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			pool.shutdownNow();
+			//the similarities calculated on the way
+			ib.writer.flush();
+			Metrics.stopReporter();
+		}
+		System.out.println(Metrics.report(progress, startCount, total, startTime));
+		return made;
+	}
+
+	/**
+	 * Makes the predictions of a page on the pool, a chunk per thread
+	 */
+	private void predictPage(ExecutorService pool, final int[] users, final int[] items, final float[] predictions, int size) {
+		final LatencyHistogram latencies = considerNegativeSims ? Metrics.PREDICTION_NEGATIVE_SIMS : Metrics.PREDICTION;
+		int chunk = (size + threads - 1) / threads;
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int from = 0; from < size; from += chunk) {
+			final int start = from;
+			final int end = Math.min(size, from + chunk);
+			tasks.add(Executors.callable(() -> {
+				for (int i = start; i < end; i++) {
+					long begin = System.nanoTime();
+					predictions[i] = considerNegativeSims ? ib.calculatePredictionConsideringNegativeSims(users[i], items[i], allRatings, avgRatings)
+							: ib.calculatePrediction(users[i], items[i], allRatings, avgRatings);
+					latencies.recordSince(begin);
+					if (Metrics.sampled()) {
+						System.out.println("user " + users[i] + " has a predicted rating of " + predictions[i] + " for item " + items[i]);
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<Object> task : pool.invokeAll(tasks)) task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Makes the missing predictions of "predictions2" (or of "predictions" if the second argument is "positive"), resuming
+	 * from the last checkpoint unless the fourth argument is "reset". On Ctrl-C the page in progress is committed before exiting
+	 * Usage: PredictionJob [threads] [positive|negative] [page size] [reset] [snapshot]
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		boolean considerNegativeSims = !(args.length > 1 && args[1].equals("positive"));
+		int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PAGE_SIZE;
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		ItemBased ib = new ItemBased(s1.c);
+		final PredictionJob job = new PredictionJob(ib, allRatings, avgRatings, considerNegativeSims, threads, pageSize);
+		if (args.length > 3 && args[3].equals("reset")) job.resetCheckpoint();
+
+		final Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			job.stop();
+			try {
+				main.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+
+		long made = job.run();
+		ib.writer.close();
+		System.out.println(made + " predictions made");
+		if (args.length > 4) Metrics.writeSnapshot(new File(args[4]));
+		System.out.println("PROGRAM FINISHED!!!");
+	}
+}
@@ -0,0 +1,281 @@
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Makes the missing predictions of "predictions" or "predictions2" in three stages connected by bounded queues, so
+ * reading, computing and writing overlap instead of taking turns:
+ *   reader   one thread reading the pending (user, item) pairs page by page (keyset pagination, as PredictionJob)
+ *            and putting them in the pair queue in chunks
+ *   compute  'threads' threads taking the chunks and making the predictions, one indexed UserProfile each (the pairs
+ *            come sorted by user, so consecutive pairs share the profile)
+ *   writer   the thread of the AsyncDatabaseWriter set as ib.writer, the only one writing to the connection; its
+ *            queue takes the predictions and the similarities ItemBased calculates on the way
+ * A full queue makes the stage before it wait (backpressure), so the memory taken doesn't depend on how many pairs are
+ * pending. The connection is still used by one thread at a time: the reader (and ItemBased, for a similarity
+ * it doesn't have) takes the writer's lock, as everywhere else.
+ * The depth of the pair queue and the utilisation (busy time over elapsed time, in percent) of the reader and the
+ * compute stage are registered as gauges ("pipeline.pairQueueDepth", "pipeline.reader.utilisation",
+ * "pipeline.compute.utilisation"; they keep the values of the last run once it is over), next to the writer's (see
+ * AsyncDatabaseWriter)
+ */
+public class PredictionPipeline {
+
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+	public static final int DEFAULT_QUEUE_CHUNKS = 256;
+
+	public static final LatencyHistogram READER_BACKPRESSURE = Metrics.histogram("pipeline.readerBackpressure");
+
+	//put in the pair queue once per compute thread after the last chunk
+	private static final int[][] END = new int[0][];
+
+	private final ItemBased ib;
+	private final RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+	private final int threads;
+	private final int pageSize;
+	private final int chunkSize;
+	private final int queueChunks;
+
+
+	/**
+	 * @param ib The recommender, with an AsyncDatabaseWriter as its writer
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param threads The number of compute threads
+	 */
+	public PredictionPipeline(ItemBased ib, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, int threads) {
+		this(ib, allRatings, avgRatings, threads, DEFAULT_PAGE_SIZE, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CHUNKS);
+	}
+
+	/**
+	 * @param ib The recommender, with an AsyncDatabaseWriter as its writer
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param threads The number of compute threads
+	 * @param pageSize The number of pairs read at a time
+	 * @param chunkSize The number of pairs handed to a compute thread at a time
+	 * @param queueChunks The number of chunks the pair queue can hold
+	 */
+	public PredictionPipeline(ItemBased ib, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, int threads, int pageSize, int chunkSize, int queueChunks) {
+		this.ib = ib;
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		this.threads = threads;
+		this.pageSize = pageSize;
+		this.chunkSize = chunkSize;
+		this.queueChunks = queueChunks;
+	}
+
+	/**
+	 * Makes the missing predictions and waits until they are committed. The first stage to fail stops the others;
+	 * what was predicted until then is still committed
+	 * @param considerNegativeSims true to fill "predictions2" with getPredictionConsideringNegativeSims' formula, false to fill "predictions" with getPrediction's
+	 * @return The number of predictions made
+	 * @throws IllegalStateException If a stage failed or the run was interrupted
+	 */
+	public long run(final boolean considerNegativeSims) {
+		final String table = considerNegativeSims ? "predictions2" : "predictions";
+		final ProfilePredictor formula = BatchPredictor.getFormula(ib, considerNegativeSims);
+		final LatencyHistogram progress = considerNegativeSims ? Metrics.PREDICTION_NEGATIVE_SIMS : Metrics.PREDICTION;
+		final ArrayBlockingQueue<int[][]> pairs = new ArrayBlockingQueue<int[][]>(queueChunks);
+		final LongAdder readerBusy = new LongAdder();
+		final LongAdder computeBusy = new LongAdder();
+		final AtomicInteger made = new AtomicInteger();
+		final long startTime = System.nanoTime();
+		final AtomicLong endTime = new AtomicLong();
+		Metrics.gauge("pipeline.pairQueueDepth", pairs::size);
+		Metrics.gauge("pipeline.reader.utilisation", () -> getUtilisation(readerBusy, startTime, endTime.get(), 1));
+		Metrics.gauge("pipeline.compute.utilisation", () -> getUtilisation(computeBusy, startTime, endTime.get(), threads));
+		long startCount = progress.getCount();
+		Metrics.startReporter(10, progress, countPending(table));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+		//the stages in the order they finish, so the first failure is seen even while the reader waits for room
+		ExecutorCompletionService<Void> stages = new ExecutorCompletionService<Void>(pool);
+		stages.submit(() -> {
+			readPairs(table, pairs, readerBusy);
+			return null;
+		});
+		for (int t = 0; t < threads; t++) {
+			stages.submit(() -> {
+				UserProfile profile = new UserProfile(allRatings, avgRatings, true);
+				while (true) {
+					int[][] chunk = pairs.take();
+					if (chunk == END) return null;
+					for (int[] pair : chunk) {
+						long start = System.nanoTime();
+						if (profile.user != pair[0] || profile.userIndex < 0) profile.load(pair[0]);
+						float prediction = formula.predict(profile, pair[1]);
+						//waiting for room in the writer's queue is not busy time
+						computeBusy.add(System.nanoTime() - start);
+						if (considerNegativeSims) ib.writer.addPrediction2(pair[0], pair[1], prediction);
+						else ib.writer.addPrediction(pair[0], pair[1], prediction);
+						progress.recordSince(start);
+						if (Metrics.sampled()) {
+							System.out.println("user " + pair[0] + " has a predicted rating of " + prediction + " for item " + pair[1]);
+						}
+					}
+					made.addAndGet(chunk.length);
+				}
+			});
+		}
+		pool.shutdown();
+
+		try {
+			for (int s = 0; s <= threads; s++) stages.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while making the predictions", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("a stage of the prediction pipeline failed", e.getCause());
+		} finally {
+			//interrupts the stages still running, a reader waiting for room in the pair queue included
+			pool.shutdownNow();
+			try {
+				//whatever was predicted, make sure it reaches the database once no compute thread adds to it
+				if (pool.awaitTermination(1, TimeUnit.MINUTES)) ib.writer.flush();
+				else System.out.println("Warning: the stages of the pipeline did not stop, the last predictions are not flushed");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			endTime.set(System.nanoTime());
+			Metrics.stopReporter();
+		}
+		System.out.println(Metrics.report(progress, startCount, made.get(), startTime));
+		return made.get();
+	}
+
+	/**
+	 * @param busy
+	 * @param startTime
+	 * @param endTime 0 while the run is going on
+	 * @param workers
+	 * @return The share of the time the workers of a stage have been busy, in percent
+	 */
+	private static long getUtilisation(LongAdder busy, long startTime, long endTime, int workers) {
+		long elapsed = (endTime != 0 ? endTime : System.nanoTime()) - startTime;
+		return elapsed > 0 ? Math.round(100.0 * busy.sum() / elapsed / workers) : 0;
+	}
+
+	/**
+	 * The reader stage: puts the pending pairs of the table in the queue, in chunks, then one END per compute thread
+	 * @param table
+	 * @param pairs
+	 * @param busy Where the time spent reading is added
+	 * @throws SQLException
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
+	 */
+	private void readPairs(String table, ArrayBlockingQueue<int[][]> pairs, LongAdder busy) throws SQLException, InterruptedException {
+		PreparedStatement readPage;
+		synchronized (ib.writer) {
+			//SQLite before 3.15 has no row values, hence the expanded (userid, profileid) > (?, ?)
+			readPage = ib.c.prepareStatement("SELECT userid, profileid FROM " + table + " WHERE prediction = 0 AND (userid > ? OR (userid = ? AND profileid > ?)) ORDER BY userid, profileid LIMIT ?");
+		}
+		try {
+			int lastUser = Integer.MIN_VALUE;
+			int lastItem = Integer.MIN_VALUE;
+			while (true) {
+				long start = System.nanoTime();
+				List<int[]> page = new ArrayList<int[]>(pageSize);
+				synchronized (ib.writer) {
+					readPage.setInt(1, lastUser);
+					readPage.setInt(2, lastUser);
+					readPage.setInt(3, lastItem);
+					readPage.setInt(4, pageSize);
+					ResultSet rs = readPage.executeQuery();
+					while (rs.next()) page.add(new int[] {rs.getInt(1), rs.getInt(2)});
+					rs.close();
+				}
+				busy.add(System.nanoTime() - start);
+				if (page.isEmpty()) break;
+				lastUser = page.get(page.size() - 1)[0];
+				lastItem = page.get(page.size() - 1)[1];
+				for (int from = 0; from < page.size(); from += chunkSize) {
+					put(pairs, page.subList(from, Math.min(page.size(), from + chunkSize)).toArray(new int[0][]));
+				}
+				if (page.size() < pageSize) break;
+			}
+		} finally {
+			synchronized (ib.writer) {
+				readPage.close();
+			}
+		}
+		for (int t = 0; t < threads; t++) put(pairs, END);
+	}
+
+	/**
+	 * Puts a chunk in the pair queue, waiting for room if it is full
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private static void put(ArrayBlockingQueue<int[][]> pairs, int[][] chunk) throws InterruptedException {
+		if (pairs.offer(chunk)) return;
+		long start = System.nanoTime();
+		pairs.put(chunk);
+		READER_BACKPRESSURE.recordSince(start);
+	}
+
+	/**
+	 * @param table
+	 * @return The number of rows of the table without a prediction
+	 */
+	private long countPending(String table) {
+		synchronized (ib.writer) {
+			try {
+				PreparedStatement ps = ib.c.prepareStatement("SELECT count(*) FROM " + table + " WHERE prediction = 0");
+				ResultSet rs = ps.executeQuery();
+				long count = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				ps.close();
+				return count;
+			} catch (SQLException e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Makes the missing predictions of "predictions2" (or of "predictions" if the second argument is "positive") with the
+	 * pipeline, printing one prediction in every 'sample' and writing the metrics of the run to the snapshot file
+	 * (.json or .prom) if given
+	 * Usage: PredictionPipeline [threads] [positive] [sample] [snapshot]
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		boolean considerNegativeSims = !(args.length > 1 && args[1].equals("positive"));
+		if (args.length > 2) Metrics.setSampleInterval(Integer.parseInt(args[2]));
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+
+		ItemBased ib = new ItemBased(s1.c);
+		//the writer ItemBased made is replaced, so its prepared statements are closed
+		ib.writer.close();
+		AsyncDatabaseWriter writer = new AsyncDatabaseWriter(s1.c);
+		ib.writer = writer;
+		long made = new PredictionPipeline(ib, allRatings, avgRatings, threads).run(considerNegativeSims);
+		System.out.println(String.format("%d predictions made, writer busy %.0f%% of the time, %d rows in %d commits",
+				made, 100 * writer.getUtilisation(), writer.getRowsWritten(), writer.getCommits()));
+		if (args.length > 3) Metrics.writeSnapshot(new File(args[3]));
+		writer.close();
+		System.out.println(ib.similarityCache);
+		System.out.println("PROGRAM FINISHED!!!");
+	}
+}
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Makes the pending predictions on a pool of worker threads sharing one ItemBased.
+ * The workers take chunks of (user, item) pairs from the list as they finish the previous ones, so a chunk of heavy
+ * users doesn't hold up the others. Every prediction goes through the (synchronized) writer of the ItemBased, which is
+ * flushed once all the workers are done.
+ * Progress, throughput, ETA and latencies are printed by the Metrics reporter; the predictions themselves are only
+ * printed for a sample of them (see Metrics.setSampleInterval)
+ */
+public class PredictionRunner {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+
+	private final ItemBased ib;
+	private final RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+	private final int threads;
+	private final int chunkSize;
+
+	//how often (in seconds) the metrics are printed, 0 to disable it
+	private int reportInterval = 10;
+
+
+	public PredictionRunner(ItemBased ib, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, int threads) {
+		this(ib, allRatings, avgRatings, threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param ib
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param threads The number of worker threads
+	 * @param chunkSize The number of predictions a worker takes at a time
+	 */
+	public PredictionRunner(ItemBased ib, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, int threads, int chunkSize) {
+		this.ib = ib;
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	public void setReportInterval(int seconds) {
+		reportInterval = seconds;
+	}
+
+	/**
+	 * Makes the predictions and saves them in the database
+	 * @param preds The predictions to make (index 0: user id, index 1: item id), as returned by SimpleDB.getPredictionsToMake(2)
+	 * @param considerNegativeSims true to use getPredictionConsideringNegativeSims ("predictions2"), false to use getPrediction ("predictions")
+	 * @return The number of predictions made
+	 * @throws IllegalStateException If a worker failed (the predictions made until then are still flushed)
+	 */
+	public int run(final List<int[]> preds, final boolean considerNegativeSims) {
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		final LatencyHistogram progress = considerNegativeSims ? Metrics.PREDICTION_NEGATIVE_SIMS : Metrics.PREDICTION;
+		final long startCount = progress.getCount();
+		final long startTime = System.nanoTime();
+		if (reportInterval > 0) Metrics.startReporter(reportInterval, progress, preds.size());
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(pool.submit(() -> {
+				int start;
+				//shutdownNow() (after a worker failed) stops the others at the end of their chunk
+				while (!Thread.currentThread().isInterrupted() && (start = nextChunk.getAndAdd(chunkSize)) < preds.size()) {
+					int end = Math.min(start + chunkSize, preds.size());
+					for (int i = start; i < end; i++) {
+						int user = preds.get(i)[0];
+						int item = preds.get(i)[1];
+						float prediction = considerNegativeSims ? ib.getPredictionConsideringNegativeSims(user, item, allRatings, avgRatings)
+								: ib.getPrediction(user, item, allRatings, avgRatings);
+						if (Metrics.sampled()) {
+							System.out.println("user " + user + " has a predicted rating of " + prediction + " for item " + item);
+						}
+					}
+					done.addAndGet(end - start);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		try {
+			for (Future<?> worker : workers) worker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while making the predictions", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("a worker could not make its predictions", e.getCause());
+		} finally {
+			pool.shutdownNow();
+			try {
+				//whatever was predicted, make sure it reaches the database once no worker adds to it
+				if (pool.awaitTermination(1, TimeUnit.MINUTES)) ib.writer.flush();
+				else System.out.println("Warning: the workers did not stop, the last predictions are not flushed");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				e.printStackTrace();
+			}
+			Metrics.stopReporter();
+		}
+		System.out.println(Metrics.report(progress, startCount, preds.size(), startTime));
+
+		return done.get();
+	}
+
+	/**
+	 * Makes the missing predictions of "predictions2" (or of "predictions" if the second argument is "positive"), printing
+	 * one prediction in every 'sample' and writing the metrics of the run to the snapshot file (.json or .prom) if given
+	 * Usage: PredictionRunner [threads] [positive] [sample] [snapshot]
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		boolean considerNegativeSims = !(args.length > 1 && args[1].equals("positive"));
+		if (args.length > 2) Metrics.setSampleInterval(Integer.parseInt(args[2]));
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		ArrayList<int[]> preds = considerNegativeSims ? s1.getPredictionsToMake2() : s1.getPredictionsToMake();
+		System.out.println("Number of predictions to be found = " + preds.size() + ", threads = " + threads);
+
+		ItemBased ib = new ItemBased(s1.c);
+		int made = new PredictionRunner(ib, allRatings, avgRatings, threads).run(preds, considerNegativeSims);
+		ib.writer.close();
+		System.out.println(made + " predictions made");
+		System.out.println(ib.similarityCache);
+		if (args.length > 3) Metrics.writeSnapshot(new File(args[3]));
+		System.out.println("PROGRAM FINISHED!!!");
+	}
+}
@@ -0,0 +1,14 @@
+/**
+ * A prediction formula working from a UserProfile, so that every prediction for the same user shares the work of
+ * looking the user up (e.g. ItemBased::calculatePrediction or ItemBased::calculatePredictionConsideringNegativeSims).
+ * Implementations must be safe to call from several threads at the same time, each with its own profile
+ */
+public interface ProfilePredictor {
+
+	/**
+	 * @param profile The profile of the user
+	 * @param item
+	 * @return The predicted rating for 'item' by the user of the profile
+	 */
+	float predict(UserProfile profile, int item);
+}
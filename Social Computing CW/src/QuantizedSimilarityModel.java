@@ -0,0 +1,240 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Compact, read-only copy of a SimilarityModel: every similarity (in [-1, 1]) is quantized to a 16-bit or an 8-bit
+ * integer, and only the upper triangle is stored, in one of two layouts:
+ *   DENSE   every pair (i, j) with i < j, row after row, so no column index is stored at all (n * (n - 1) / 2 values)
+ *   SPARSE  the non-zero pairs only, as the rows of the SimilarityModel, with 16-bit column indices when there are at
+ *           most 65536 items
+ * A similarity of 0 is always stored exactly, so pairs without users in common still have a similarity of 0.
+ * The largest error of a quantized similarity is half a step: 1 / 65534 with 16 bits, 1 / 254 with 8 bits
+ */
+public class QuantizedSimilarityModel implements SimilarityStore {
+
+	public enum Layout { DENSE, SPARSE }
+
+	//item ids of the rating matrix the model was built from, the position of an id is its index
+	public final int[] itemIds;
+	public final Layout layout;
+	public final int bits;
+
+	private final float scale;      //quantized value of a similarity of 1
+	private final short[] values16; //the values, if 16 bits
+	private final byte[] values8;   //the values, if 8 bits
+
+	//SPARSE only: the columns of row i are at positions rowOffsets[i] to rowOffsets[i + 1] - 1, sorted
+	private final int[] rowOffsets;
+	private final char[] columns16;  //if there are at most 65536 items
+	private final int[] columns32;   //otherwise
+
+
+	private QuantizedSimilarityModel(int[] itemIds, Layout layout, int bits, short[] values16, byte[] values8, int[] rowOffsets, char[] columns16, int[] columns32) {
+		this.itemIds = itemIds;
+		this.layout = layout;
+		this.bits = bits;
+		this.scale = bits == 16 ? Short.MAX_VALUE : Byte.MAX_VALUE;
+		this.values16 = values16;
+		this.values8 = values8;
+		this.rowOffsets = rowOffsets;
+		this.columns16 = columns16;
+		this.columns32 = columns32;
+	}
+
+	/**
+	 * Quantizes a model with the layout that takes the least memory
+	 * @param model
+	 * @param bits 16 or 8
+	 * @return The quantized model
+	 */
+	public static QuantizedSimilarityModel quantize(SimilarityModel model, int bits) {
+		int n = model.getNumItems();
+		long denseBytes = getDenseBytes(n, bits);
+		long sparseBytes = getSparseBytes(n, model.size(), bits);
+		return quantize(model, bits, denseBytes <= sparseBytes ? Layout.DENSE : Layout.SPARSE);
+	}
+
+	/**
+	 * @param model
+	 * @param bits 16 or 8
+	 * @param layout
+	 * @return The quantized model
+	 * @throws IllegalArgumentException If 'bits' is not 16 or 8, or if a dense triangle would have more than 2^31 - 1 values
+	 */
+	public static QuantizedSimilarityModel quantize(SimilarityModel model, int bits, Layout layout) {
+		if (bits != 16 && bits != 8) throw new IllegalArgumentException("bits must be 16 or 8, not " + bits);
+		float scale = bits == 16 ? Short.MAX_VALUE : Byte.MAX_VALUE;
+		int n = model.getNumItems();
+
+		long length = layout == Layout.DENSE ? (long) n * (n - 1) / 2 : model.size();
+		if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("a dense triangle of " + n + " items is too large, use the sparse layout");
+		short[] values16 = bits == 16 ? new short[(int) length] : null;
+		byte[] values8 = bits == 8 ? new byte[(int) length] : null;
+		int[] rowOffsets = null;
+		char[] columns16 = null;
+		int[] columns32 = null;
+		if (layout == Layout.SPARSE) {
+			rowOffsets = model.rowOffsets.clone();
+			if (n <= 65536) {
+				columns16 = new char[model.size()];
+				for (int pos = 0; pos < columns16.length; pos++) columns16[pos] = (char) model.neighbours[pos];
+			} else {
+				columns32 = model.neighbours.clone();
+			}
+		}
+
+		for (int row = 0; row < n; row++) {
+			for (int pos = model.rowOffsets[row]; pos < model.rowOffsets[row + 1]; pos++) {
+				long target = layout == Layout.DENSE ? getTriangleIndex(n, row, model.neighbours[pos]) : pos;
+				int quantized = Math.round(Math.max(-1.0f, Math.min(1.0f, model.similarities[pos])) * scale);
+				if (bits == 16) values16[(int) target] = (short) quantized;
+				else values8[(int) target] = (byte) quantized;
+			}
+		}
+		return new QuantizedSimilarityModel(model.itemIds, layout, bits, values16, values8, rowOffsets, columns16, columns32);
+	}
+
+	/**
+	 * @param n The number of items
+	 * @param row
+	 * @param column Greater than row
+	 * @return The position of the pair (row, column) in a dense upper triangle
+	 */
+	private static long getTriangleIndex(int n, int row, int column) {
+		return (long) row * (2L * n - row - 1) / 2 + (column - row - 1);
+	}
+
+	/**
+	 * @param n The number of items
+	 * @param bits
+	 * @return The number of bytes of the values of a dense triangle
+	 */
+	public static long getDenseBytes(int n, int bits) {
+		return (long) n * (n - 1) / 2 * (bits / 8);
+	}
+
+	/**
+	 * @param n The number of items
+	 * @param size The number of non-zero pairs
+	 * @param bits
+	 * @return The number of bytes of the rows, columns and values of the sparse layout
+	 */
+	public static long getSparseBytes(int n, int size, int bits) {
+		return 4L * (n + 1) + (long) size * ((n <= 65536 ? 2 : 4) + bits / 8);
+	}
+
+	/**
+	 * @return The number of bytes of the arrays of this model (the item ids excepted, as they are shared with the original model)
+	 */
+	public long getSizeInBytes() {
+		long bytes = values16 != null ? 2L * values16.length : values8.length;
+		if (rowOffsets != null) bytes += 4L * rowOffsets.length;
+		if (columns16 != null) bytes += 2L * columns16.length;
+		if (columns32 != null) bytes += 4L * columns32.length;
+		return bytes;
+	}
+
+	/**
+	 * @param item1
+	 * @param item2
+	 * @return The similarity between item1 and item2 (the order of the items does not matter). As the model is complete, it is never NaN
+	 */
+	@Override
+	public float getSimilarity(int item1, int item2) {
+		if (item1 == item2) return 1.0f;
+		int index1 = Arrays.binarySearch(itemIds, item1);
+		int index2 = Arrays.binarySearch(itemIds, item2);
+		if (index1 < 0 || index2 < 0) return 0.0f; //nobody rated one of the items
+		return getSimilarityByIndex(index1, index2);
+	}
+
+	/**
+	 * @param itemIndex1
+	 * @param itemIndex2
+	 * @return The similarity between the items with indices itemIndex1 and itemIndex2
+	 */
+	public float getSimilarityByIndex(int itemIndex1, int itemIndex2) {
+		if (itemIndex1 == itemIndex2) return 1.0f;
+		int row = itemIndex1 < itemIndex2 ? itemIndex1 : itemIndex2;
+		int column = itemIndex1 < itemIndex2 ? itemIndex2 : itemIndex1;
+		int pos;
+		if (layout == Layout.DENSE) {
+			pos = (int) getTriangleIndex(itemIds.length, row, column);
+		} else if (columns16 != null) {
+			pos = Arrays.binarySearch(columns16, rowOffsets[row], rowOffsets[row + 1], (char) column);
+		} else {
+			pos = Arrays.binarySearch(columns32, rowOffsets[row], rowOffsets[row + 1], column);
+		}
+		if (pos < 0) return 0.0f;
+		return (values16 != null ? values16[pos] : values8[pos]) / scale;
+	}
+
+	public int getNumItems() {
+		return itemIds.length;
+	}
+
+	/**
+	 * @param model The original model
+	 * @return The largest absolute difference between a similarity of 'model' and its quantized value
+	 */
+	public float getMaxError(SimilarityModel model) {
+		float maxError = 0.0f;
+		for (int row = 0; row < model.getNumItems(); row++) {
+			for (int pos = model.rowOffsets[row]; pos < model.rowOffsets[row + 1]; pos++) {
+				maxError = Math.max(maxError, Math.abs(model.similarities[pos] - getSimilarityByIndex(row, model.neighbours[pos])));
+			}
+		}
+		return maxError;
+	}
+
+	/**
+	 * Builds the complete similarity model from the ratings without the "testdata2" pairs, quantizes it with every
+	 * precision and layout, and reports the memory taken and the MAE of the predictions of those pairs with each
+	 * precision (32 bits being the original model), as Evaluator measures it
+	 * Usage: QuantizedSimilarityModel [threads] [variant], the variant as in Evaluator (e.g. positive, negative)
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		String variant = args.length > 1 ? args[1] : "negative";
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		//the model must not see the ratings it is scored on
+		RatingMatrix training = Evaluator.getTrainingMatrix(allRatings, s1.getTestPairs());
+		HashMap<Integer,Float> avgRatings = Evaluator.getAverageRatings(training);
+		SimilarityModel model = new SimilarityModelBuilder(training, avgRatings, threads, SimilarityModelBuilder.DEFAULT_BLOCK_SIZE).build();
+		int n = model.getNumItems();
+		System.out.println(String.format("%d items, %d non-zero similarities (%.1f%% of the pairs)", n, model.size(), n < 2 ? 0.0 : 100.0 * model.size() / ((double) n * (n - 1) / 2)));
+
+		Evaluator evaluator = new Evaluator(threads);
+		Evaluator.Result original = null;
+		for (int bits : new int[] {32, 16, 8}) {
+			SimilarityStore store;
+			String sizes;
+			float maxError = 0.0f;
+			if (bits == 32) {
+				store = model;
+				sizes = String.format("sparse %.1fMB", (4.0 * (n + 1) + 8.0 * model.size()) / 1e6);
+			} else {
+				QuantizedSimilarityModel quantized = quantize(model, bits, Layout.SPARSE);
+				store = quantized;
+				maxError = quantized.getMaxError(model);
+				sizes = String.format("sparse %.1fMB, dense %.1fMB", quantized.getSizeInBytes() / 1e6, getDenseBytes(n, bits) / 1e6);
+			}
+
+			ItemBased ib = new ItemBased(null);
+			ib.similarityStore = store;
+			Evaluator.Result result = evaluator.evaluateTestSet(s1.c, s1, Evaluator.createPredictor(variant, ib, training, avgRatings), allRatings);
+			if (original == null) original = result;
+			System.out.println(String.format("%d bits\t%s\tmax error %.6f\t%s\tMAE change %+.6f", bits, sizes, maxError, result, result.mae - original.mae));
+		}
+		System.out.println("FINISHED PROGRAM!!!");
+		try {
+			s1.c.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
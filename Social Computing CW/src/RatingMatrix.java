@@ -0,0 +1,283 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Immutable rating matrix stored in compressed sparse column (CSC) form, one column per item.
+ * The ratings of the item with index i are found at positions itemOffsets[i] (inclusive) to itemOffsets[i+1] (exclusive)
+ * of "itemUsers" (user indices, sorted in ascending order) and "itemRatings" (the actual ratings).
+ * The same ratings are also indexed per user (compressed sparse rows): the ratings of the user with index u are found at
+ * positions userOffsets[u] to userOffsets[u+1] of "userItems" (item indices, sorted in ascending order) and "userRatings".
+ * Item and user ids are mapped to dense indices by their position in the sorted "itemIds" and "userIds" arrays, so
+ * sorting by user index is the same as sorting by user id
+ */
+public class RatingMatrix {
+
+	//sorted distinct ids, the position of an id is its index
+	public final int[] itemIds;
+	public final int[] userIds;
+
+	//column (item-major) structure
+	public final int[] itemOffsets;
+	public final int[] itemUsers;
+	public final byte[] itemRatings;
+
+	//row (user-major) structure, so we can find what a user rated without scanning every item
+	public final int[] userOffsets;
+	public final int[] userItems;
+	public final byte[] userRatings;
+
+
+	RatingMatrix(int[] itemIds, int[] userIds, int[] itemOffsets, int[] itemUsers, byte[] itemRatings) {
+		this.itemIds = itemIds;
+		this.userIds = userIds;
+		this.itemOffsets = itemOffsets;
+		this.itemUsers = itemUsers;
+		this.itemRatings = itemRatings;
+		
+		//transpose the columns; as we go through the items in order, the items of every row end up sorted
+		userOffsets = new int[userIds.length + 1];
+		for (int user : itemUsers) userOffsets[user + 1]++;
+		for (int u = 0; u < userIds.length; u++) userOffsets[u + 1] += userOffsets[u];
+		userItems = new int[itemUsers.length];
+		userRatings = new byte[itemUsers.length];
+		int[] next = Arrays.copyOf(userOffsets, userIds.length);
+		for (int i = 0; i < itemIds.length; i++) {
+			for (int pos = itemOffsets[i]; pos < itemOffsets[i + 1]; pos++) {
+				int dest = next[itemUsers[pos]]++;
+				userItems[dest] = i;
+				userRatings[dest] = itemRatings[pos];
+			}
+		}
+	}
+
+	public int getNumItems() {
+		return itemIds.length;
+	}
+
+	public int getNumUsers() {
+		return userIds.length;
+	}
+
+	public int getNumRatings() {
+		return itemUsers.length;
+	}
+
+	/**
+	 * @param item
+	 * @return The index of 'item' in the matrix, or -1 if nobody has rated it
+	 */
+	public int getItemIndex(int item) {
+		int index = Arrays.binarySearch(itemIds, item);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * @param user
+	 * @return The index of 'user' in the matrix, or -1 if the user hasn't rated anything
+	 */
+	public int getUserIndex(int user) {
+		int index = Arrays.binarySearch(userIds, user);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * @param itemIndex
+	 * @return The number of users who have rated the item with index 'itemIndex'
+	 */
+	public int getNumRatingsForItem(int itemIndex) {
+		return itemOffsets[itemIndex + 1] - itemOffsets[itemIndex];
+	}
+
+	/**
+	 * @param userIndex
+	 * @return The number of items rated by the user with index 'userIndex'
+	 */
+	public int getNumRatingsForUser(int userIndex) {
+		return userOffsets[userIndex + 1] - userOffsets[userIndex];
+	}
+
+	/**
+	 * @param itemIndex
+	 * @param userIndex
+	 * @return The rating given by the user to the item, or 0 if the user hasn't rated it (ratings range from 1 to 5)
+	 */
+	public int getRating(int itemIndex, int userIndex) {
+		int pos = Arrays.binarySearch(itemUsers, itemOffsets[itemIndex], itemOffsets[itemIndex + 1], userIndex);
+		return pos < 0 ? 0 : itemRatings[pos];
+	}
+
+	/**
+	 * Same as getRating(), but searching through the items of the user instead of the users of the item
+	 * @param userIndex
+	 * @param itemIndex
+	 * @return The rating given by the user to the item, or 0 if the user hasn't rated it
+	 */
+	public int getUserRating(int userIndex, int itemIndex) {
+		int pos = Arrays.binarySearch(userItems, userOffsets[userIndex], userOffsets[userIndex + 1], itemIndex);
+		return pos < 0 ? 0 : userRatings[pos];
+	}
+
+	/**
+	 * Converts the average user ratings to an array indexed by user index, so they can be read without boxing.
+	 * A user missing from 'avgRatings' gets the average of his ratings in this matrix
+	 * @param avgRatings The average user ratings
+	 * @return The average rating of every user, by user index
+	 */
+	public float[] getUserAverages(HashMap<Integer,Float> avgRatings) {
+		float[] averages = new float[userIds.length];
+		for (int u = 0; u < userIds.length; u++) {
+			averages[u] = getUserAverage(avgRatings, u);
+		}
+		return averages;
+	}
+
+	/**
+	 * @param avgRatings The average user ratings
+	 * @param userIndex
+	 * @return The average rating of the user, or the average of their ratings in this matrix if they're missing from 'avgRatings'
+	 */
+	public float getUserAverage(HashMap<Integer,Float> avgRatings, int userIndex) {
+		Float avg = avgRatings.get(userIds[userIndex]);
+		if (avg != null) return avg;
+		float sum = 0;
+		for (int pos = userOffsets[userIndex]; pos < userOffsets[userIndex + 1]; pos++) sum += userRatings[pos];
+		return sum / getNumRatingsForUser(userIndex);
+	}
+
+	/**
+	 * Builds a new matrix with the ratings of this one plus some new or changed ratings (which replace the old ones)
+	 * @param users
+	 * @param items
+	 * @param ratings users[i] rated items[i] with ratings[i]
+	 * @return The new matrix, this one is left unchanged
+	 */
+	public RatingMatrix withRatings(int[] users, int[] items, int[] ratings) {
+		Builder builder = new Builder(getNumRatings() + users.length);
+		for (int i = 0; i < itemIds.length; i++) {
+			for (int pos = itemOffsets[i]; pos < itemOffsets[i + 1]; pos++) {
+				builder.add(userIds[itemUsers[pos]], itemIds[i], itemRatings[pos]);
+			}
+		}
+		//added last, so they win over the old ratings
+		for (int i = 0; i < users.length; i++) {
+			builder.add(users[i], items[i], ratings[i]);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Collects the (user, item, rating) triples in arrays as they are read and builds the matrix in linear time
+	 * (two counting sort passes: first by user, then - stable - by item)
+	 */
+	public static class Builder {
+
+		private int[] users;
+		private int[] items;
+		private byte[] ratings;
+		private int size;
+
+		public Builder() {
+			this(1 << 16);
+		}
+
+		public Builder(int expectedRatings) {
+			int capacity = Math.max(16, expectedRatings);
+			users = new int[capacity];
+			items = new int[capacity];
+			ratings = new byte[capacity];
+		}
+
+		public void add(int user, int item, int rating) {
+			if (size == users.length) {
+				int capacity = size + (size >> 1);
+				users = Arrays.copyOf(users, capacity);
+				items = Arrays.copyOf(items, capacity);
+				ratings = Arrays.copyOf(ratings, capacity);
+			}
+			users[size] = user;
+			items[size] = item;
+			ratings[size] = (byte) rating;
+			size++;
+		}
+
+		public RatingMatrix build() {
+			int[] userIds = distinctSorted(users, size);
+			int[] itemIds = distinctSorted(items, size);
+
+			//replace ids by indices
+			int[] userIndices = new int[size];
+			int[] itemIndices = new int[size];
+			for (int i = 0; i < size; i++) {
+				userIndices[i] = Arrays.binarySearch(userIds, users[i]);
+				itemIndices[i] = Arrays.binarySearch(itemIds, items[i]);
+			}
+
+			//first pass: order the entries by user
+			int[] byUser = countingSort(userIndices, identity(size), userIds.length);
+
+			//second pass (stable): order by item, so the users are sorted within every column
+			int[] byItem = countingSort(itemIndices, byUser, itemIds.length);
+
+			int[] itemOffsets = new int[itemIds.length + 1];
+			int[] itemUsers = new int[size];
+			byte[] itemRatings = new byte[size];
+			int n = 0;
+			for (int k = 0; k < size; k++) {
+				int entry = byItem[k];
+				int item = itemIndices[entry];
+				int user = userIndices[entry];
+				if (n > 0 && itemOffsets[item + 1] > 0 && itemUsers[n - 1] == user) {
+					//duplicated (user, item) pair: the last rating read wins, as it did with HashMap.put
+					itemRatings[n - 1] = ratings[entry];
+					continue;
+				}
+				itemUsers[n] = user;
+				itemRatings[n] = ratings[entry];
+				itemOffsets[item + 1]++;
+				n++;
+			}
+			for (int i = 0; i < itemIds.length; i++) {
+				itemOffsets[i + 1] += itemOffsets[i];
+			}
+
+			if (n < size) {
+				itemUsers = Arrays.copyOf(itemUsers, n);
+				itemRatings = Arrays.copyOf(itemRatings, n);
+			}
+			return new RatingMatrix(itemIds, userIds, itemOffsets, itemUsers, itemRatings);
+		}
+
+		private static int[] distinctSorted(int[] values, int length) {
+			int[] sorted = Arrays.copyOf(values, length);
+			Arrays.sort(sorted);
+			int n = 0;
+			for (int i = 0; i < length; i++) {
+				if (n == 0 || sorted[n - 1] != sorted[i]) sorted[n++] = sorted[i];
+			}
+			return Arrays.copyOf(sorted, n);
+		}
+
+		private static int[] identity(int length) {
+			int[] order = new int[length];
+			for (int i = 0; i < length; i++) order[i] = i;
+			return order;
+		}
+
+		/**
+		 * Stable counting sort of the entries in 'order' by their key
+		 * @param keys The key of every entry, in the range [0, numKeys)
+		 * @param order The entries to sort
+		 * @param numKeys
+		 * @return The entries in 'order' sorted by key
+		 */
+		private static int[] countingSort(int[] keys, int[] order, int numKeys) {
+			int[] start = new int[numKeys + 1];
+			for (int entry : order) start[keys[entry] + 1]++;
+			for (int i = 0; i < numKeys; i++) start[i + 1] += start[i];
+			int[] sorted = new int[order.length];
+			for (int entry : order) sorted[start[keys[entry]]++] = entry;
+			return sorted;
+		}
+	}
+}
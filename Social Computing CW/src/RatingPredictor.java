@@ -0,0 +1,14 @@
+/**
+ * Anything that can predict the rating of an item by a user from the data it was built with (e.g. an ItemBased with
+ * its ratings, through calculatePrediction), so different models and variants can be evaluated the same way.
+ * Implementations must be safe to call from several threads at the same time
+ */
+public interface RatingPredictor {
+
+	/**
+	 * @param user
+	 * @param item
+	 * @return The predicted rating for 'item' by 'user', or NaN if it can't be predicted
+	 */
+	float predict(int user, int item);
+}
@@ -0,0 +1,322 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * Binary snapshot of the data a run needs before it can make the first prediction: the rating matrix, the average user
+ * ratings and (optionally) a similarity model. It is written once from SQLite and then opened with FileChannel.map,
+ * so starting a run costs a few sequential bulk copies of the arrays onto the heap instead of a row-by-row walk through
+ * "alldata". Opening is still linear in the number of ratings: every process gets its own copy of the arrays, and the
+ * user-major index of the rating matrix is rebuilt from the item-major one.
+ *
+ * Layout (little endian): a fixed header (magic, version, flags, array lengths, CRC32 of everything after the header),
+ * followed by the arrays one after the other, each one starting on a 4-byte boundary
+ */
+public class RatingSnapshot {
+
+	public static final int MAGIC = 0x53435253; //"SCRS"
+	public static final int VERSION = 1;
+
+	private static final int FLAG_SIMILARITIES = 1;
+	private static final int HEADER_SIZE = 48;
+	//largest region mapped at once
+	private static final int MAX_MAPPING = 1 << 30;
+
+	public final RatingMatrix allRatings;
+	public final HashMap<Integer,Float> avgRatings;
+	//null if the snapshot was written without a model
+	public final SimilarityModel similarityModel;
+
+
+	private RatingSnapshot(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, SimilarityModel similarityModel) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		this.similarityModel = similarityModel;
+	}
+
+	/**
+	 * Writes a snapshot
+	 * @param file
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param similarityModel The model to include, or null
+	 * @throws IOException
+	 */
+	public static void write(File file, RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, SimilarityModel similarityModel) throws IOException {
+		int[] avgUsers = new int[avgRatings.size()];
+		float[] avgValues = new float[avgRatings.size()];
+		int n = 0;
+		for (Integer user : avgRatings.keySet()) {
+			avgUsers[n] = user;
+			avgValues[n] = avgRatings.get(user);
+			n++;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Output out = new Output(channel, HEADER_SIZE);
+			out.putInts(allRatings.itemIds);
+			out.putInts(allRatings.userIds);
+			out.putInts(allRatings.itemOffsets);
+			out.putInts(allRatings.itemUsers);
+			out.putBytes(allRatings.itemRatings);
+			out.putInts(avgUsers);
+			out.putFloats(avgValues);
+			if (similarityModel != null) {
+				out.putInts(similarityModel.rowOffsets);
+				out.putInts(similarityModel.neighbours);
+				out.putFloats(similarityModel.similarities);
+			}
+			out.finish();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(similarityModel != null ? FLAG_SIMILARITIES : 0);
+			header.putInt(allRatings.getNumItems());
+			header.putInt(allRatings.getNumUsers());
+			header.putInt(allRatings.getNumRatings());
+			header.putInt(avgUsers.length);
+			header.putInt(similarityModel != null ? similarityModel.size() : 0);
+			header.putLong(out.checksum.getValue());
+			header.putLong(out.position);
+			header.flip();
+			channel.write(header, 0);
+		}
+	}
+
+	/**
+	 * Opens a snapshot, verifying its checksum
+	 * @param file
+	 * @return The snapshot
+	 * @throws IOException If the file is not a snapshot, has another version or is corrupted
+	 */
+	public static RatingSnapshot open(File file) throws IOException {
+		return open(file, true);
+	}
+
+	/**
+	 * Opens a snapshot
+	 * @param file
+	 * @param verify Whether to verify the checksum (one extra pass over the file)
+	 * @return The snapshot
+	 * @throws IOException If the file is not a snapshot, has another version or is corrupted
+	 */
+	public static RatingSnapshot open(File file, boolean verify) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) throw new IOException(file + " is not a rating snapshot");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC) throw new IOException(file + " is not a rating snapshot");
+			int version = header.getInt();
+			if (version != VERSION) throw new IOException(file + " has version " + version + ", expected " + VERSION);
+			int flags = header.getInt();
+			int numItems = header.getInt();
+			int numUsers = header.getInt();
+			int numRatings = header.getInt();
+			int numAverages = header.getInt();
+			int numSimilarities = header.getInt();
+			long checksum = header.getLong();
+			long size = header.getLong();
+			if (channel.size() != size) throw new IOException(file + " is truncated: " + channel.size() + " bytes, expected " + size);
+
+			if (verify && checksum(channel, HEADER_SIZE, size) != checksum) {
+				throw new IOException(file + " is corrupted (checksum mismatch)");
+			}
+
+			Input in = new Input(channel, HEADER_SIZE);
+			int[] itemIds = in.getInts(numItems);
+			int[] userIds = in.getInts(numUsers);
+			int[] itemOffsets = in.getInts(numItems + 1);
+			int[] itemUsers = in.getInts(numRatings);
+			byte[] itemRatings = in.getBytes(numRatings);
+			int[] avgUsers = in.getInts(numAverages);
+			float[] avgValues = in.getFloats(numAverages);
+			RatingMatrix allRatings = new RatingMatrix(itemIds, userIds, itemOffsets, itemUsers, itemRatings);
+
+			HashMap<Integer,Float> avgRatings = new HashMap<Integer,Float>(numAverages * 2);
+			for (int i = 0; i < numAverages; i++) avgRatings.put(avgUsers[i], avgValues[i]);
+
+			SimilarityModel similarityModel = null;
+			if ((flags & FLAG_SIMILARITIES) != 0) {
+				int[] rowOffsets = in.getInts(numItems + 1);
+				int[] neighbours = in.getInts(numSimilarities);
+				float[] similarities = in.getFloats(numSimilarities);
+				similarityModel = new SimilarityModel(itemIds, rowOffsets, neighbours, similarities);
+			}
+			return new RatingSnapshot(allRatings, avgRatings, similarityModel);
+		}
+	}
+
+	/**
+	 * @param channel
+	 * @param from
+	 * @param to
+	 * @return The CRC32 of the bytes [from, to) of the file, as Output computes it while writing them
+	 * @throws IOException
+	 */
+	static long checksum(FileChannel channel, long from, long to) throws IOException {
+		CRC32 crc = new CRC32();
+		for (long position = from; position < to; position += MAX_MAPPING) {
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING, to - position)));
+		}
+		return crc.getValue();
+	}
+
+	private static long align(long position) {
+		return (position + 3) & ~3L;
+	}
+
+	/**
+	 * Writes the arrays through a direct buffer, keeping track of the position and of the checksum
+	 */
+	static class Output {
+
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		final CRC32 checksum = new CRC32();
+		long position;
+
+		Output(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		void putInts(int[] values) throws IOException {
+			for (int i = 0; i < values.length; ) {
+				int n = Math.min(values.length - i, buffer.remaining() / 4);
+				if (n == 0) {
+					drain();
+					continue;
+				}
+				buffer.asIntBuffer().put(values, i, n);
+				buffer.position(buffer.position() + n * 4);
+				i += n;
+			}
+		}
+
+		void putFloats(float[] values) throws IOException {
+			for (int i = 0; i < values.length; ) {
+				int n = Math.min(values.length - i, buffer.remaining() / 4);
+				if (n == 0) {
+					drain();
+					continue;
+				}
+				buffer.asFloatBuffer().put(values, i, n);
+				buffer.position(buffer.position() + n * 4);
+				i += n;
+			}
+		}
+
+		void putBytes(byte[] values) throws IOException {
+			for (int i = 0; i < values.length; ) {
+				int n = Math.min(values.length - i, buffer.remaining());
+				if (n == 0) {
+					drain();
+					continue;
+				}
+				buffer.put(values, i, n);
+				i += n;
+			}
+			//pad to keep the next array aligned
+			while ((position + buffer.position()) % 4 != 0) {
+				if (!buffer.hasRemaining()) drain();
+				buffer.put((byte) 0);
+			}
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			ByteBuffer forChecksum = buffer.duplicate();
+			checksum.update(forChecksum);
+			while (buffer.hasRemaining()) position += channel.write(buffer, position);
+			buffer.clear();
+		}
+
+		void finish() throws IOException {
+			drain();
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Reads the arrays one after the other from mapped regions of the file
+	 */
+	static class Input {
+
+		final FileChannel channel;
+		long position;
+
+		Input(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		private ByteBuffer map(long position, long length) throws IOException {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			return mapped.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		int[] getInts(int count) throws IOException {
+			int[] values = new int[count];
+			int perMapping = MAX_MAPPING / 4;
+			for (int i = 0; i < count; i += perMapping) {
+				int n = Math.min(perMapping, count - i);
+				map(position + i * 4L, n * 4L).asIntBuffer().get(values, i, n);
+			}
+			position += count * 4L;
+			return values;
+		}
+
+		float[] getFloats(int count) throws IOException {
+			float[] values = new float[count];
+			int perMapping = MAX_MAPPING / 4;
+			for (int i = 0; i < count; i += perMapping) {
+				int n = Math.min(perMapping, count - i);
+				map(position + i * 4L, n * 4L).asFloatBuffer().get(values, i, n);
+			}
+			position += count * 4L;
+			return values;
+		}
+
+		byte[] getBytes(int count) throws IOException {
+			byte[] values = new byte[count];
+			for (int i = 0; i < count; i += MAX_MAPPING) {
+				int n = Math.min(MAX_MAPPING, count - i);
+				map(position + i, n).get(values, i, n);
+			}
+			position = align(position + count);
+			return values;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the ratings and average user ratings in the database. With "with-model", the similarity model
+	 * is also built (on all the cores) and included
+	 * Usage: RatingSnapshot file [with-model]
+	 */
+	public static void main(String[] args) {
+		File file = new File(args.length > 0 ? args[0] : "ratings.snapshot");
+		boolean withModel = args.length > 1 && args[1].equals("with-model");
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		SimilarityModel model = withModel ? new SimilarityModelBuilder(allRatings, avgRatings).build() : null;
+
+		try {
+			write(file, allRatings, avgRatings, model);
+			long start = System.nanoTime();
+			RatingSnapshot snapshot = open(file);
+			System.out.println("Snapshot written to " + file + " (" + file.length() + " bytes), opened again in "
+					+ (System.nanoTime() - start) / 1000000 + "ms: " + snapshot.allRatings.getNumRatings() + " ratings");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+
+/**
+ * Per-user and per-item statistics (counts, means and deviations) of a rating matrix, calculated in a single pass over
+ * the ratings and kept in primitive arrays indexed by user/item index. They don't change within a run, so the baseline
+ * predictor becomes a couple of array lookups instead of two full scans
+ */
+public class RatingStatistics {
+
+	//the data the statistics were calculated from
+	public final RatingMatrix allRatings;
+	public final HashMap<Integer,Float> avgRatings;
+
+	//by user index
+	public final float[] userAverages;      //from the "avguserratings" table (see RatingMatrix.getUserAverages)
+	public final int[] userCounts;
+	public final float[] userMeans;         //mean of the user's ratings in the matrix
+	public final float[] userDeviations;    //mean of (rating - average user rating) over the user's ratings
+
+	//by item index
+	public final int[] itemCounts;
+	public final float[] itemMeans;
+	public final float[] itemDeviations;    //item mean - global mean
+
+	public final float globalMean;
+
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 */
+	public RatingStatistics(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		int numUsers = allRatings.getNumUsers();
+		int numItems = allRatings.getNumItems();
+
+		userAverages = allRatings.getUserAverages(avgRatings);
+		userCounts = new int[numUsers];
+		userMeans = new float[numUsers];
+		userDeviations = new float[numUsers];
+		itemCounts = new int[numItems];
+		itemMeans = new float[numItems];
+		itemDeviations = new float[numItems];
+
+		double[] userSums = new double[numUsers];
+		double total = 0;
+		for (int i = 0; i < numItems; i++) {
+			double itemSum = 0;
+			for (int pos = allRatings.itemOffsets[i]; pos < allRatings.itemOffsets[i + 1]; pos++) {
+				int rating = allRatings.itemRatings[pos];
+				int user = allRatings.itemUsers[pos];
+				itemSum += rating;
+				userSums[user] += rating;
+				userCounts[user]++;
+			}
+			itemCounts[i] = allRatings.getNumRatingsForItem(i);
+			itemMeans[i] = (float) (itemSum / itemCounts[i]);
+			total += itemSum;
+		}
+		globalMean = (float) (total / allRatings.getNumRatings());
+
+		for (int i = 0; i < numItems; i++) {
+			itemDeviations[i] = itemMeans[i] - globalMean;
+		}
+		for (int u = 0; u < numUsers; u++) {
+			userMeans[u] = (float) (userSums[u] / userCounts[u]);
+			userDeviations[u] = (float) ((userSums[u] - (double) userAverages[u] * userCounts[u]) / userCounts[u]);
+		}
+	}
+
+	/**
+	 * @param allRatings
+	 * @param avgRatings
+	 * @return Whether these statistics were calculated from this data
+	 */
+	public boolean isFor(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		return this.allRatings == allRatings && this.avgRatings == avgRatings;
+	}
+
+	/**
+	 * The baseline predictor used when predicting ratings considering negative similarities:
+	 * (item mean - user deviation - average user rating) + user deviation + average user rating
+	 * @param userIndex The index of the user, or -1 if the user hasn't rated anything
+	 * @param itemIndex
+	 * @param avgRating The average rating of the user
+	 * @return The baseline predictor for this specific pair of item and user (NaN if the user hasn't rated anything)
+	 */
+	public float getBaselinePredictor(int userIndex, int itemIndex, float avgRating) {
+		float userBaselinePredictor = userIndex < 0 ? Float.NaN : userDeviations[userIndex];
+		float itemBaselinePredictor = itemMeans[itemIndex] - userBaselinePredictor - avgRating;
+		return itemBaselinePredictor + userBaselinePredictor + avgRating;
+	}
+
+	/**
+	 * Saves the statistics in the "userstatistics" and "itemstatistics" tables (next to "avguserratings"), replacing their contents, and commits
+	 * @param c
+	 */
+	public void saveToDatabase(Connection c) {
+		try {
+			Statement s = c.createStatement();
+			s.execute("CREATE TABLE IF NOT EXISTS userstatistics (userid INTEGER PRIMARY KEY, count INTEGER, mean REAL, deviation REAL)");
+			s.execute("CREATE TABLE IF NOT EXISTS itemstatistics (profileid INTEGER PRIMARY KEY, count INTEGER, mean REAL, deviation REAL)");
+			s.execute("DELETE FROM userstatistics");
+			s.execute("DELETE FROM itemstatistics");
+			s.close();
+
+			PreparedStatement ps = c.prepareStatement("INSERT INTO userstatistics (userid, count, mean, deviation) VALUES (?, ?, ?, ?)");
+			for (int u = 0; u < userCounts.length; u++) {
+				ps.setInt(1, allRatings.userIds[u]);
+				ps.setInt(2, userCounts[u]);
+				ps.setFloat(3, userMeans[u]);
+				ps.setFloat(4, userDeviations[u]);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			ps.close();
+
+			ps = c.prepareStatement("INSERT INTO itemstatistics (profileid, count, mean, deviation) VALUES (?, ?, ?, ?)");
+			for (int i = 0; i < itemCounts.length; i++) {
+				ps.setInt(1, allRatings.itemIds[i]);
+				ps.setInt(2, itemCounts[i]);
+				ps.setFloat(3, itemMeans[i]);
+				ps.setFloat(4, itemDeviations[i]);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			ps.close();
+			c.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Calculates the statistics of the ratings in the database and saves them next to "avguserratings"
+	 * Usage: RatingStatistics
+	 */
+	public static void main(String[] args) {
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		RatingStatistics statistics = new RatingStatistics(allRatings, avgRatings);
+		System.out.println("Statistics of " + statistics.userCounts.length + " users and " + statistics.itemCounts.length + " items, global mean = " + statistics.globalMean);
+
+		statistics.saveToDatabase(s1.c);
+		System.out.println("FINISHED PROGRAM!!!");
+		try {
+			s1.c.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
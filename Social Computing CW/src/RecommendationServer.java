@@ -0,0 +1,357 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Embedded HTTP server answering predictions and top-N recommendations online, from a model loaded once at startup.
+ * Endpoints (GET, JSON responses):
+ *   /predict?user=U&item=I&item=J...   predictions considering negative similarities (as getPredictionConsideringNegativeSims, without saving them)
+ *   /recommend?user=U&n=N              the best N items for the user (see Recommender)
+ *   /stats                             latency percentiles of every endpoint and batching counters
+ *   /metrics                           every metric of the process, in the Prometheus text format
+ *   /sample?count=C                    some user and item ids, for the load generator
+ * The model (ratings, statistics, similarities and neighbourhoods) is only read after startup, so no request takes a
+ * lock on it. Requests are handled on virtual threads when the JVM has them (Java 21+), on a thread pool otherwise;
+ * the computations run on a separate pool with one thread per core. Concurrent requests for the same user are
+ * coalesced: while a batch of a user is being computed, the requests arriving for that user wait for the next batch,
+ * which computes every distinct item and the largest N only once
+ */
+public class RecommendationServer {
+
+	private final RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+	private final ItemBased ib;
+	private final Recommender recommender;
+
+	private final ExecutorService requestExecutor;
+	private final ExecutorService computeExecutor;
+	private HttpServer server;
+
+	//pending requests of the users with a batch queued or running (a queue is removed once drained)
+	private final ConcurrentHashMap<Integer,UserQueue> queues = new ConcurrentHashMap<Integer,UserQueue>();
+
+	private final LatencyHistogram predictLatencies = Metrics.histogram("server.predict");
+	private final LatencyHistogram recommendLatencies = Metrics.histogram("server.recommend");
+	private final LatencyHistogram batchLatencies = Metrics.histogram("server.batch");
+	private final LongAdder batches = Metrics.counter("server.batches");
+	private final LongAdder batchedRequests = Metrics.counter("server.batchedRequests");
+
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param similarities A complete similarity store (e.g. a SimilarityModel), or null to predict from the neighbourhoods only
+	 * @param neighbourhood The top-k neighbourhoods, for the recommendations
+	 * @param requestThreads The number of threads handling requests when there are no virtual threads
+	 */
+	public RecommendationServer(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, SimilarityStore similarities, NeighbourhoodModel neighbourhood, int requestThreads) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		ib = new ItemBased(null);
+		if (similarities != null) ib.similarityStore = similarities;
+		else ib.neighbourhoodModel = neighbourhood;
+		//calculated now, so the requests only read them
+		ib.getStatistics(allRatings, avgRatings);
+		recommender = new Recommender(allRatings, neighbourhood);
+		requestExecutor = newRequestExecutor(requestThreads);
+		computeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads
+	 * @return A virtual thread per task if the JVM supports it (Java 21+), a pool of 'threads' threads otherwise
+	 */
+	static ExecutorService newRequestExecutor(int threads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	/**
+	 * A request waiting to be computed in a batch of its user
+	 */
+	private static class Request {
+
+		final int[] items;    //items to predict, or null
+		final int n;          //number of recommendations wanted, or 0
+		final CompletableFuture<String> response = new CompletableFuture<String>();
+
+		Request(int[] items, int n) {
+			this.items = items;
+			this.n = n;
+		}
+	}
+
+	private static class UserQueue {
+
+		List<Request> pending = new ArrayList<Request>();
+		boolean scheduled;    //whether a batch of this user is queued or running
+		boolean retired;      //removed from the queues, so a new one must be made for the user
+	}
+
+	/**
+	 * Adds the request to the next batch of its user, scheduling the batch if none is queued or running
+	 * @param user
+	 * @param request
+	 */
+	private void submit(final int user, Request request) {
+		while (true) {
+			final UserQueue queue = queues.computeIfAbsent(user, u -> new UserQueue());
+			synchronized (queue) {
+				//drained and removed since we got it: try again with a new one
+				if (queue.retired) continue;
+				queue.pending.add(request);
+				if (queue.scheduled) return;
+				queue.scheduled = true;
+			}
+			computeExecutor.execute(() -> drain(user, queue));
+			return;
+		}
+	}
+
+	/**
+	 * Computes the batches of a user until no request is left, then removes the queue of the user
+	 */
+	private void drain(int user, UserQueue queue) {
+		while (true) {
+			List<Request> batch;
+			synchronized (queue) {
+				batch = queue.pending;
+				if (batch.isEmpty()) {
+					queue.scheduled = false;
+					queue.retired = true;
+					queues.remove(user, queue);
+					return;
+				}
+				queue.pending = new ArrayList<Request>();
+			}
+			try {
+				computeBatch(user, batch);
+			} catch (RuntimeException e) {
+				for (Request request : batch) request.response.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void computeBatch(int user, List<Request> batch) {
+		long start = System.nanoTime();
+
+		//every distinct item is predicted once, and only the largest list of recommendations is computed
+		HashMap<Integer,Float> predictions = new HashMap<Integer,Float>();
+		int maxN = 0;
+		for (Request request : batch) {
+			if (request.items != null) {
+				for (int item : request.items) {
+					if (!predictions.containsKey(item)) predictions.put(item, predict(user, item));
+				}
+			}
+			maxN = Math.max(maxN, request.n);
+		}
+		int[] items = new int[maxN];
+		float[] scores = new float[maxN];
+		int found = maxN > 0 ? recommender.recommend(user, maxN, items, scores) : 0;
+
+		for (Request request : batch) {
+			StringBuilder json = new StringBuilder("{\"user\" : ").append(user);
+			if (request.items != null) {
+				json.append(", \"predictions\" : {");
+				for (int i = 0; i < request.items.length; i++) {
+					json.append(i == 0 ? "" : ", ").append('"').append(request.items[i]).append("\" : ").append(jsonNumber(predictions.get(request.items[i])));
+				}
+				json.append('}');
+			} else {
+				json.append(", \"recommendations\" : [");
+				for (int i = 0; i < Math.min(found, request.n); i++) {
+					json.append(i == 0 ? "" : ", ").append("{\"item\" : ").append(items[i]).append(", \"score\" : ").append(jsonNumber(scores[i])).append('}');
+				}
+				json.append(']');
+			}
+			request.response.complete(json.append("}\n").toString());
+		}
+		batches.increment();
+		batchedRequests.add(batch.size());
+		batchLatencies.recordSince(start);
+	}
+
+	/**
+	 * @param user
+	 * @param item
+	 * @return The prediction considering negative similarities, or NaN if the item is unknown
+	 */
+	private float predict(int user, int item) {
+		if (allRatings.getItemIndex(item) < 0) return Float.NaN;
+		return ib.calculatePredictionConsideringNegativeSims(user, item, allRatings, avgRatings);
+	}
+
+	private static String jsonNumber(float value) {
+		return Float.isNaN(value) || Float.isInfinite(value) ? "null" : Float.toString(value);
+	}
+
+	/**
+	 * @param uri
+	 * @return The values of every parameter of the query (a parameter can be repeated)
+	 */
+	private static HashMap<String, List<String>> parseQuery(URI uri) {
+		HashMap<String, List<String>> params = new HashMap<String, List<String>>();
+		String query = uri.getRawQuery();
+		if (query == null) return params;
+		for (String param : query.split("&")) {
+			int equals = param.indexOf('=');
+			if (equals < 0) continue;
+			params.computeIfAbsent(param.substring(0, equals), p -> new ArrayList<String>()).add(param.substring(equals + 1));
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * Handles /predict and /recommend: queues the request in the batch of its user and waits for the response
+	 */
+	private void handleUserRequest(HttpExchange exchange, boolean recommend) throws IOException {
+		long start = System.nanoTime();
+		try {
+			HashMap<String, List<String>> params = parseQuery(exchange.getRequestURI());
+			if (!params.containsKey("user")) {
+				respond(exchange, 400, "application/json", "{\"error\" : \"missing user\"}\n");
+				return;
+			}
+			int user = Integer.parseInt(params.get("user").get(0));
+			Request request;
+			if (recommend) {
+				int n = params.containsKey("n") ? Integer.parseInt(params.get("n").get(0)) : 10;
+				request = new Request(null, Math.max(0, Math.min(n, Recommender.MAX_N)));
+			} else {
+				List<String> values = params.containsKey("item") ? params.get("item") : new ArrayList<String>();
+				int[] items = new int[values.size()];
+				for (int i = 0; i < items.length; i++) items[i] = Integer.parseInt(values.get(i));
+				request = new Request(items, 0);
+			}
+			submit(user, request);
+			respond(exchange, 200, "application/json", request.response.join());
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "application/json", "{\"error\" : \"invalid number\"}\n");
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			respond(exchange, 500, "application/json", "{\"error\" : \"internal error\"}\n");
+		} finally {
+			(recommend ? recommendLatencies : predictLatencies).recordSince(start);
+		}
+	}
+
+	/**
+	 * @return The latency percentiles of the endpoints and the batching counters, as JSON
+	 */
+	public String getStats() {
+		StringBuilder json = new StringBuilder("{");
+		String[] names = {"predict", "recommend", "batch"};
+		LatencyHistogram[] histograms = {predictLatencies, recommendLatencies, batchLatencies};
+		for (int i = 0; i < names.length; i++) {
+			LatencyHistogram h = histograms[i];
+			json.append(String.format("%s\"%s\" : {\"count\" : %d, \"p50Us\" : %.1f, \"p99Us\" : %.1f, \"maxUs\" : %.1f}", i == 0 ? "" : ", ", names[i],
+					h.getCount(), h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3, h.getMax() / 1e3));
+		}
+		long numBatches = batches.sum();
+		json.append(String.format(", \"batches\" : %d, \"requestsPerBatch\" : %.3f}\n", numBatches, numBatches == 0 ? 0.0 : (double) batchedRequests.sum() / numBatches));
+		return json.toString();
+	}
+
+	/**
+	 * @param count
+	 * @return 'count' random user ids and item ids of the model, as JSON
+	 */
+	private String getSample(int count) {
+		Random random = new Random();
+		StringBuilder json = new StringBuilder("{\"users\" : [");
+		for (int i = 0; i < count; i++) json.append(i == 0 ? "" : ", ").append(allRatings.userIds[random.nextInt(allRatings.getNumUsers())]);
+		json.append("], \"items\" : [");
+		for (int i = 0; i < count; i++) json.append(i == 0 ? "" : ", ").append(allRatings.itemIds[random.nextInt(allRatings.getNumItems())]);
+		return json.append("]}\n").toString();
+	}
+
+	/**
+	 * Starts listening on localhost
+	 * @param port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+		server.createContext("/predict", exchange -> handleUserRequest(exchange, false));
+		server.createContext("/recommend", exchange -> handleUserRequest(exchange, true));
+		server.createContext("/stats", exchange -> respond(exchange, 200, "application/json", getStats()));
+		server.createContext("/metrics", exchange -> respond(exchange, 200, "text/plain; version=0.0.4", Metrics.toPrometheus()));
+		server.createContext("/sample", exchange -> {
+			List<String> count = parseQuery(exchange.getRequestURI()).get("count");
+			try {
+				respond(exchange, 200, "application/json", getSample(count == null ? 100 : Math.min(100000, Integer.parseInt(count.get(0)))));
+			} catch (NumberFormatException e) {
+				respond(exchange, 400, "application/json", "{\"error\" : \"invalid number\"}\n");
+			}
+		});
+		server.setExecutor(requestExecutor);
+		server.start();
+	}
+
+	public void stop() {
+		if (server != null) server.stop(0);
+		requestExecutor.shutdownNow();
+		computeExecutor.shutdownNow();
+	}
+
+	/**
+	 * Loads the model (from a rating snapshot with a similarity model if given, from the database otherwise) and serves it
+	 * Usage: RecommendationServer [port] [k] [request threads] [snapshot]
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+		RatingMatrix allRatings;
+		HashMap<Integer,Float> avgRatings;
+		SimilarityStore similarities = null;
+		if (args.length > 3) {
+			RatingSnapshot snapshot = RatingSnapshot.open(new File(args[3]));
+			allRatings = snapshot.allRatings;
+			avgRatings = snapshot.avgRatings;
+			similarities = snapshot.similarityModel;
+		} else {
+			SimpleDB s1 = new SimpleDB();
+			allRatings = s1.loadRatings();
+			avgRatings = s1.getAvgUserRatings();
+		}
+		long start = System.nanoTime();
+		//without a similarity model, the predictions (which consider negative similarities) use the neighbourhoods too
+		NeighbourhoodModel neighbourhood = NeighbourhoodModel.build(allRatings, allRatings.getUserAverages(avgRatings), k, 1, 0.0f, similarities == null);
+		System.out.println(String.format("Neighbourhood model built in %.1fs", (System.nanoTime() - start) / 1e9));
+
+		RecommendationServer server = new RecommendationServer(allRatings, avgRatings, similarities, neighbourhood, threads);
+		server.start(port);
+		System.out.println("Listening on http://localhost:" + port + "/ (predictions from " + (similarities != null ? "the similarity model" : "the top " + k + " neighbours") + ")");
+		System.out.println("Available endpoints: /predict?user=U&item=I, /recommend?user=U&n=N, /stats, /metrics, /sample?count=C");
+	}
+}
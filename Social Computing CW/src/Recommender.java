@@ -0,0 +1,181 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+
+/**
+ * Top-N recommendations: the best N items a user hasn't rated yet.
+ * Instead of predicting every item of the catalogue, the scores are aggregated from the items the user rated: every
+ * neighbour i (in a NeighbourhoodModel) of a rated item j with a positive similarity s gets s * rating(j) added to its
+ * numerator and s to its denominator, so the score of i is the prediction getPrediction would make using only those
+ * neighbours. The work is (number of rated items) x k, whatever the size of the catalogue.
+ * Every thread reuses its own scratch arrays (one entry per item) and heap, so recommend() allocates nothing
+ */
+public class Recommender {
+
+	public static final int MAX_N = 1000;
+
+	private final RatingMatrix allRatings;
+	private final NeighbourhoodModel neighbourhood;
+	private final int minSupport;
+
+	private final ThreadLocal<Scratch> scratch;
+
+
+	public Recommender(RatingMatrix allRatings, NeighbourhoodModel neighbourhood) {
+		this(allRatings, neighbourhood, 1);
+	}
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param neighbourhood Built from the same ratings
+	 * @param minSupport The minimum number of rated items an item must be a neighbour of to be recommended
+	 */
+	public Recommender(final RatingMatrix allRatings, NeighbourhoodModel neighbourhood, int minSupport) {
+		this.allRatings = allRatings;
+		this.neighbourhood = neighbourhood;
+		this.minSupport = minSupport;
+		scratch = ThreadLocal.withInitial(() -> new Scratch(allRatings.getNumItems()));
+	}
+
+	/**
+	 * The per-thread working memory of recommend(). Entries are only valid for the current call when their stamp is the
+	 * call's stamp, so nothing has to be cleared between calls
+	 */
+	private static class Scratch {
+
+		final float[] numerators;
+		final float[] denominators;
+		final int[] support;
+		final int[] stamps;       //stamp of the call that last touched the item
+		final int[] ratedStamps;  //stamp of the call whose user rated the item
+		final int[] touched;      //items touched by the current call
+		final NeighbourhoodModel.TopK heap = new NeighbourhoodModel.TopK(MAX_N);
+		int stamp;
+
+		Scratch(int numItems) {
+			numerators = new float[numItems];
+			denominators = new float[numItems];
+			support = new int[numItems];
+			stamps = new int[numItems];
+			ratedStamps = new int[numItems];
+			touched = new int[numItems];
+		}
+	}
+
+	/**
+	 * Finds the best 'n' items for 'user', without allocating anything
+	 * @param user
+	 * @param n The number of items wanted, at most MAX_N
+	 * @param items Filled with the ids of the recommended items, best first (at least n long)
+	 * @param scores Filled with their scores, i.e. predicted ratings (at least n long)
+	 * @return The number of items recommended, less than n if not enough items could be scored (0 for an unknown user)
+	 */
+	public int recommend(int user, int n, int[] items, float[] scores) {
+		int userIndex = allRatings.getUserIndex(user);
+		if (userIndex < 0 || n <= 0) return 0;
+
+		Scratch s = scratch.get();
+		if (++s.stamp == 0) {
+			//the stamps wrapped around, so old entries could look current
+			Arrays.fill(s.stamps, 0);
+			Arrays.fill(s.ratedStamps, 0);
+			s.stamp = 1;
+		}
+		int stamp = s.stamp;
+		int start = allRatings.userOffsets[userIndex];
+		int end = allRatings.userOffsets[userIndex + 1];
+		for (int pos = start; pos < end; pos++) s.ratedStamps[allRatings.userItems[pos]] = stamp;
+
+		int numTouched = 0;
+		for (int pos = start; pos < end; pos++) {
+			int rated = allRatings.userItems[pos];
+			int rating = allRatings.userRatings[pos];
+			for (int k = neighbourhood.offsets[rated]; k < neighbourhood.offsets[rated + 1]; k++) {
+				float similarity = neighbourhood.similarities[k];
+				if (similarity <= 0) {
+					//sorted by decreasing similarity, the rest are not positive either (unlike when sorted by absolute value)
+					if (neighbourhood.byMagnitude) continue;
+					break;
+				}
+				int item = neighbourhood.neighbours[k];
+				if (s.ratedStamps[item] == stamp) continue;
+				if (s.stamps[item] != stamp) {
+					s.stamps[item] = stamp;
+					s.numerators[item] = 0;
+					s.denominators[item] = 0;
+					s.support[item] = 0;
+					s.touched[numTouched++] = item;
+				}
+				s.numerators[item] += similarity * rating;
+				s.denominators[item] += similarity;
+				s.support[item]++;
+			}
+		}
+
+		s.heap.clear(Math.min(n, MAX_N));
+		for (int t = 0; t < numTouched; t++) {
+			int item = s.touched[t];
+			if (s.support[item] < minSupport) continue;
+			s.heap.offer(item, s.numerators[item] / s.denominators[item]);
+		}
+		int found = s.heap.size();
+		s.heap.drainDescending(items, scores);
+		for (int i = 0; i < found; i++) items[i] = allRatings.itemIds[items[i]];
+		return found;
+	}
+
+	/**
+	 * @param user
+	 * @param n The number of items wanted, at most MAX_N
+	 * @return The ids of the best 'n' items for 'user', best first (fewer if not enough items could be scored)
+	 */
+	public int[] recommend(int user, int n) {
+		int[] items = new int[n];
+		float[] scores = new float[n];
+		int found = recommend(user, n, items, scores);
+		return Arrays.copyOf(items, found);
+	}
+
+	/**
+	 * Recommends items to a sample of users (or to the given users) and prints them with the latencies
+	 * Usage: Recommender [n] [k] [users...]
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		long start = System.nanoTime();
+		NeighbourhoodModel neighbourhood = NeighbourhoodModel.build(allRatings, allRatings.getUserAverages(avgRatings), k, 1, 0.0f, false);
+		System.out.println(String.format("Neighbourhood model built in %.1fs (%d neighbours)", (System.nanoTime() - start) / 1e9, neighbourhood.size()));
+		Recommender recommender = new Recommender(allRatings, neighbourhood);
+
+		int[] users;
+		if (args.length > 2) {
+			users = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) users[i - 2] = Integer.parseInt(args[i]);
+		} else {
+			Random random = new Random(42);
+			users = new int[Math.min(1000, allRatings.getNumUsers())];
+			for (int i = 0; i < users.length; i++) users[i] = allRatings.userIds[random.nextInt(allRatings.getNumUsers())];
+		}
+
+		int[] items = new int[n];
+		float[] scores = new float[n];
+		LatencyHistogram latencies = Metrics.histogram("recommend");
+		for (int user : users) {
+			start = System.nanoTime();
+			int found = recommender.recommend(user, n, items, scores);
+			latencies.recordSince(start);
+			if (Metrics.sampled() || args.length > 2) {
+				StringBuilder line = new StringBuilder("user " + user + ":");
+				for (int i = 0; i < found; i++) line.append(String.format(" %d (%.2f)", items[i], scores[i]));
+				System.out.println(line);
+			}
+		}
+		System.out.println("recommend: " + latencies);
+	}
+}
@@ -0,0 +1,364 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Builds the similarity model in shards that run as separate processes, on one machine or on many sharing a directory.
+ * The rows of the upper triangle (item index i with every item index j > i) are split into 'count' contiguous ranges
+ * with about the same number of pairs each; the split only depends on the number of items and of shards, so every
+ * process computes the same ranges. The steps are separate commands:
+ *   prepare  writes the shared rating data (a RatingSnapshot, which every process loads instead of querying SQLite)
+ *   shard    computes the rows of one shard into its own sorted run (see SimilarityRunFile), then writes a manifest
+ *            with its range and the number of pairs it checked; a shard that is already done is skipped
+ *   merge    verifies that every shard is done with the expected range and number of pairs, appends the shards in
+ *            order (a pair out of its shard's range or in two shards fails the merge), and optionally saves the result
+ *            in the "similarities" table
+ *   local    runs prepare, launches every shard as a local process, launches the failed ones again, and merges
+ * A failed or killed shard leaves no manifest, so it can be started again on its own while the others are kept
+ */
+public class ShardedSimilarityBuilder {
+
+	private final File directory;
+	private final int count;
+
+
+	/**
+	 * @param directory The directory shared by every shard, with the snapshot, the runs and the manifests
+	 * @param count The number of shards
+	 */
+	public ShardedSimilarityBuilder(File directory, int count) {
+		this.directory = directory;
+		this.count = count;
+	}
+
+	public File getSnapshotFile() {
+		return new File(directory, "ratings.snapshot");
+	}
+
+	public File getRunFile(int shard) {
+		return new File(directory, "shard-" + shard + "-of-" + count + ".run");
+	}
+
+	public File getManifestFile(int shard) {
+		return new File(directory, "shard-" + shard + "-of-" + count + ".done");
+	}
+
+	/**
+	 * @param numItems
+	 * @param count
+	 * @return The first row of every shard, and numItems: shard k has the rows [result[k], result[k + 1])
+	 */
+	public static int[] getShardRows(int numItems, int count) {
+		long totalPairs = (long) numItems * (numItems - 1) / 2;
+		int[] rows = new int[count + 1];
+		int row = 0;
+		long pairs = 0;   //pairs of the rows before 'row'
+		for (int k = 1; k < count; k++) {
+			long target = totalPairs * k / count;
+			while (row < numItems && pairs < target) {
+				pairs += numItems - row - 1;
+				row++;
+			}
+			rows[k] = row;
+		}
+		rows[count] = numItems;
+		return rows;
+	}
+
+	/**
+	 * @param numItems
+	 * @param start
+	 * @param end
+	 * @return The number of pairs of the rows [start, end)
+	 */
+	static long getPairs(int numItems, int start, int end) {
+		long pairs = 0;
+		for (int row = start; row < end; row++) pairs += numItems - row - 1;
+		return pairs;
+	}
+
+	/**
+	 * Writes the shared rating data from the database
+	 * @throws IOException
+	 */
+	public void prepare() throws IOException {
+		directory.mkdirs();
+		SimpleDB s1 = new SimpleDB();
+		RatingSnapshot.write(getSnapshotFile(), s1.loadRatings(), s1.getAvgUserRatings(), null);
+		try {
+			s1.c.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Computes one shard, unless it is already done
+	 * @param shard The shard id, from 0 to count - 1
+	 * @param parallelism The number of threads
+	 * @return The number of non-zero similarities of the shard
+	 * @throws IOException
+	 */
+	public long computeShard(int shard, int parallelism) throws IOException {
+		Properties done = readManifest(shard);
+		if (done != null) {
+			System.out.println("shard " + shard + "/" + count + " is already done");
+			return Long.parseLong(done.getProperty("similarities"));
+		}
+		RatingSnapshot snapshot = RatingSnapshot.open(getSnapshotFile());
+		RatingMatrix allRatings = snapshot.allRatings;
+		float[] userAverages = allRatings.getUserAverages(snapshot.avgRatings);
+		int numItems = allRatings.getNumItems();
+		int[] shardRows = getShardRows(numItems, count);
+		int start = shardRows[shard];
+		int end = shardRows[shard + 1];
+		long startTime = System.nanoTime();
+
+		File run = getRunFile(shard);
+		File temporary = new File(run.getPath() + ".tmp");
+		long similarities;
+		LongAdder checked = new LongAdder();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try (SimilarityRunFile.Writer out = new SimilarityRunFile.Writer(temporary)) {
+			similarities = SimilarityRows.write(pool, allRatings, userAverages, start, end, -1, numItems, out, checked);
+			out.finish();
+		} finally {
+			pool.shutdown();
+		}
+		long pairs = checked.sum();
+		if (!temporary.renameTo(run)) throw new IOException("could not rename " + temporary + " to " + run);
+
+		Properties manifest = new Properties();
+		manifest.setProperty("shard", Integer.toString(shard));
+		manifest.setProperty("count", Integer.toString(count));
+		manifest.setProperty("items", Integer.toString(numItems));
+		manifest.setProperty("ratings", Integer.toString(allRatings.getNumRatings()));
+		manifest.setProperty("start", Integer.toString(start));
+		manifest.setProperty("end", Integer.toString(end));
+		manifest.setProperty("pairs", Long.toString(pairs));
+		manifest.setProperty("similarities", Long.toString(similarities));
+		writeManifest(shard, manifest);
+		System.out.println(String.format("shard %d/%d: rows %d to %d, %d pairs, %d non-zero similarities, %.1fs",
+				shard, count, start, end, pairs, similarities, (System.nanoTime() - startTime) / 1e9));
+		return similarities;
+	}
+
+	/**
+	 * @param shard
+	 * @return The manifest of the shard, or null if it is not done
+	 * @throws IOException
+	 */
+	private Properties readManifest(int shard) throws IOException {
+		File file = getManifestFile(shard);
+		if (!file.isFile() || !SimilarityRunFile.isComplete(getRunFile(shard))) return null;
+		Properties manifest = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			manifest.load(in);
+		}
+		return manifest;
+	}
+
+	private void writeManifest(int shard, Properties manifest) throws IOException {
+		File file = getManifestFile(shard);
+		File temporary = new File(file.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(temporary)) {
+			manifest.store(out, null);
+		}
+		if (!temporary.renameTo(file)) throw new IOException("could not rename " + temporary + " to " + file);
+	}
+
+	/**
+	 * @return The shards that are not done, in order
+	 * @throws IOException
+	 */
+	public List<Integer> getPendingShards() throws IOException {
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int shard = 0; shard < count; shard++) {
+			if (readManifest(shard) == null) pending.add(shard);
+		}
+		return pending;
+	}
+
+	/**
+	 * Appends the shards, in order, to one sorted run, verifying that every pair of the upper triangle was checked by
+	 * exactly one shard
+	 * @param output
+	 * @return The number of non-zero similarities
+	 * @throws IOException If a shard is not done, doesn't match the snapshot or the other shards, or has a pair out of its range
+	 */
+	public long merge(File output) throws IOException {
+		List<Integer> pending = getPendingShards();
+		if (!pending.isEmpty()) throw new IOException("shards " + pending + " of " + count + " are not done");
+		RatingSnapshot snapshot = RatingSnapshot.open(getSnapshotFile(), false);
+		int numItems = snapshot.allRatings.getNumItems();
+		int[] itemIds = snapshot.allRatings.itemIds;
+		int[] shardRows = getShardRows(numItems, count);
+
+		long pairs = 0;
+		long merged = 0;
+		File temporary = new File(output.getPath() + ".tmp");
+		try (SimilarityRunFile.Writer out = new SimilarityRunFile.Writer(temporary)) {
+			for (int shard = 0; shard < count; shard++) {
+				Properties manifest = readManifest(shard);
+				int start = Integer.parseInt(manifest.getProperty("start"));
+				int end = Integer.parseInt(manifest.getProperty("end"));
+				long shardPairs = Long.parseLong(manifest.getProperty("pairs"));
+				if (Integer.parseInt(manifest.getProperty("items")) != numItems
+						|| Integer.parseInt(manifest.getProperty("ratings")) != snapshot.allRatings.getNumRatings()) {
+					throw new IOException("shard " + shard + " was computed from other ratings than " + getSnapshotFile());
+				}
+				if (start != shardRows[shard] || end != shardRows[shard + 1]) {
+					throw new IOException("shard " + shard + " has the rows " + start + " to " + end + " instead of " + shardRows[shard] + " to " + shardRows[shard + 1]);
+				}
+				if (shardPairs != getPairs(numItems, start, end)) {
+					throw new IOException("shard " + shard + " checked " + shardPairs + " pairs instead of " + getPairs(numItems, start, end));
+				}
+				pairs += shardPairs;
+
+				//the pairs of the shard must have their first item in the shard's rows
+				int firstItem = start < numItems ? itemIds[start] : Integer.MAX_VALUE;
+				int lastItem = end > 0 ? itemIds[end - 1] : Integer.MIN_VALUE;
+				long read = 0;
+				try (SimilarityRunFile.Reader in = new SimilarityRunFile.Reader(getRunFile(shard))) {
+					if (in.getCount() != Long.parseLong(manifest.getProperty("similarities"))) {
+						throw new IOException("shard " + shard + " has " + in.getCount() + " similarities instead of " + manifest.getProperty("similarities"));
+					}
+					while (in.next()) {
+						if (in.item1 < firstItem || in.item1 > lastItem) {
+							throw new IOException("pair (" + in.item1 + ", " + in.item2 + ") of shard " + shard + " is not in its rows");
+						}
+						try {
+							out.write(in.item1, in.item2, in.similarity);
+						} catch (IllegalArgumentException e) {
+							throw new IOException("pair (" + in.item1 + ", " + in.item2 + ") of shard " + shard + " is duplicated or out of order");
+						}
+						read++;
+					}
+				}
+				merged += read;
+			}
+			out.finish();
+		}
+		long totalPairs = (long) numItems * (numItems - 1) / 2;
+		if (pairs != totalPairs) throw new IOException("the shards checked " + pairs + " pairs instead of " + totalPairs);
+		if (!temporary.renameTo(output)) throw new IOException("could not rename " + temporary + " to " + output);
+		return merged;
+	}
+
+	/**
+	 * Launches the shards as local processes (with the classpath of this one), one batch of at most 'processes' at a
+	 * time, and launches the failed ones again up to 'retries' times. The output of a shard goes to its .log file
+	 * @param processes The number of shards running at the same time
+	 * @param threads The number of threads of every shard
+	 * @param retries
+	 * @return The shards still not done
+	 * @throws IOException
+	 */
+	public List<Integer> runLocally(int processes, int threads, int retries) throws IOException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		String classPath = System.getProperty("java.class.path");
+		List<Integer> pending = getPendingShards();
+		for (int attempt = 0; attempt <= retries && !pending.isEmpty(); attempt++) {
+			if (attempt > 0) System.out.println("launching the failed shards " + pending + " again");
+			for (int from = 0; from < pending.size(); from += processes) {
+				List<Process> running = new ArrayList<Process>();
+				List<Integer> launched = pending.subList(from, Math.min(pending.size(), from + processes));
+				for (int shard : launched) {
+					ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, ShardedSimilarityBuilder.class.getName(),
+							"shard", directory.getPath(), Integer.toString(shard), Integer.toString(count), Integer.toString(threads));
+					builder.redirectErrorStream(true);
+					builder.redirectOutput(new File(directory, "shard-" + shard + "-of-" + count + ".log"));
+					running.add(builder.start());
+				}
+				for (int i = 0; i < running.size(); i++) {
+					try {
+						int status = running.get(i).waitFor();
+						if (status != 0) System.out.println("shard " + launched.get(i) + " failed with exit status " + status);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						for (Process process : running) process.destroy();
+						throw new IOException("interrupted while waiting for the shards", e);
+					}
+				}
+			}
+			pending = getPendingShards();
+		}
+		return pending;
+	}
+
+	/**
+	 * Merges the shards into directory/similarities.run and, with "save", inserts them in the "similarities" table
+	 * @return The number of similarities
+	 */
+	private long mergeAndSave(boolean save) throws IOException, SQLException {
+		long start = System.nanoTime();
+		File output = new File(directory, "similarities.run");
+		long merged = merge(output);
+		System.out.println(String.format("%d shards merged and verified: %d non-zero similarities in %s, %.1fs", count, merged, output, (System.nanoTime() - start) / 1e9));
+		if (save) {
+			SimpleDB s1 = new SimpleDB();
+			System.out.println(BlockedSimilarityBuilder.saveToDatabase(output, s1.c) + " similarities saved");
+			s1.c.close();
+		}
+		return merged;
+	}
+
+	/**
+	 * Exits with status 1 if the command failed, so a scheduler can launch it again
+	 * Usage: ShardedSimilarityBuilder prepare directory
+	 *        ShardedSimilarityBuilder shard directory id count [threads]
+	 *        ShardedSimilarityBuilder merge directory count [save]
+	 *        ShardedSimilarityBuilder local directory count [processes] [threads] [save]
+	 */
+	public static void main(String[] args) {
+		String command = args.length > 0 ? args[0] : "local";
+		File directory = new File(args.length > 1 ? args[1] : "similarity-shards");
+		boolean ok = true;
+		try {
+			if (command.equals("prepare")) {
+				new ShardedSimilarityBuilder(directory, 1).prepare();
+			} else if (command.equals("shard")) {
+				int shard = Integer.parseInt(args[2]);
+				int count = Integer.parseInt(args[3]);
+				int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+				new ShardedSimilarityBuilder(directory, count).computeShard(shard, threads);
+			} else if (command.equals("merge")) {
+				int count = Integer.parseInt(args[2]);
+				new ShardedSimilarityBuilder(directory, count).mergeAndSave(args.length > 3 && args[3].equals("save"));
+			} else if (command.equals("local")) {
+				int count = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+				int processes = args.length > 3 ? Integer.parseInt(args[3]) : count;
+				int threads = args.length > 4 ? Integer.parseInt(args[4]) : Math.max(1, Runtime.getRuntime().availableProcessors() / processes);
+				ShardedSimilarityBuilder builder = new ShardedSimilarityBuilder(directory, count);
+				if (!builder.getSnapshotFile().isFile()) builder.prepare();
+				List<Integer> failed = builder.runLocally(processes, threads, 1);
+				if (failed.isEmpty()) {
+					builder.mergeAndSave(args.length > 5 && args[5].equals("save"));
+				} else {
+					System.out.println("shards " + failed + " failed, see their .log files; run them with the \"shard\" command and then \"merge\"");
+					ok = false;
+				}
+			} else {
+				System.out.println("unknown command " + command);
+				ok = false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			ok = false;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		if (!ok) System.exit(1);
+	}
+}
@@ -0,0 +1,147 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Bounded in-memory cache of item-item similarities, placed in front of the "similarities" table so pairs that were
+ * looked up (or calculated) recently don't need another round-trip to the database.
+ * Pairs are keyed on the ordered item ids (smallest, greatest) packed into a long; when the cache is full, the least
+ * recently used pair is evicted.
+ * The cache is safe to use from several threads: it is split into segments, each one an LRU map with its own lock
+ */
+public class SimilarityCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1 << 20;
+	private static final int SEGMENTS = 64;
+
+	private final int maxSize;
+	private final Segment[] segments;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+
+	public SimilarityCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize The maximum number of similarities kept in memory
+	 */
+	public SimilarityCache(int maxSize) {
+		this.maxSize = maxSize;
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			//spread the remainder over the first segments, so the sizes add up to maxSize
+			segments[i] = new Segment(maxSize / SEGMENTS + (i < maxSize % SEGMENTS ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Packs a pair of items into a single key. The items must already be ordered (smallestIndex, greaterIndex)
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @return The key of the pair
+	 */
+	public static long key(int smallestIndex, int greaterIndex) {
+		return ((long) smallestIndex << 32) | (greaterIndex & 0xffffffffL);
+	}
+
+	private Segment segmentFor(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return segments[(int) (h >>> 58)]; //top 6 bits, as there are 64 segments
+	}
+
+	/**
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @return The cached similarity, or NaN if the pair is not in the cache
+	 */
+	public float get(int smallestIndex, int greaterIndex) {
+		float similarity = peek(smallestIndex, greaterIndex);
+		if (Float.isNaN(similarity)) misses.increment();
+		else hits.increment();
+		return similarity;
+	}
+
+	/**
+	 * Same as get(), but without counting a hit or a miss
+	 * @param smallestIndex
+	 * @param greaterIndex
+	 * @return The cached similarity, or NaN if the pair is not in the cache
+	 */
+	public float peek(int smallestIndex, int greaterIndex) {
+		long key = key(smallestIndex, greaterIndex);
+		Segment segment = segmentFor(key);
+		Float similarity;
+		synchronized (segment) {
+			similarity = segment.get(key);
+		}
+		return similarity == null ? Float.NaN : similarity;
+	}
+
+	public void put(int smallestIndex, int greaterIndex, float similarity) {
+		long key = key(smallestIndex, greaterIndex);
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, similarity);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "similarity cache: size = " + size() + "/" + maxSize + ", hits = " + getHits() + ", misses = " + getMisses() + ", evictions = " + getEvictions();
+	}
+
+	/**
+	 * LRU map: access order, so the eldest entry is always the least recently used one
+	 */
+	private class Segment extends LinkedHashMap<Long,Float> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long,Float> eldest) {
+			if (size() > maxSize) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+}
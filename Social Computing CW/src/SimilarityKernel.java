@@ -0,0 +1,151 @@
+/**
+ * Allocation-free adjusted cosine similarity between two columns of a RatingMatrix.
+ * The users of every column are sorted, so the users who rated both items are found by merging the two lists (or, when
+ * one list is much shorter than the other, by galloping through the longer one), and the numerator and both
+ * denominators are accumulated in the same pass
+ */
+public final class SimilarityKernel {
+
+	//above this ratio between the lengths of the two lists, galloping is cheaper than a linear merge
+	private static final int GALLOP_RATIO = 16;
+
+	//positions in the array of sums filled by accumulate()
+	public static final int NUMERATOR = 0;
+	public static final int DENOMINATOR1 = 1;
+	public static final int DENOMINATOR2 = 2;
+
+	//per-thread array of sums for adjustedCosine(), so it doesn't allocate
+	private static final ThreadLocal<double[]> SUMS = ThreadLocal.withInitial(() -> new double[3]);
+
+
+	private SimilarityKernel() {
+	}
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param itemIndex1
+	 * @param itemIndex2
+	 * @param userAverages The average rating of every user, by user index
+	 * @return The adjusted cosine similarity between the items with indices itemIndex1 and itemIndex2 (0 if they have no co-raters or a zero denominator)
+	 */
+	public static float adjustedCosine(RatingMatrix allRatings, int itemIndex1, int itemIndex2, float[] userAverages) {
+		double[] sums = SUMS.get();
+		accumulate(allRatings, itemIndex1, itemIndex2, userAverages, sums);
+		return similarity(sums[NUMERATOR], sums[DENOMINATOR1], sums[DENOMINATOR2]);
+	}
+
+	/**
+	 * @param numerator
+	 * @param denominator1
+	 * @param denominator2
+	 * @return The adjusted cosine similarity for these sums (0 if the denominator is 0)
+	 */
+	public static float similarity(double numerator, double denominator1, double denominator2) {
+		double denominator = Math.sqrt(denominator1) * Math.sqrt(denominator2);
+		if (denominator == 0) return 0.0f;
+		return (float) (numerator / denominator);
+	}
+
+	/**
+	 * Finds the users who rated both items and accumulates the sums the similarity is made of
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param itemIndex1
+	 * @param itemIndex2
+	 * @param userAverages The average rating of every user, by user index
+	 * @param sums Receives the sum of the products of both deviations from the user average (index NUMERATOR) and the
+	 * sums of the squared deviations of item1 (index DENOMINATOR1) and item2 (index DENOMINATOR2)
+	 * @return The number of users who rated both items
+	 */
+	public static int accumulate(RatingMatrix allRatings, int itemIndex1, int itemIndex2, float[] userAverages, double[] sums) {
+		int[] users = allRatings.itemUsers;
+		byte[] ratings = allRatings.itemRatings;
+
+		int a = allRatings.itemOffsets[itemIndex1];
+		int aEnd = allRatings.itemOffsets[itemIndex1 + 1];
+		int b = allRatings.itemOffsets[itemIndex2];
+		int bEnd = allRatings.itemOffsets[itemIndex2 + 1];
+
+		//always iterate over the shorter list (we swap the denominators back at the end)
+		boolean swapped = aEnd - a > bEnd - b;
+		if (swapped) {
+			int t = a; a = b; b = t;
+			t = aEnd; aEnd = bEnd; bEnd = t;
+		}
+
+		double numerator = 0;
+		double denominator1 = 0;
+		double denominator2 = 0;
+		int coRaters = 0;
+
+		if ((long) (aEnd - a) * GALLOP_RATIO < bEnd - b) {
+			while (a < aEnd && b < bEnd) {
+				int user = users[a];
+				b = gallop(users, b, bEnd, user);
+				if (b < bEnd && users[b] == user) {
+					double avg = userAverages[user];
+					double deviation1 = ratings[a] - avg;
+					double deviation2 = ratings[b] - avg;
+					numerator += deviation1 * deviation2;
+					denominator1 += deviation1 * deviation1;
+					denominator2 += deviation2 * deviation2;
+					coRaters++;
+					b++;
+				}
+				a++;
+			}
+		} else {
+			while (a < aEnd && b < bEnd) {
+				int userA = users[a];
+				int userB = users[b];
+				if (userA < userB) {
+					a++;
+				} else if (userA > userB) {
+					b++;
+				} else {
+					double avg = userAverages[userA];
+					double deviation1 = ratings[a] - avg;
+					double deviation2 = ratings[b] - avg;
+					numerator += deviation1 * deviation2;
+					denominator1 += deviation1 * deviation1;
+					denominator2 += deviation2 * deviation2;
+					coRaters++;
+					a++;
+					b++;
+				}
+			}
+		}
+
+		sums[NUMERATOR] = numerator;
+		sums[DENOMINATOR1] = swapped ? denominator2 : denominator1;
+		sums[DENOMINATOR2] = swapped ? denominator1 : denominator2;
+		return coRaters;
+	}
+
+	/**
+	 * @param users A sorted list
+	 * @param from
+	 * @param to
+	 * @param user
+	 * @return The first position in [from, to) whose user is not smaller than 'user' (or 'to' if there is none)
+	 */
+	private static int gallop(int[] users, int from, int to, int user) {
+		//exponential search for a range containing the user...
+		int low = from;
+		int step = 1;
+		int high = from;
+		while (high < to && users[high] < user) {
+			low = high + 1;
+			high = from + step;
+			step <<= 1;
+		}
+		if (high > to) high = to;
+
+		//...followed by a binary search in that range
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (users[middle] < user) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,135 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+
+/**
+ * Complete item-item similarity model. As similarity(i,j) == similarity(j,i), only the upper triangle is stored:
+ * the row of the item with index i holds the items with a greater index (sorted) that have a non-zero similarity with it.
+ * Any pair that is not stored has a similarity of 0 (no users in common, or a zero denominator)
+ */
+public class SimilarityModel implements SimilarityStore {
+
+	//item ids of the rating matrix the model was built from, the position of an id is its index
+	public final int[] itemIds;
+
+	public final int[] rowOffsets;
+	public final int[] neighbours;
+	public final float[] similarities;
+
+
+	public SimilarityModel(int[] itemIds, int[] rowOffsets, int[] neighbours, float[] similarities) {
+		this.itemIds = itemIds;
+		this.rowOffsets = rowOffsets;
+		this.neighbours = neighbours;
+		this.similarities = similarities;
+	}
+
+	/**
+	 * @param item1
+	 * @param item2
+	 * @return The similarity between item1 and item2 (the order of the items does not matter). As the model is complete, it is never NaN
+	 */
+	@Override
+	public float getSimilarity(int item1, int item2) {
+		if (item1 == item2) return 1.0f;
+		int index1 = Arrays.binarySearch(itemIds, item1);
+		int index2 = Arrays.binarySearch(itemIds, item2);
+		if (index1 < 0 || index2 < 0) return 0.0f; //nobody rated one of the items
+		return getSimilarityByIndex(index1, index2);
+	}
+
+	/**
+	 * @param itemIndex1
+	 * @param itemIndex2
+	 * @return The similarity between the items with indices itemIndex1 and itemIndex2
+	 */
+	public float getSimilarityByIndex(int itemIndex1, int itemIndex2) {
+		if (itemIndex1 == itemIndex2) return 1.0f;
+		int row = itemIndex1 < itemIndex2 ? itemIndex1 : itemIndex2;
+		int column = itemIndex1 < itemIndex2 ? itemIndex2 : itemIndex1;
+		int pos = Arrays.binarySearch(neighbours, rowOffsets[row], rowOffsets[row + 1], column);
+		return pos < 0 ? 0.0f : similarities[pos];
+	}
+
+	public int getNumItems() {
+		return itemIds.length;
+	}
+
+	/**
+	 * @return The number of pairs with a non-zero similarity
+	 */
+	public int size() {
+		return neighbours.length;
+	}
+
+	/**
+	 * Saves every non-zero similarity of the model in the "similarities" table (replacing its contents, so no stale or
+	 * duplicated row is left) and commits, then records that the table is complete (see setComplete), so a pair without a row is known to have a similarity of 0
+	 * @param c
+	 */
+	public void saveToDatabase(Connection c) {
+		String insertQuery = "INSERT INTO similarities (item1, item2, similarity) VALUES (?, ?, ?)";
+		try {
+			setComplete(c, false);
+			//in the same transaction as the inserts
+			Statement s = c.createStatement();
+			s.execute("DELETE FROM similarities");
+			s.close();
+			PreparedStatement ps = c.prepareStatement(insertQuery);
+			for (int row = 0; row < itemIds.length; row++) {
+				for (int pos = rowOffsets[row]; pos < rowOffsets[row + 1]; pos++) {
+					ps.setInt(1, itemIds[row]);
+					ps.setInt(2, itemIds[neighbours[pos]]);
+					ps.setFloat(3, similarities[pos]);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+			ps.close();
+			c.commit();
+			setComplete(c, true);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records whether the "similarities" table holds every non-zero similarity (a complete model was saved), in the
+	 * "similaritymodel" table, and commits. Only the non-zero similarities are saved, so when the table is complete a
+	 * pair without a row has a similarity of 0 and ItemBased doesn't calculate it again
+	 * @param c
+	 * @param complete
+	 * @throws SQLException
+	 */
+	public static void setComplete(Connection c, boolean complete) throws SQLException {
+		Statement s = c.createStatement();
+		s.execute("CREATE TABLE IF NOT EXISTS similaritymodel (complete INTEGER)");
+		s.execute("DELETE FROM similaritymodel");
+		if (complete) s.execute("INSERT INTO similaritymodel (complete) VALUES (1)");
+		s.close();
+		c.commit();
+	}
+
+	/**
+	 * @param c
+	 * @return Whether the "similarities" table holds every non-zero similarity (see setComplete)
+	 * @throws SQLException
+	 */
+	public static boolean isComplete(Connection c) throws SQLException {
+		Statement s = c.createStatement();
+		ResultSet rs = s.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'similaritymodel'");
+		boolean complete = rs.next() && rs.getInt(1) > 0;
+		rs.close();
+		if (complete) {
+			rs = s.executeQuery("SELECT count(*) FROM similaritymodel WHERE complete = 1");
+			complete = rs.next() && rs.getInt(1) > 0;
+			rs.close();
+		}
+		s.close();
+		return complete;
+	}
+}
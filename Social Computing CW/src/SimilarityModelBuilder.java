@@ -0,0 +1,190 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Batch "build model" mode: calculates the similarity between every pair of items on all the cores, so the prediction
+ * phase never has to calculate similarities lazily.
+ * The rows of the (upper triangular) similarity matrix are split in blocks of items that are processed by a fork-join
+ * pool; idle workers steal the remaining blocks, which keeps the cores busy even though the first rows have more pairs
+ */
+public class SimilarityModelBuilder {
+
+	public static final int DEFAULT_BLOCK_SIZE = 16;
+
+	private final RatingMatrix allRatings;
+	private final HashMap<Integer,Float> avgRatings;
+	private final int parallelism;
+	private final int blockSize;
+
+	//how often (in seconds) progress is printed, 0 to disable it
+	private int reportInterval = 10;
+
+	//the rows of the model, filled in by the workers
+	private int[][] rowNeighbours;
+	private float[][] rowSimilarities;
+
+	private final AtomicLong pairsDone = new AtomicLong();
+
+	//the average user ratings by user index, shared by all the workers (read only)
+	private float[] userAverages;
+
+
+	public SimilarityModelBuilder(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings) {
+		this(allRatings, avgRatings, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param parallelism The number of worker threads
+	 * @param blockSize The maximum number of rows processed by a single task
+	 */
+	public SimilarityModelBuilder(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, int parallelism, int blockSize) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		this.parallelism = parallelism;
+		this.blockSize = blockSize;
+	}
+
+	public void setReportInterval(int seconds) {
+		reportInterval = seconds;
+	}
+
+	/**
+	 * Calculates every similarity
+	 * @return The complete similarity model
+	 */
+	public SimilarityModel build() {
+		int numItems = allRatings.getNumItems();
+		rowNeighbours = new int[numItems][];
+		rowSimilarities = new float[numItems][];
+		userAverages = allRatings.getUserAverages(avgRatings);
+		pairsDone.set(0);
+
+		final long totalPairs = (long) numItems * (numItems - 1) / 2;
+		final long startTime = System.nanoTime();
+
+		ScheduledExecutorService reporter = null;
+		if (reportInterval > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor();
+			reporter.scheduleAtFixedRate(() -> printProgress(totalPairs, startTime), reportInterval, reportInterval, TimeUnit.SECONDS);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new BlockTask(0, numItems));
+		} finally {
+			pool.shutdown();
+			if (reporter != null) reporter.shutdownNow();
+		}
+		printProgress(totalPairs, startTime);
+
+		//concatenate the rows
+		int[] rowOffsets = new int[numItems + 1];
+		for (int i = 0; i < numItems; i++) {
+			rowOffsets[i + 1] = rowOffsets[i] + rowNeighbours[i].length;
+		}
+		int[] neighbours = new int[rowOffsets[numItems]];
+		float[] similarities = new float[rowOffsets[numItems]];
+		for (int i = 0; i < numItems; i++) {
+			System.arraycopy(rowNeighbours[i], 0, neighbours, rowOffsets[i], rowNeighbours[i].length);
+			System.arraycopy(rowSimilarities[i], 0, similarities, rowOffsets[i], rowSimilarities[i].length);
+		}
+		rowNeighbours = null;
+		rowSimilarities = null;
+
+		return new SimilarityModel(allRatings.itemIds, rowOffsets, neighbours, similarities);
+	}
+
+	/**
+	 * Calculates the similarities between the item with index 'row' and every item with a greater index, keeping the non-zero ones
+	 * @param row
+	 */
+	private void computeRow(int row) {
+		int numItems = allRatings.getNumItems();
+		int[] neighbours = new int[numItems - row - 1];
+		float[] similarities = new float[numItems - row - 1];
+		int n = 0;
+
+		for (int column = row + 1; column < numItems; column++) {
+			float similarity = SimilarityKernel.adjustedCosine(allRatings, row, column, userAverages);
+			if (similarity != 0) {
+				neighbours[n] = column;
+				similarities[n] = similarity;
+				n++;
+			}
+		}
+
+		rowNeighbours[row] = Arrays.copyOf(neighbours, n);
+		rowSimilarities[row] = Arrays.copyOf(similarities, n);
+		pairsDone.addAndGet(numItems - row - 1);
+	}
+
+	private void printProgress(long totalPairs, long startTime) {
+		long done = pairsDone.get();
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		double throughput = seconds > 0 ? done / seconds : 0;
+		long eta = throughput > 0 ? (long) ((totalPairs - done) / throughput) : -1;
+		System.out.println(String.format("%d/%d pairs (%.1f%%), %.0f pairs/s, %.0fs elapsed, ETA %ds",
+				done, totalPairs, totalPairs == 0 ? 100.0 : 100.0 * done / totalPairs, throughput, seconds, eta));
+	}
+
+	/**
+	 * Processes the rows [start, end), splitting the range in two until it is no bigger than a block
+	 */
+	private class BlockTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+
+		BlockTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= blockSize) {
+				for (int row = start; row < end; row++) computeRow(row);
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new BlockTask(start, middle), new BlockTask(middle, end));
+		}
+	}
+
+	/**
+	 * Builds the model from the ratings in the database and saves it in the "similarities" table
+	 * Usage: SimilarityModelBuilder [threads] [blockSize]
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+
+		SimpleDB s1 = new SimpleDB();
+		RatingMatrix allRatings = s1.loadRatings();
+		HashMap<Integer,Float> avgRatings = s1.getAvgUserRatings();
+		System.out.println("Building similarity model for " + allRatings.getNumItems() + " items on " + threads + " threads");
+
+		SimilarityModel model = new SimilarityModelBuilder(allRatings, avgRatings, threads, blockSize).build();
+		System.out.println("Non-zero similarities = " + model.size());
+
+		model.saveToDatabase(s1.c);
+		System.out.println("FINISHED PROGRAM!!!");
+		try {
+			s1.c.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
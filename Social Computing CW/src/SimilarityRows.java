@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+
+/**
+ * Computes rows of similarities in parallel and writes them, in order, to a sorted run (see SimilarityRunFile), for the
+ * builders that keep their similarities on disk (BlockedSimilarityBuilder, ShardedSimilarityBuilder).
+ * The rows are computed in groups of ROWS_PER_THREAD rows per thread, so only one group is held in memory while it is
+ * written
+ */
+public final class SimilarityRows {
+
+	//rows computed in parallel before they are written, per thread
+	public static final int ROWS_PER_THREAD = 4;
+
+
+	private SimilarityRows() {
+	}
+
+	/**
+	 * Writes the non-zero similarities of the rows [start, end) of a matrix with the columns [firstColumn, endColumn)
+	 * (or, if firstColumn is negative, with the columns after the row up to endColumn: the upper triangle)
+	 * @param pool Where the rows are computed
+	 * @param allRatings The ratings, whose item ids are the ones written
+	 * @param userAverages The average rating of every user, by user index
+	 * @param start
+	 * @param end
+	 * @param firstColumn
+	 * @param endColumn
+	 * @param out
+	 * @param checked If not null, the number of pairs whose similarity was calculated is added to it
+	 * @return The number of non-zero similarities written
+	 * @throws IOException
+	 */
+	public static long write(ForkJoinPool pool, final RatingMatrix allRatings, final float[] userAverages, int start, int end,
+			final int firstColumn, final int endColumn, SimilarityRunFile.Writer out, final LongAdder checked) throws IOException {
+		int group = pool.getParallelism() * ROWS_PER_THREAD;
+		final int[][] rowNeighbours = new int[group][];
+		final float[][] rowSimilarities = new float[group][];
+		long written = 0;
+		for (int from = start; from < end; from += group) {
+			final int first = from;
+			final int to = Math.min(end, from + group);
+			pool.invoke(new RowTask(first, to, row -> {
+				int column = firstColumn < 0 ? row + 1 : firstColumn;
+				int[] neighbours = new int[Math.max(0, endColumn - column)];
+				float[] similarities = new float[neighbours.length];
+				int n = 0;
+				for (; column < endColumn; column++) {
+					float similarity = SimilarityKernel.adjustedCosine(allRatings, row, column, userAverages);
+					if (similarity != 0) {
+						neighbours[n] = column;
+						similarities[n] = similarity;
+						n++;
+					}
+				}
+				if (checked != null) checked.add(neighbours.length);
+				rowNeighbours[row - first] = Arrays.copyOf(neighbours, n);
+				rowSimilarities[row - first] = Arrays.copyOf(similarities, n);
+			}));
+			for (int row = first; row < to; row++) {
+				int[] neighbours = rowNeighbours[row - first];
+				float[] similarities = rowSimilarities[row - first];
+				for (int k = 0; k < neighbours.length; k++) out.write(allRatings.itemIds[row], allRatings.itemIds[neighbours[k]], similarities[k]);
+				written += neighbours.length;
+				rowNeighbours[row - first] = null;
+				rowSimilarities[row - first] = null;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Calls the action for every row in [start, end), splitting the range in two until it is a single row
+	 */
+	private static class RowTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+		private final IntConsumer action;
+
+		RowTask(int start, int end, IntConsumer action) {
+			this.start = start;
+			this.end = end;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= 1) {
+				if (end > start) action.accept(start);
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new RowTask(start, middle, action), new RowTask(middle, end, action));
+		}
+	}
+}
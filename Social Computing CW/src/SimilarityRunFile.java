@@ -0,0 +1,258 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * Sorted run of similarities on disk: (item1, item2, similarity) records with item1 < item2, in ascending
+ * (item1, item2) order, written and read sequentially.
+ * Layout (big endian, as DataOutputStream writes it): a header (magic, version), the 12-byte records, then a footer
+ * (number of records, CRC32 of the records, magic). The footer is only written by Writer.finish(), once every record
+ * is written: a writer closed without it (e.g. by try-with-resources when an exception is thrown) or interrupted
+ * leaves a file without a valid footer, which never looks complete
+ */
+public class SimilarityRunFile {
+
+	public static final int MAGIC = 0x53435246; //"SCRF"
+	public static final int VERSION = 1;
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_SIZE = 12;
+	private static final int FOOTER_SIZE = 20;
+
+	private SimilarityRunFile() {
+	}
+
+	/**
+	 * @param item1
+	 * @param item2
+	 * @return The pair packed into a long that sorts like (item1, item2)
+	 */
+	static long order(int item1, int item2) {
+		return ((long) item1 << 32) | (item2 & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Writes a run; the records must be added in strictly ascending (item1, item2) order, then finish() marks it complete
+	 */
+	public static class Writer implements Closeable {
+
+		private final DataOutputStream raw;
+		private final CRC32 checksum = new CRC32();
+		private final DataOutputStream out;
+		private long count;
+		private long last = Long.MIN_VALUE;
+		private boolean closed;
+
+		public Writer(File file) throws IOException {
+			this(file, DEFAULT_BUFFER_SIZE);
+		}
+
+		/**
+		 * @param file
+		 * @param bufferSize The number of bytes written at a time
+		 * @throws IOException
+		 */
+		public Writer(File file, int bufferSize) throws IOException {
+			raw = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize));
+			raw.writeInt(MAGIC);
+			raw.writeInt(VERSION);
+			out = new DataOutputStream(new CheckedOutputStream(raw, checksum));
+		}
+
+		/**
+		 * @param item1
+		 * @param item2 Greater than item1
+		 * @param similarity
+		 * @throws IOException
+		 * @throws IllegalArgumentException If the pair is not after the previous one
+		 */
+		public void write(int item1, int item2, float similarity) throws IOException {
+			long key = order(item1, item2);
+			if (item1 >= item2 || key <= last) throw new IllegalArgumentException("pair (" + item1 + ", " + item2 + ") out of order");
+			last = key;
+			out.writeInt(item1);
+			out.writeInt(item2);
+			out.writeFloat(similarity);
+			count++;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Writes the footer, which marks the run as complete, and closes the file
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			if (closed) throw new IOException("the run is already closed");
+			out.flush();
+			raw.writeLong(count);
+			raw.writeLong(checksum.getValue());
+			raw.writeInt(MAGIC);
+			close();
+		}
+
+		/**
+		 * Closes the file; unless finish() was called first, the run is left incomplete
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			raw.close();
+		}
+	}
+
+	/**
+	 * Reads a run from the first record to the last, verifying its checksum at the end
+	 */
+	public static class Reader implements Closeable {
+
+		//the current record, after next() returned true
+		public int item1;
+		public int item2;
+		public float similarity;
+
+		private final File file;
+		private final long count;
+		private final long expectedChecksum;
+		private final CRC32 checksum = new CRC32();
+		private final DataInputStream in;
+		private long read;
+		private boolean verified;
+
+		public Reader(File file) throws IOException {
+			this(file, DEFAULT_BUFFER_SIZE);
+		}
+
+		/**
+		 * @param file
+		 * @param bufferSize The number of bytes read at a time
+		 * @throws IOException If the file is not a complete run
+		 */
+		public Reader(File file, int bufferSize) throws IOException {
+			this.file = file;
+			long[] footer = readFooter(file);
+			if (footer == null) throw new IOException(file + " is not a complete similarity run");
+			count = footer[0];
+			expectedChecksum = footer[1];
+			DataInputStream raw = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+			if (raw.readInt() != MAGIC || raw.readInt() != VERSION) {
+				raw.close();
+				throw new IOException(file + " is not a similarity run of version " + VERSION);
+			}
+			in = new DataInputStream(new CheckedInputStream(raw, checksum));
+		}
+
+		/**
+		 * Moves to the next record
+		 * @return false if there are no more records
+		 * @throws IOException If the records don't match the checksum (checked after the last one)
+		 */
+		public boolean next() throws IOException {
+			if (read < count) {
+				item1 = in.readInt();
+				item2 = in.readInt();
+				similarity = in.readFloat();
+				read++;
+				return true;
+			}
+			if (!verified) {
+				verified = true;
+				if (checksum.getValue() != expectedChecksum) throw new IOException(file + " is corrupted (checksum mismatch)");
+			}
+			return false;
+		}
+
+		/**
+		 * @return The number of records of the run
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return The number of records and the checksum in the footer, or null if the file is not a complete run
+	 * @throws IOException
+	 */
+	private static long[] readFooter(File file) throws IOException {
+		long length = file.length();
+		if (length < HEADER_SIZE + FOOTER_SIZE || (length - HEADER_SIZE - FOOTER_SIZE) % RECORD_SIZE != 0) return null;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(length - FOOTER_SIZE);
+			long count = raf.readLong();
+			long checksum = raf.readLong();
+			if (raf.readInt() != MAGIC || count * RECORD_SIZE != length - HEADER_SIZE - FOOTER_SIZE) return null;
+			return new long[] {count, checksum};
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return Whether the file is a run whose writer was closed (the records themselves are not read)
+	 */
+	public static boolean isComplete(File file) {
+		try {
+			return file.isFile() && readFooter(file) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Merges sorted runs into one (k-way merge, every run read sequentially)
+	 * @param runs
+	 * @param out Where the merged records are written (left open)
+	 * @param bufferSize The read buffer of every run
+	 * @return The number of records merged
+	 * @throws IOException If a run is incomplete or corrupted, or if two runs have the same pair
+	 */
+	public static long merge(List<File> runs, Writer out, int bufferSize) throws IOException {
+		PriorityQueue<Reader> heap = new PriorityQueue<Reader>(Math.max(1, runs.size()), (a, b) -> Long.compare(order(a.item1, a.item2), order(b.item1, b.item2)));
+		List<Reader> readers = new ArrayList<Reader>();
+		long merged = 0;
+		try {
+			for (File run : runs) {
+				Reader reader = new Reader(run, bufferSize);
+				readers.add(reader);
+				if (reader.next()) heap.add(reader);
+			}
+			long last = Long.MIN_VALUE;
+			while (!heap.isEmpty()) {
+				Reader reader = heap.poll();
+				long key = order(reader.item1, reader.item2);
+				if (key == last) throw new IOException("pair (" + reader.item1 + ", " + reader.item2 + ") is in more than one run");
+				last = key;
+				out.write(reader.item1, reader.item2, reader.similarity);
+				merged++;
+				if (reader.next()) heap.add(reader);
+			}
+		} finally {
+			for (Reader reader : readers) reader.close();
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * Read-only source of precomputed item-item similarities that ItemBased consults before the cache and the database
+ */
+public interface SimilarityStore {
+
+	/**
+	 * @param smallestIndex The smallest item id of the pair
+	 * @param greaterIndex The greatest item id of the pair
+	 * @return The similarity between the two items, or NaN if the store doesn't know it
+	 */
+	float getSimilarity(int smallestIndex, int greaterIndex);
+}
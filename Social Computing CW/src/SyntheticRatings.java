@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Generator of random ratings with the shape of the real data set: the popularity of the items and the activity of the
+ * users follow a power law (a few items and users have most of the ratings), and every rating is made of a user bias,
+ * an item bias and some noise, so similarities and predictions are meaningful.
+ * The ratings can be written to a temporary SQLite database with the tables SimpleDB expects, to be used as a fixture
+ */
+public class SyntheticRatings {
+
+	public final int numUsers;
+	public final int numItems;
+	public final double density;     //ratio of the user x item matrix that is rated
+	public final double exponent;    //of the power law, 0 for uniform popularity
+	public final long seed;
+
+	//the generated ratings: users[i] rated items[i] with ratings[i]
+	public final int[] users;
+	public final int[] items;
+	public final int[] ratings;
+
+
+	/**
+	 * Generates the ratings. User and item ids start at 1
+	 * @param numUsers
+	 * @param numItems
+	 * @param density The ratio of the user x item matrix that is rated, from 0 to 1
+	 * @param exponent The exponent of the power law of the popularity of the items and the activity of the users (0 for uniform)
+	 * @param seed
+	 */
+	public SyntheticRatings(int numUsers, int numItems, double density, double exponent, long seed) {
+		this.numUsers = numUsers;
+		this.numItems = numItems;
+		this.density = density;
+		this.exponent = exponent;
+		this.seed = seed;
+
+		Random random = new Random(seed);
+		double[] itemPopularity = cumulativePowerLaw(numItems, exponent);
+		double[] userActivity = cumulativePowerLaw(numUsers, exponent);
+		float[] itemBiases = new float[numItems];
+		for (int i = 0; i < numItems; i++) itemBiases[i] = (float) (random.nextGaussian() * 0.7);
+
+		//number of ratings of every user, proportional to their activity (at least 1, at most every item)
+		long total = Math.max(numUsers, (long) (density * numUsers * numItems));
+		int[] counts = new int[numUsers];
+		long numRatings = 0;
+		for (int u = 0; u < numUsers; u++) {
+			double share = userActivity[u] - (u == 0 ? 0 : userActivity[u - 1]);
+			counts[u] = (int) Math.max(1, Math.min(numItems, Math.round(share * total)));
+			numRatings += counts[u];
+		}
+		users = new int[(int) numRatings];
+		items = new int[(int) numRatings];
+		ratings = new int[(int) numRatings];
+
+		//the users are shuffled, so the heavy ones are not all at the smallest ids
+		int[] userIds = shuffledIds(numUsers, random);
+		int[] itemIds = shuffledIds(numItems, random);
+		boolean[] rated = new boolean[numItems];
+		int[] chosen = new int[numItems];
+		int n = 0;
+		for (int u = 0; u < numUsers; u++) {
+			float userBias = (float) (random.nextGaussian() * 0.5);
+			int numChosen = 0;
+			while (numChosen < counts[u]) {
+				//popular items first; once most of the items are taken, pick the rest uniformly
+				int item = numChosen < numItems / 2 ? pick(itemPopularity, random) : random.nextInt(numItems);
+				if (rated[item]) continue;
+				rated[item] = true;
+				chosen[numChosen++] = item;
+			}
+			for (int k = 0; k < numChosen; k++) {
+				int item = chosen[k];
+				rated[item] = false;
+				long rating = Math.round(3.5 + userBias + itemBiases[item] + random.nextGaussian() * 0.8);
+				users[n] = userIds[u];
+				items[n] = itemIds[item];
+				ratings[n] = (int) Math.max(1, Math.min(5, rating));
+				n++;
+			}
+		}
+	}
+
+	/**
+	 * @param size
+	 * @param exponent
+	 * @return The cumulative probabilities of the ranks 0 to size - 1, the probability of rank r being proportional to 1 / (r + 1)^exponent
+	 */
+	private static double[] cumulativePowerLaw(int size, double exponent) {
+		double[] cumulative = new double[size];
+		double sum = 0;
+		for (int r = 0; r < size; r++) {
+			sum += 1.0 / Math.pow(r + 1, exponent);
+			cumulative[r] = sum;
+		}
+		for (int r = 0; r < size; r++) cumulative[r] /= sum;
+		return cumulative;
+	}
+
+	private static int pick(double[] cumulative, Random random) {
+		int pos = Arrays.binarySearch(cumulative, random.nextDouble());
+		return Math.min(cumulative.length - 1, pos < 0 ? -pos - 1 : pos);
+	}
+
+	private static int[] shuffledIds(int size, Random random) {
+		int[] ids = new int[size];
+		for (int i = 0; i < size; i++) ids[i] = i + 1;
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int id = ids[i];
+			ids[i] = ids[j];
+			ids[j] = id;
+		}
+		return ids;
+	}
+
+	public int size() {
+		return ratings.length;
+	}
+
+	/**
+	 * Writes the ratings to the "alldata" table of a new SQLite database, with the average of every user in
+	 * "avguserratings" and empty "similarities", "predictions", "predictions2" and "testdata2" tables
+	 * @param file The database file, replaced if it exists
+	 * @return The connection string of the database, for SimpleDB
+	 */
+	public String writeDatabase(File file) {
+		String connectionString = "jdbc:sqlite:" + file.getAbsolutePath();
+		file.delete();
+		try {
+			Class.forName("org.sqlite.JDBC");
+			Connection c = DriverManager.getConnection(connectionString);
+			c.setAutoCommit(false);
+			Statement s = c.createStatement();
+			s.execute("CREATE TABLE alldata (userid INTEGER, profileid INTEGER, rating INTEGER)");
+			s.execute("CREATE TABLE avguserratings (userid INTEGER, rating REAL)");
+			s.execute("CREATE TABLE similarities (item1 INTEGER, item2 INTEGER, similarity REAL)");
+			s.execute("CREATE TABLE predictions (userid INTEGER, profileid INTEGER, prediction REAL)");
+			s.execute("CREATE TABLE predictions2 (userid INTEGER, profileid INTEGER, prediction REAL)");
+			s.execute("CREATE TABLE testdata2 (userid INTEGER, profileid INTEGER, prediction REAL)");
+			s.close();
+
+			PreparedStatement ps = c.prepareStatement("INSERT INTO alldata (userid, profileid, rating) VALUES (?, ?, ?)");
+			for (int i = 0; i < ratings.length; i++) {
+				ps.setInt(1, users[i]);
+				ps.setInt(2, items[i]);
+				ps.setInt(3, ratings[i]);
+				ps.addBatch();
+				if (i % DatabaseWriter.DEFAULT_BATCH_SIZE == DatabaseWriter.DEFAULT_BATCH_SIZE - 1) ps.executeBatch();
+			}
+			ps.executeBatch();
+			ps.close();
+
+			//the ratings of a user are contiguous
+			ps = c.prepareStatement("INSERT INTO avguserratings (userid, rating) VALUES (?, ?)");
+			int start = 0;
+			for (int i = 1; i <= ratings.length; i++) {
+				if (i < ratings.length && users[i] == users[start]) continue;
+				float sum = 0;
+				for (int k = start; k < i; k++) sum += ratings[k];
+				ps.setInt(1, users[start]);
+				ps.setFloat(2, sum / (i - start));
+				ps.addBatch();
+				start = i;
+			}
+			ps.executeBatch();
+			ps.close();
+			c.commit();
+			c.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return connectionString;
+	}
+
+	/**
+	 * Writes the ratings to a temporary database, deleted when the JVM exits
+	 * @return The connection string of the database, for SimpleDB
+	 */
+	public String writeTemporaryDatabase() {
+		try {
+			File file = File.createTempFile("ratings", ".db");
+			file.deleteOnExit();
+			return writeDatabase(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a fixture database
+	 * Usage: SyntheticRatings file [users] [items] [density] [exponent] [seed]
+	 */
+	public static void main(String[] args) {
+		File file = new File(args[0]);
+		int numUsers = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int numItems = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		double density = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+		double exponent = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+		SyntheticRatings synthetic = new SyntheticRatings(numUsers, numItems, density, exponent, seed);
+		synthetic.writeDatabase(file);
+		System.out.println(synthetic.size() + " ratings written to " + file);
+	}
+}
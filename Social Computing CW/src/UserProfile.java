@@ -0,0 +1,70 @@
+import java.util.HashMap;
+
+
+/**
+ * What the predictions for one user need to know about them: their index and ratings in the rating matrix and their
+ * average rating. It is looked up once per user, so a batch of predictions for the same user (see BatchPredictor)
+ * doesn't repeat the lookups for every item. A profile can be reused for another user with load().
+ * An indexed profile also keeps the ratings of the user by item index in an array as large as the catalogue, so
+ * getRating is a single array access instead of a binary search; it is meant to be kept (one per thread) for many users
+ */
+public class UserProfile {
+
+	public final RatingMatrix allRatings;
+	public final HashMap<Integer,Float> avgRatings;
+
+	public int user;
+	public int userIndex;     //-1 if the user has no ratings in the matrix
+	//the ratings of the user are at positions start to end - 1 of allRatings.userItems and allRatings.userRatings
+	public int start;
+	public int end;
+	public boolean hasAverage;
+	public float average;     //only meaningful if hasAverage
+
+	//ratings of the user by item index, 0 if not rated (null if the profile is not indexed)
+	private final byte[] ratingsByItem;
+
+
+	/**
+	 * @param allRatings The entire data structure containing all the ratings
+	 * @param avgRatings The average user ratings
+	 * @param indexed Whether to keep the ratings of the user by item index
+	 */
+	public UserProfile(RatingMatrix allRatings, HashMap<Integer,Float> avgRatings, boolean indexed) {
+		this.allRatings = allRatings;
+		this.avgRatings = avgRatings;
+		ratingsByItem = indexed ? new byte[allRatings.getNumItems()] : null;
+		userIndex = -1;
+	}
+
+	/**
+	 * Loads the profile of another user
+	 * @param user
+	 * @return This profile
+	 */
+	public UserProfile load(int user) {
+		if (ratingsByItem != null) {
+			for (int pos = start; pos < end; pos++) ratingsByItem[allRatings.userItems[pos]] = 0;
+		}
+		this.user = user;
+		userIndex = allRatings.getUserIndex(user);
+		start = userIndex < 0 ? 0 : allRatings.userOffsets[userIndex];
+		end = userIndex < 0 ? 0 : allRatings.userOffsets[userIndex + 1];
+		Float avg = avgRatings.get(user);
+		hasAverage = avg != null;
+		average = hasAverage ? avg : 0.0f;
+		if (ratingsByItem != null) {
+			for (int pos = start; pos < end; pos++) ratingsByItem[allRatings.userItems[pos]] = allRatings.userRatings[pos];
+		}
+		return this;
+	}
+
+	/**
+	 * @param itemIndex
+	 * @return The rating of the item with index itemIndex by the user, or 0 if they haven't rated it
+	 */
+	public int getRating(int itemIndex) {
+		if (ratingsByItem != null) return ratingsByItem[itemIndex];
+		return userIndex < 0 ? 0 : allRatings.getUserRating(userIndex, itemIndex);
+	}
+}